@@ -1,5 +1,8 @@
 package me.googas.net.api;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -11,13 +14,6 @@ import me.googas.net.api.messages.StarboxRequest;
 
 /** This object is used to give and receive {@link Message}. */
 public interface Messenger {
-  /**
-   * Listens for incoming messages.
-   *
-   * @throws MessengerListenFailException if the messenger fails to listen to new messages
-   */
-  void listen() throws MessengerListenFailException;
-
   /** Closes the messenger. */
   void close();
 
@@ -60,4 +56,18 @@ public interface Messenger {
   }
 
   <T> @NonNull CompletableFuture<T> send(@NonNull StarboxRequest<T> request);
+
+  /**
+   * Sends many requests at once. Each request still gets its own future, messengers that can do it
+   * send them together instead of one by one
+   *
+   * @param requests the requests to send
+   * @return the futures of the requests in the same order as the requests
+   */
+  default @NonNull List<CompletableFuture<?>> sendAll(
+      @NonNull Collection<? extends StarboxRequest<?>> requests) {
+    List<CompletableFuture<?>> futures = new ArrayList<>(requests.size());
+    for (StarboxRequest<?> request : requests) futures.add(this.send(request));
+    return futures;
+  }
 }
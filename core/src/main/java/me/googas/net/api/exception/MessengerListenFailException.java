@@ -3,7 +3,7 @@ package me.googas.net.api.exception;
 import lombok.NonNull;
 import me.googas.net.api.Messenger;
 
-/** Thrown when the {@link Messenger} fails to {@link Messenger#listen()}. */
+/** Thrown when a {@link Messenger} fails to listen to messages or to get a response. */
 public class MessengerListenFailException extends Exception {
 
   /**
@@ -1,11 +1,15 @@
 package me.googas.net.cache;
 
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
@@ -84,6 +88,38 @@ public interface Cache extends Runnable {
     return optional;
   }
 
+  /**
+   * Get an object from cache using its key. This will refresh the object inside of cache use {@link
+   * #get(Class, Object, boolean)} to not refresh it
+   *
+   * @see Catchable#getKey()
+   * @param clazz the clazz of the catchable for casting
+   * @param key the key of the catchable
+   * @param <T> the type of the catchable
+   * @return a {@link Optional} instance containing the catchable if found else null
+   */
+  @NonNull
+  default <T extends Catchable> Optional<T> get(@NonNull Class<T> clazz, @NonNull Object key) {
+    return this.get(clazz, key, true);
+  }
+
+  /**
+   * Get an object from cache using its key and select whether to refresh it.
+   *
+   * @see Catchable#getKey()
+   * @param clazz the clazz of the catchable for casting
+   * @param key the key of the catchable
+   * @param refresh whether to refresh the object. By refreshing means that the time of the object
+   *     inside the cache will be extended to its initial value
+   * @param <T> the type of the catchable
+   * @return a {@link Optional} instance containing the catchable if found else null
+   */
+  @NonNull
+  default <T extends Catchable> Optional<T> get(
+      @NonNull Class<T> clazz, @NonNull Object key, boolean refresh) {
+    return this.get(clazz, catchable -> key.equals(catchable.getKey()), refresh);
+  }
+
   /**
    * Get an object from cache and refresh it or return a default value in case the object is not
    * found inside the cache
@@ -164,6 +200,142 @@ public interface Cache extends Runnable {
     this.getMap().put(new SoftReference<>(catchable), this.getTimeToRemove(catchable));
   }
 
+  /**
+   * Adds an object to the cache if there's no instance of it already. The default implementation is
+   * only atomic with other calls to this method and {@link #computeIfAbsent(Class, Object,
+   * Supplier)}
+   *
+   * @param catchable the object to be added
+   * @return a {@link Optional} instance containing the instance that was already in cache or empty
+   *     if the object was added
+   */
+  @NonNull
+  default Optional<Catchable> putIfAbsent(@NonNull Catchable catchable) {
+    synchronized (this) {
+      Optional<Catchable> present =
+          this.filter(
+                  Catchable.class,
+                  stored -> catchable.equals(stored) || catchable.hashCode() == stored.hashCode())
+              .findFirst();
+      if (!present.isPresent()) this.add(catchable);
+      return present;
+    }
+  }
+
+  /**
+   * Get an object from cache using its key or supply it and add it to the cache if it is not found.
+   * The supplier is called once while other calls to this method for the same key wait for it so
+   * the object is supplied only once.
+   *
+   * @param clazz the clazz of the catchable for casting
+   * @param key the key of the catchable
+   * @param supplier the supplier of the catchable if it is not in cache. If it supplies null
+   *     nothing is added to the cache
+   * @param <T> the type of the catchable
+   * @return the object in cache, the supplied object or null if the supplier gave null
+   * @throws IllegalArgumentException if the key of the supplied object does not match the key
+   * @throws IllegalStateException if the supplied object has a different key but it is already in
+   *     cache
+   */
+  default <T extends Catchable> T computeIfAbsent(
+      @NonNull Class<T> clazz, @NonNull Object key, @NonNull Supplier<T> supplier) {
+    synchronized (this) {
+      Optional<T> present = this.get(clazz, key);
+      if (present.isPresent()) return present.get();
+      T catchable = supplier.get();
+      if (catchable == null) return null;
+      if (!key.equals(catchable.getKey())) {
+        throw new IllegalArgumentException(
+            "The key of " + catchable + " does not match the computed key " + key);
+      }
+      this.add(catchable);
+      return catchable;
+    }
+  }
+
+  /**
+   * Adds many objects to the cache. Objects that already have an instance in cache are not added.
+   * The default implementation reads the cache once instead of once per object
+   *
+   * @param catchables the objects to be added
+   * @return the objects that were not added because there's an instance of them in cache
+   */
+  @NonNull
+  default List<Catchable> addAll(@NonNull Collection<? extends Catchable> catchables) {
+    synchronized (this) {
+      Set<Integer> hashes = new HashSet<>();
+      this.filter(Catchable.class, stored -> true).forEach(stored -> hashes.add(stored.hashCode()));
+      List<Catchable> present = new ArrayList<>();
+      Map<SoftReference<Catchable>, Long> added = new HashMap<>();
+      for (Catchable catchable : catchables) {
+        if (hashes.add(catchable.hashCode())) {
+          added.put(new SoftReference<>(catchable), this.getTimeToRemove(catchable));
+        } else {
+          present.add(catchable);
+        }
+      }
+      this.getMap().putAll(added);
+      return present;
+    }
+  }
+
+  /**
+   * Get many objects from cache using their keys. This will not refresh the objects use {@link
+   * #refresh(Catchable)} to refresh them
+   *
+   * @see Catchable#getKey()
+   * @param clazz the clazz of the catchables for casting
+   * @param keys the keys of the catchables
+   * @param <K> the type of the keys
+   * @param <T> the type of the catchables
+   * @return the catchables found mapped by their key. Keys without an object are not included
+   */
+  @NonNull
+  default <K, T extends Catchable> Map<K, T> getAll(
+      @NonNull Class<T> clazz, @NonNull Collection<? extends K> keys) {
+    Map<Object, K> wanted = new HashMap<>();
+    keys.forEach(key -> wanted.put(key, key));
+    Map<K, T> found = new HashMap<>();
+    this.filter(clazz, catchable -> wanted.containsKey(catchable.getKey()))
+        .forEach(catchable -> found.putIfAbsent(wanted.get(catchable.getKey()), catchable));
+    return found;
+  }
+
+  /**
+   * Removes many objects from cache.
+   *
+   * @param catchables the objects to be removed
+   * @return the number of objects that were removed from cache
+   */
+  default int removeAll(@NonNull Collection<? extends Catchable> catchables) {
+    Set<Integer> hashes = new HashSet<>();
+    catchables.forEach(catchable -> hashes.add(catchable.hashCode()));
+    return this.invalidateIf(Catchable.class, stored -> hashes.contains(stored.hashCode()));
+  }
+
+  /**
+   * Removes the objects that match a predicate. Like {@link #remove(Catchable)} this does not call
+   * {@link Catchable#onRemove()}. The default implementation visits the map once
+   *
+   * @param clazz the clazz of the catchables for casting
+   * @param predicate the predicate to match the objects to remove
+   * @param <T> the type of the catchables
+   * @return the number of objects that were removed from cache
+   */
+  default <T extends Catchable> int invalidateIf(
+      @NonNull Class<T> clazz, @NonNull Predicate<T> predicate) {
+    int removed = 0;
+    Iterator<SoftReference<Catchable>> iterator = this.getMap().keySet().iterator();
+    while (iterator.hasNext()) {
+      Catchable stored = iterator.next().get();
+      if (clazz.isInstance(stored) && predicate.test(clazz.cast(stored))) {
+        iterator.remove();
+        removed++;
+      }
+    }
+    return removed;
+  }
+
   /**
    * Get the time left of an object inside of cache.
    *
@@ -235,6 +407,28 @@ public interface Cache extends Runnable {
     return new HashMap<>(this.getMap());
   }
 
+  /**
+   * Get the counter in which the statistics of the cache are recorded. Implementations that do not
+   * keep statistics return {@link StatsCounter#DISABLED}
+   *
+   * @return the counter of the statistics
+   */
+  @NonNull
+  default StatsCounter getStatsCounter() {
+    return StatsCounter.DISABLED;
+  }
+
+  /**
+   * Get a snapshot of the statistics of the cache such as the hit rate, the time spent loading and
+   * the number of objects removed for each {@link RemovalCause}.
+   *
+   * @return the snapshot of the statistics
+   */
+  @NonNull
+  default CacheStats getStats() {
+    return this.getStatsCounter().snapshot(this.getMap().size());
+  }
+
   /**
    * Set the consumer to be used in exceptions.
    *
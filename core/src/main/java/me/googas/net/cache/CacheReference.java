@@ -0,0 +1,41 @@
+package me.googas.net.cache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import lombok.NonNull;
+
+/**
+ * The reference used by {@link MemoryCache} to store a {@link Catchable}. It keeps the values that
+ * were used to index the catchable so that it can be removed from the indexes even after its
+ * referent has been cleared.
+ */
+final class CacheReference extends SoftReference<Catchable> {
+
+  /** The hash code of the catchable when it was added. */
+  final int hash;
+
+  /** The class of the catchable. */
+  @NonNull final Class<? extends Catchable> type;
+
+  /** The key of the catchable when it was added. This may be null */
+  final Object key;
+
+  /** The time in which the reference is scheduled in {@link ExpiryQueue}. */
+  long scheduled = Long.MAX_VALUE;
+
+  /** The weight of the reference in {@link SegmentedLru}. */
+  int weight = 1;
+
+  /**
+   * Create the reference.
+   *
+   * @param catchable the catchable to reference
+   * @param queue the queue in which the reference is enqueued once the catchable is collected
+   */
+  CacheReference(@NonNull Catchable catchable, @NonNull ReferenceQueue<? super Catchable> queue) {
+    super(catchable, queue);
+    this.hash = catchable.hashCode();
+    this.type = catchable.getClass();
+    this.key = catchable.getKey();
+  }
+}
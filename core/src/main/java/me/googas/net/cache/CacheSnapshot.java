@@ -0,0 +1,44 @@
+package me.googas.net.cache;
+
+import com.google.gson.JsonElement;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.NonNull;
+
+/**
+ * The objects of a {@link MemoryCache} written by {@link
+ * MemoryCache#snapshot(me.googas.io.StarboxFile, me.googas.io.context.Json)}. Each entry keeps the
+ * class of the object and the time in which it must be removed so that it can be restored with the
+ * time it had left.
+ */
+final class CacheSnapshot {
+
+  /** The entries of the snapshot. */
+  @NonNull final List<Entry> entries = new ArrayList<>();
+
+  /** An object of the snapshot. */
+  static final class Entry {
+
+    /** The name of the class of the object. */
+    @NonNull final String type;
+
+    /** The time in millis in which the object must be removed. */
+    final long time;
+
+    /** The serialized object. */
+    @NonNull final JsonElement value;
+
+    /**
+     * Create the entry.
+     *
+     * @param type the name of the class of the object
+     * @param time the time in millis in which the object must be removed
+     * @param value the serialized object
+     */
+    Entry(@NonNull String type, long time, @NonNull JsonElement value) {
+      this.type = type;
+      this.time = time;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package me.googas.net.cache;
+
+import java.util.Arrays;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A snapshot of the statistics of a {@link Cache}. The counts are taken from a {@link StatsCounter}
+ * and do not change after the snapshot is taken.
+ *
+ * @see Cache#getStats()
+ */
+public final class CacheStats {
+
+  /** The number of times a lookup found an object. */
+  @Getter private final long hitCount;
+
+  /** The number of times a lookup did not find an object. */
+  @Getter private final long missCount;
+
+  /** The number of loads that gave an object. */
+  @Getter private final long loadSuccessCount;
+
+  /** The number of loads that threw an exception. */
+  @Getter private final long loadFailureCount;
+
+  /** The total time spent loading objects in nanoseconds. */
+  @Getter private final long totalLoadTime;
+
+  /** The number of removed objects indexed by the ordinal of their {@link RemovalCause}. */
+  @NonNull private final long[] evictions;
+
+  /** The number of objects in the cache. */
+  @Getter private final long size;
+
+  CacheStats(
+      long hitCount,
+      long missCount,
+      long loadSuccessCount,
+      long loadFailureCount,
+      long totalLoadTime,
+      @NonNull long[] evictions,
+      long size) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.loadSuccessCount = loadSuccessCount;
+    this.loadFailureCount = loadFailureCount;
+    this.totalLoadTime = totalLoadTime;
+    this.evictions = evictions;
+    this.size = size;
+  }
+
+  /**
+   * Get the number of lookups.
+   *
+   * @return the number of hits plus the number of misses
+   */
+  public long getRequestCount() {
+    return this.hitCount + this.missCount;
+  }
+
+  /**
+   * Get the ratio of lookups that found an object.
+   *
+   * @return the hit rate between 0 and 1. If there's no lookups it will return 1
+   */
+  public double getHitRate() {
+    long requests = this.getRequestCount();
+    return requests == 0 ? 1 : (double) this.hitCount / requests;
+  }
+
+  /**
+   * Get the ratio of lookups that did not find an object.
+   *
+   * @return the miss rate between 0 and 1. If there's no lookups it will return 0
+   */
+  public double getMissRate() {
+    long requests = this.getRequestCount();
+    return requests == 0 ? 0 : (double) this.missCount / requests;
+  }
+
+  /**
+   * Get the number of loads.
+   *
+   * @return the number of successful loads plus the number of failed loads
+   */
+  public long getLoadCount() {
+    return this.loadSuccessCount + this.loadFailureCount;
+  }
+
+  /**
+   * Get the average time spent loading an object.
+   *
+   * @return the average time of a load in nanoseconds or 0 if there's no loads
+   */
+  public double getAverageLoadPenalty() {
+    long loads = this.getLoadCount();
+    return loads == 0 ? 0 : (double) this.totalLoadTime / loads;
+  }
+
+  /**
+   * Get the number of objects removed for a cause.
+   *
+   * @param cause the cause of the removal
+   * @return the number of objects removed for the cause
+   */
+  public long getEvictionCount(@NonNull RemovalCause cause) {
+    return this.evictions[cause.ordinal()];
+  }
+
+  /**
+   * Get the number of objects removed by the cache. This does not include the objects removed using
+   * {@link Cache#remove(Catchable)}
+   *
+   * @return the number of objects removed for any cause but {@link RemovalCause#EXPLICIT}
+   */
+  public long getEvictionCount() {
+    return Arrays.stream(RemovalCause.values())
+        .filter(cause -> cause != RemovalCause.EXPLICIT)
+        .mapToLong(this::getEvictionCount)
+        .sum();
+  }
+
+  @Override
+  public String toString() {
+    return "CacheStats{"
+        + "hitCount="
+        + this.hitCount
+        + ", missCount="
+        + this.missCount
+        + ", loadSuccessCount="
+        + this.loadSuccessCount
+        + ", loadFailureCount="
+        + this.loadFailureCount
+        + ", totalLoadTime="
+        + this.totalLoadTime
+        + ", evictions="
+        + Arrays.toString(this.evictions)
+        + ", size="
+        + this.size
+        + '}';
+  }
+}
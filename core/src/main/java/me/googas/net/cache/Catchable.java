@@ -8,7 +8,8 @@ public interface Catchable {
 
   /**
    * Called when the cache is ready to remove this object. This will be called in {@link
-   * Cache#run()}
+   * Cache#run()} or in the executor given to {@link
+   * MemoryCache#removeAsync(java.util.concurrent.Executor, int, int)}
    *
    * @throws Throwable in case something goes wrong while unloading this object
    */
@@ -21,4 +22,29 @@ public interface Catchable {
    */
   @NonNull
   Time getToRemove();
+
+  /**
+   * Get the key that identifies this object inside of cache. Keyed objects can be found using
+   * {@link Cache#get(Class, Object)} which implementations such as {@link MemoryCache} resolve
+   * using a hash index instead of testing each object in cache.
+   *
+   * <p>The key is read once when the object is added to the cache so it must not change while the
+   * object is cached and it must not reference this object or it will never be collected
+   *
+   * @return the key of the object or null if the object has no key
+   */
+  default Object getKey() {
+    return null;
+  }
+
+  /**
+   * Get the weight of this object inside of cache. This is used by caches that are bounded by
+   * weight such as {@link MemoryCache#maximumWeight(long)} and it is read once when the object is
+   * added to the cache
+   *
+   * @return the weight of the object which must not be negative
+   */
+  default int getWeight() {
+    return 1;
+  }
 }
@@ -0,0 +1,133 @@
+package me.googas.net.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import lombok.NonNull;
+
+/**
+ * A queue of {@link CacheReference} ordered by the time in which they must be removed. This is used
+ * by {@link MemoryCache} so that each run only visits the references that are due.
+ *
+ * <p>Each reference is scheduled once. When its time is extended by {@link
+ * Cache#refresh(Catchable)} the queue is not updated, instead the reference is scheduled again with
+ * the new time when it is polled. If the time is shortened the reference is scheduled again and the
+ * older node is discarded when it is polled
+ *
+ * <p>References removed from the cache are cancelled so their nodes are discarded instead of
+ * polled. Discarded nodes are counted and once they are more than the live ones the heap is rebuilt
+ * without them so removed references are not kept until their time
+ */
+final class ExpiryQueue {
+
+  /** The number of discarded nodes from which the heap may be rebuilt. */
+  private static final int PURGE_THRESHOLD = 64;
+
+  /** The time of the references that are not in the queue. */
+  private static final long UNSCHEDULED = Long.MAX_VALUE;
+
+  /** The time of the references that were cancelled. */
+  private static final long CANCELLED = Long.MIN_VALUE;
+
+  /** The heap of nodes ordered by their time. */
+  @NonNull private PriorityQueue<Node> heap = new PriorityQueue<>();
+
+  /** The number of nodes in the heap that will be discarded when polled. */
+  private int discarded;
+
+  /**
+   * Schedule a reference to be polled at certain time.
+   *
+   * @param reference the reference to schedule
+   * @param time the time in millis in which the reference must be polled
+   */
+  synchronized void schedule(@NonNull CacheReference reference, long time) {
+    if (reference.scheduled == ExpiryQueue.CANCELLED) return;
+    if (reference.scheduled != ExpiryQueue.UNSCHEDULED) this.discarded++;
+    reference.scheduled = time;
+    this.heap.add(new Node(reference, time));
+    this.purge();
+  }
+
+  /**
+   * Schedule a reference only if the new time is before the time it is already scheduled to.
+   *
+   * @param reference the reference to schedule
+   * @param time the time in millis in which the reference must be polled
+   */
+  synchronized void reschedule(@NonNull CacheReference reference, long time) {
+    if (time < reference.scheduled) this.schedule(reference, time);
+  }
+
+  /**
+   * Cancel a reference that was removed from the cache so it is never polled.
+   *
+   * @param reference the reference to cancel
+   */
+  synchronized void cancel(@NonNull CacheReference reference) {
+    long scheduled = reference.scheduled;
+    reference.scheduled = ExpiryQueue.CANCELLED;
+    if (scheduled == ExpiryQueue.UNSCHEDULED || scheduled == ExpiryQueue.CANCELLED) return;
+    this.discarded++;
+    this.purge();
+  }
+
+  /**
+   * Poll the next reference that is due.
+   *
+   * @param now the current time in millis
+   * @return the reference that is due or null if there's none
+   */
+  synchronized CacheReference poll(long now) {
+    Node node;
+    while ((node = this.heap.peek()) != null && node.time <= now) {
+      this.heap.poll();
+      if (node.reference.scheduled == node.time) {
+        node.reference.scheduled = ExpiryQueue.UNSCHEDULED;
+        return node.reference;
+      }
+      this.discarded--;
+    }
+    return null;
+  }
+
+  /** Rebuilds the heap without the discarded nodes once they are more than the live ones. */
+  private void purge() {
+    if (this.discarded < ExpiryQueue.PURGE_THRESHOLD || this.discarded * 2 < this.heap.size()) {
+      return;
+    }
+    List<Node> live = new ArrayList<>(this.heap.size() - this.discarded);
+    for (Node node : this.heap) {
+      if (node.reference.scheduled == node.time) live.add(node);
+    }
+    this.heap = live.isEmpty() ? new PriorityQueue<>() : new PriorityQueue<>(live);
+    this.discarded = 0;
+  }
+
+  /**
+   * Get the number of nodes in the queue. This includes the nodes of references that are no longer
+   * in cache or were scheduled again and have not been discarded yet.
+   *
+   * @return the number of nodes
+   */
+  synchronized int size() {
+    return this.heap.size();
+  }
+
+  /** A reference and the time it was scheduled to. */
+  private static final class Node implements Comparable<Node> {
+
+    @NonNull private final CacheReference reference;
+    private final long time;
+
+    private Node(@NonNull CacheReference reference, long time) {
+      this.reference = reference;
+      this.time = time;
+    }
+
+    @Override
+    public int compareTo(@NonNull Node other) {
+      return Long.compare(this.time, other.time);
+    }
+  }
+}
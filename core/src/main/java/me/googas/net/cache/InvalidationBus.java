@@ -0,0 +1,387 @@
+package me.googas.net.cache;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import lombok.NonNull;
+import me.googas.net.api.Messenger;
+import me.googas.net.api.Server;
+import me.googas.net.api.messages.StarboxRequest;
+import me.googas.net.sockets.json.JsonMessenger;
+import me.googas.net.sockets.json.JsonReceptor;
+import me.googas.net.sockets.json.ReceivedJsonRequest;
+import me.googas.net.sockets.json.exception.JsonExternalCommunicationException;
+import me.googas.starbox.scheduler.Scheduler;
+import me.googas.starbox.time.Time;
+
+/**
+ * Keeps the {@link Cache} of many nodes consistent. When an object is removed or refreshed using
+ * {@link #remove(Catchable)} or {@link #refresh(Catchable)} its key is sent to the peers of this
+ * node which remove or refresh their own instance.
+ *
+ * <p>Only keyed objects of the types registered using {@link #track(Class, Class)} are sent. Keys
+ * are queued and sent in a single request to each peer when {@link #flush()} is called, which
+ * happens when the queue reaches the batch size or every time the bus runs once it is registered in
+ * a {@link Timer} or {@link Scheduler}
+ *
+ * <p>The bus is also the {@link JsonReceptor} that receives the keys of the peers so it must be
+ * added to the receptors of the {@link me.googas.net.sockets.json.server.JsonSocketServer} and
+ * {@link me.googas.net.sockets.json.client.JsonClient} of the node. Received keys are applied to
+ * the cache directly so they are not queued again
+ *
+ * <p>Nodes are usually connected through a server which is the only peer of its clients, so the
+ * keys received by a node are relayed once to its other peers. This way a client that removes an
+ * object invalidates the server and the rest of its clients. If every node is a peer of every other
+ * node relaying must be disabled using {@link #relay(boolean)}
+ */
+public class InvalidationBus extends TimerTask implements JsonReceptor {
+
+  /** The method of the requests sent by the bus. */
+  @NonNull public static final String METHOD = "cache-invalidate";
+
+  /** The parameter that marks the requests that were relayed so they are not relayed again. */
+  @NonNull private static final String RELAYED = "relayed";
+
+  /** The cache of this node. */
+  @NonNull private final Cache cache;
+
+  /** The maximum number of keys queued before they are sent. */
+  private final int batchSize;
+
+  /** The tracked types indexed by their name. */
+  @NonNull private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+  /** The suppliers of the peers of this node. */
+  @NonNull
+  private final List<Supplier<? extends Collection<? extends Messenger>>> peers =
+      new CopyOnWriteArrayList<>();
+
+  /** The keys of the removed objects waiting to be sent indexed by the name of their type. */
+  @NonNull private Map<String, Set<Object>> removals = new HashMap<>();
+
+  /** The keys of the refreshed objects waiting to be sent indexed by the name of their type. */
+  @NonNull private Map<String, Set<Object>> refreshes = new HashMap<>();
+
+  /** The number of keys waiting to be sent. */
+  private int pending;
+
+  /** Whether the received keys are sent to the other peers. */
+  private volatile boolean relay = true;
+
+  /**
+   * Create the bus.
+   *
+   * @param cache the cache of this node
+   * @param batchSize the maximum number of keys queued before they are sent
+   */
+  public InvalidationBus(@NonNull Cache cache, int batchSize) {
+    if (batchSize < 1) throw new IllegalArgumentException("The batch size must be at least 1");
+    this.cache = cache;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Create the bus sending keys in batches of 256.
+   *
+   * @param cache the cache of this node
+   */
+  public InvalidationBus(@NonNull Cache cache) {
+    this(cache, 256);
+  }
+
+  /**
+   * Track a type of object. The type must be tracked by every node with the same key class.
+   *
+   * @param type the type of the objects
+   * @param keyClass the class of the {@link Catchable#getKey()} of the objects
+   * @return this same instance
+   */
+  @NonNull
+  public InvalidationBus track(
+      @NonNull Class<? extends Catchable> type, @NonNull Class<?> keyClass) {
+    this.channels.put(type.getName(), new Channel(type, keyClass));
+    return this;
+  }
+
+  /**
+   * Add a peer of this node.
+   *
+   * @param peer the messenger connected to the peer
+   * @return this same instance
+   */
+  @NonNull
+  public InvalidationBus peer(@NonNull Messenger peer) {
+    this.peers.add(() -> Collections.singleton(peer));
+    return this;
+  }
+
+  /**
+   * Add the clients of a server as peers of this node. Clients that connect later are also peers.
+   *
+   * @param server the server to which the peers are connected
+   * @return this same instance
+   */
+  @NonNull
+  public InvalidationBus peers(@NonNull Server<?> server) {
+    this.peers.add(() -> new ArrayList<>(server.getClients()));
+    return this;
+  }
+
+  /**
+   * Set whether the keys received from a peer are sent to the other peers. Keys are relayed once
+   * and never to the peer that sent them. Disable it when every node is a peer of every other node
+   * as they would get the keys twice
+   *
+   * @param relay whether to relay the received keys
+   * @return this same instance
+   */
+  @NonNull
+  public InvalidationBus relay(boolean relay) {
+    this.relay = relay;
+    return this;
+  }
+
+  /**
+   * Register this bus in a {@link Timer} to send the queued keys periodically.
+   *
+   * @param timer the timer to register this bus
+   * @param period the time between each send in millis
+   * @return this same instance
+   */
+  @NonNull
+  public InvalidationBus register(@NonNull Timer timer, long period) {
+    timer.schedule(this, period, period);
+    return this;
+  }
+
+  /**
+   * Register this bus in a {@link Scheduler} to send the queued keys periodically.
+   *
+   * @param scheduler the scheduler to register this bus
+   * @param period the time between each send
+   * @return this same instance
+   */
+  @NonNull
+  public InvalidationBus register(@NonNull Scheduler scheduler, @NonNull Time period) {
+    scheduler.repeat(period, period, this);
+    return this;
+  }
+
+  /**
+   * Removes an object from the cache of this node and queues its key to be removed by the peers.
+   *
+   * @param catchable the object to be removed
+   * @return whether the object was removed from the cache of this node
+   */
+  public boolean remove(@NonNull Catchable catchable) {
+    boolean removed = this.cache.remove(catchable);
+    this.queue(catchable, true);
+    return removed;
+  }
+
+  /**
+   * Refreshes an object in the cache of this node and queues its key to be refreshed by the peers.
+   *
+   * @param catchable the object to be refreshed
+   */
+  public void refresh(@NonNull Catchable catchable) {
+    this.cache.refresh(catchable);
+    this.queue(catchable, false);
+  }
+
+  /**
+   * Queues the key of an object.
+   *
+   * @param catchable the object
+   * @param removal whether the object was removed or refreshed
+   */
+  private void queue(@NonNull Catchable catchable, boolean removal) {
+    Object key = catchable.getKey();
+    if (key == null) return;
+    Optional<Channel> channel =
+        this.channels.values().stream()
+            .filter(track -> track.type.isInstance(catchable))
+            .findFirst();
+    if (!channel.isPresent()) return;
+    boolean flush;
+    synchronized (this) {
+      Map<String, Set<Object>> queue = removal ? this.removals : this.refreshes;
+      if (queue
+          .computeIfAbsent(channel.get().type.getName(), name -> new LinkedHashSet<>())
+          .add(key)) {
+        this.pending++;
+      }
+      flush = this.pending >= this.batchSize;
+    }
+    if (flush) this.flush();
+  }
+
+  /**
+   * Sends the queued keys to the peers. Keys that cannot be sent to a peer are given to the {@link
+   * Cache#getHandler()} of the cache as they are not sent again
+   */
+  public void flush() {
+    Map<String, Object> parameters = new HashMap<>();
+    synchronized (this) {
+      if (this.pending == 0) return;
+      parameters.put("remove", this.removals);
+      parameters.put("refresh", this.refreshes);
+      this.removals = new HashMap<>();
+      this.refreshes = new HashMap<>();
+      this.pending = 0;
+    }
+    this.send(parameters, null);
+  }
+
+  /**
+   * Sends keys to the peers.
+   *
+   * @param parameters the keys to send
+   * @param except the peer that must not get the keys. This may be null
+   */
+  private void send(@NonNull Map<String, Object> parameters, Messenger except) {
+    StarboxRequest<Void> request =
+        new StarboxRequest<>(Void.class, InvalidationBus.METHOD, parameters);
+    for (Supplier<? extends Collection<? extends Messenger>> supplier : this.peers) {
+      Collection<? extends Messenger> peers;
+      try {
+        peers = supplier.get();
+      } catch (RuntimeException e) {
+        this.cache.getHandler().accept(e);
+        continue;
+      }
+      for (Messenger peer : peers) {
+        if (peer == except) continue;
+        if (peer instanceof JsonMessenger && ((JsonMessenger) peer).isClosed()) continue;
+        try {
+          peer.send(request)
+              .whenComplete(
+                  (result, e) -> {
+                    if (e != null) this.failed(peer, parameters, e);
+                  });
+        } catch (RuntimeException e) {
+          this.failed(peer, parameters, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gives the keys that could not be sent to a peer to the handler of the cache.
+   *
+   * @param peer the peer that did not get the keys
+   * @param parameters the keys that were sent
+   * @param cause the reason why they could not be sent
+   */
+  private void failed(
+      @NonNull Messenger peer, @NonNull Map<String, Object> parameters, @NonNull Throwable cause) {
+    this.cache
+        .getHandler()
+        .accept(new IllegalStateException("Could not send " + parameters + " to " + peer, cause));
+  }
+
+  /**
+   * Get the number of keys waiting to be sent.
+   *
+   * @return the number of queued keys
+   */
+  public synchronized int getPending() {
+    return this.pending;
+  }
+
+  @Override
+  public void run() {
+    this.flush();
+  }
+
+  @Override
+  public Object execute(
+      Messenger messenger, @NonNull ReceivedJsonRequest request, @NonNull Gson gson)
+      throws JsonExternalCommunicationException {
+    try {
+      this.apply(request.getParameters().get("remove"), gson, true);
+      this.apply(request.getParameters().get("refresh"), gson, false);
+    } catch (RuntimeException e) {
+      throw new JsonExternalCommunicationException(e + " in request " + request);
+    }
+    if (this.relay && !request.getParameters().containsKey(InvalidationBus.RELAYED)) {
+      Map<String, Object> parameters = new HashMap<>(request.getParameters());
+      parameters.put(InvalidationBus.RELAYED, true);
+      this.send(parameters, messenger);
+    }
+    return null;
+  }
+
+  /**
+   * Removes or refreshes the objects of the received keys.
+   *
+   * @param element the keys indexed by the name of their type
+   * @param gson the gson to deserialize the keys
+   * @param removal whether the objects are removed or refreshed
+   */
+  private void apply(JsonElement element, @NonNull Gson gson, boolean removal) {
+    if (element == null || !element.isJsonObject()) return;
+    for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+      Channel channel = this.channels.get(entry.getKey());
+      if (channel == null || !entry.getValue().isJsonArray()) continue;
+      for (JsonElement json : entry.getValue().getAsJsonArray()) {
+        Object key = gson.fromJson(json, channel.keyClass);
+        if (key != null) this.apply(channel.type, key, removal);
+      }
+    }
+  }
+
+  /**
+   * Removes or refreshes the object of a received key. A {@link MemoryCache} does it without
+   * recording a hit or a miss and without moving the object back from its {@link OffHeapTier}
+   *
+   * @param type the type of the object
+   * @param key the key of the object
+   * @param removal whether the object is removed or refreshed
+   */
+  private void apply(
+      @NonNull Class<? extends Catchable> type, @NonNull Object key, boolean removal) {
+    if (this.cache instanceof MemoryCache) {
+      MemoryCache cache = (MemoryCache) this.cache;
+      if (removal) {
+        cache.remove(type, key);
+      } else {
+        cache.refresh(type, key);
+      }
+    } else {
+      Consumer<Catchable> action = removal ? this.cache::remove : this.cache::refresh;
+      this.cache.get(type, key, false).ifPresent(action);
+    }
+  }
+
+  @Override
+  public @NonNull String getRequestMethod() {
+    return InvalidationBus.METHOD;
+  }
+
+  /** A tracked type of object. */
+  private static final class Channel {
+
+    @NonNull private final Class<? extends Catchable> type;
+    @NonNull private final Class<?> keyClass;
+
+    private Channel(@NonNull Class<? extends Catchable> type, @NonNull Class<?> keyClass) {
+      this.type = type;
+      this.keyClass = keyClass;
+    }
+  }
+}
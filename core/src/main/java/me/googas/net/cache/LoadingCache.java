@@ -0,0 +1,354 @@
+package me.googas.net.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Gets objects from a {@link Cache} using their {@link Catchable#getKey()} and loads the ones that
+ * are not in cache. Loads are deduplicated: if many threads miss the same key at the same time the
+ * loader is called once and all of them get the same {@link CompletableFuture}.
+ *
+ * <p>Objects are read without refreshing them so {@link Catchable#getToRemove()} bounds how long a
+ * loaded object may be served before it is loaded again. To avoid making readers wait for a load
+ * when a frequently used object is removed use {@link #refreshAhead(double, Executor)} which loads
+ * objects in the background while they are still in cache
+ *
+ * <p>The time spent by loaders is recorded in the {@link Cache#getStatsCounter()} of the cache
+ *
+ * @param <K> the type of key of the objects
+ * @param <V> the type of the objects
+ */
+public class LoadingCache<K, V extends Catchable> {
+
+  /** The cache where loaded objects are stored. */
+  @NonNull @Getter private final Cache cache;
+
+  /** The class of the objects for casting. */
+  @NonNull private final Class<V> clazz;
+
+  /** The executor in which loaders are called. */
+  @NonNull private final Executor executor;
+
+  /** The loads that have not been completed. */
+  @NonNull private final Map<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+
+  /** The fraction of the time to remove left in which objects are refreshed. */
+  private double refreshAhead;
+
+  /** The executor in which refreshes are loaded. Null if refresh ahead is disabled */
+  private Executor refresher;
+
+  /**
+   * Create the loading cache.
+   *
+   * @param cache the cache where loaded objects are stored
+   * @param clazz the class of the objects for casting
+   * @param executor the executor in which loaders are called
+   */
+  public LoadingCache(@NonNull Cache cache, @NonNull Class<V> clazz, @NonNull Executor executor) {
+    this.cache = cache;
+    this.clazz = clazz;
+    this.executor = executor;
+  }
+
+  /**
+   * Create the loading cache. Loaders will be called in the thread of the first caller that misses
+   * the key
+   *
+   * @param cache the cache where loaded objects are stored
+   * @param clazz the class of the objects for casting
+   */
+  public LoadingCache(@NonNull Cache cache, @NonNull Class<V> clazz) {
+    this(cache, clazz, Runnable::run);
+  }
+
+  /**
+   * Enable refreshing objects before they are removed. When an object is read and the time it has
+   * left in cache is less than the fraction of its {@link Catchable#getToRemove()} it is loaded
+   * again in the executor. Readers keep getting the object in cache until the new one replaces it
+   *
+   * @param fraction the fraction of the time to remove in which objects are refreshed. For instance
+   *     0.2 refreshes an object that is removed in 5 minutes once it has less than a minute left
+   * @param executor the executor in which refreshes are loaded
+   * @return this same instance
+   * @throws IllegalArgumentException if the fraction is not between 0 and 1
+   */
+  @NonNull
+  public LoadingCache<K, V> refreshAhead(double fraction, @NonNull Executor executor) {
+    if (fraction <= 0 || fraction >= 1) {
+      throw new IllegalArgumentException("The fraction must be between 0 and 1");
+    }
+    this.refreshAhead = fraction;
+    this.refresher = executor;
+    return this;
+  }
+
+  /**
+   * Get an object or load it if it is not in cache.
+   *
+   * @param key the key of the object
+   * @param loader the function to load the object if it is not in cache. If it returns null nothing
+   *     is added to the cache
+   * @return a {@link CompletableFuture} which completes with the object or null if the loader
+   *     returned null
+   */
+  @NonNull
+  public CompletableFuture<V> get(
+      @NonNull K key, @NonNull Function<? super K, ? extends V> loader) {
+    Optional<V> present = this.cache.get(this.clazz, key, false);
+    if (present.isPresent()) {
+      if (this.shouldRefresh(present.get())) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        if (this.loading.putIfAbsent(key, future) == null) {
+          this.refresh(Collections.singletonMap(key, future), () -> this.load(key, loader, future));
+        }
+      }
+      return CompletableFuture.completedFuture(present.get());
+    }
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> inFlight = this.loading.putIfAbsent(key, future);
+    if (inFlight != null) return inFlight;
+    // The object may have been loaded while the future was being claimed
+    present = this.peek(key);
+    if (present.isPresent()) {
+      this.loading.remove(key, future);
+      future.complete(present.get());
+      return future;
+    }
+    try {
+      this.executor.execute(() -> this.load(key, loader, future));
+    } catch (RuntimeException e) {
+      this.loading.remove(key, future);
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Get many objects loading the ones that are not in cache in a single batch. Keys that are
+   * already being loaded are not loaded again.
+   *
+   * @param keys the keys of the objects
+   * @param loader the function to load the objects that are not in cache. The returned map may not
+   *     contain every requested key
+   * @return a {@link CompletableFuture} which completes with the objects mapped by their key. Keys
+   *     without an object are not included
+   */
+  @NonNull
+  public CompletableFuture<Map<K, V>> getAll(
+      @NonNull Collection<? extends K> keys,
+      @NonNull Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> loader) {
+    Map<K, CompletableFuture<V>> futures = new HashMap<>();
+    Map<K, CompletableFuture<V>> claimed = new HashMap<>();
+    Map<K, CompletableFuture<V>> refreshed = new HashMap<>();
+    for (K key : keys) {
+      if (futures.containsKey(key)) continue;
+      Optional<V> present = this.cache.get(this.clazz, key, false);
+      if (present.isPresent()) {
+        futures.put(key, CompletableFuture.completedFuture(present.get()));
+        if (this.shouldRefresh(present.get())) {
+          CompletableFuture<V> future = new CompletableFuture<>();
+          if (this.loading.putIfAbsent(key, future) == null) refreshed.put(key, future);
+        }
+        continue;
+      }
+      CompletableFuture<V> future = new CompletableFuture<>();
+      CompletableFuture<V> inFlight = this.loading.putIfAbsent(key, future);
+      if (inFlight == null) {
+        claimed.put(key, future);
+        futures.put(key, future);
+      } else {
+        futures.put(key, inFlight);
+      }
+    }
+    if (!claimed.isEmpty()) {
+      try {
+        this.executor.execute(() -> this.loadAll(claimed, loader));
+      } catch (RuntimeException e) {
+        claimed.forEach(
+            (key, future) -> {
+              this.loading.remove(key, future);
+              future.completeExceptionally(e);
+            });
+      }
+    }
+    if (!refreshed.isEmpty()) {
+      this.refresh(refreshed, () -> this.loadAll(refreshed, loader));
+    }
+    return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]))
+        .thenApply(
+            v -> {
+              Map<K, V> values = new HashMap<>();
+              futures.forEach(
+                  (key, future) -> {
+                    V value = future.join();
+                    if (value != null) values.put(key, value);
+                  });
+              return values;
+            });
+  }
+
+  /**
+   * Get the number of keys that are being loaded.
+   *
+   * @return the number of keys being loaded
+   */
+  public int getLoading() {
+    return this.loading.size();
+  }
+
+  /**
+   * Get an object from cache without recording a hit or a miss if the cache is a {@link
+   * MemoryCache}. Used when the lookup of the caller has already been recorded
+   *
+   * @param key the key of the object
+   * @return a {@link Optional} instance containing the object if found else empty
+   */
+  @NonNull
+  private Optional<V> peek(@NonNull K key) {
+    if (this.cache instanceof MemoryCache) {
+      return ((MemoryCache) this.cache).peek(this.clazz, key, false);
+    }
+    return this.cache.get(this.clazz, key, false);
+  }
+
+  /**
+   * Get whether an object must be refreshed.
+   *
+   * @param value the object in cache
+   * @return true if refresh ahead is enabled and the object is close to be removed
+   */
+  private boolean shouldRefresh(@NonNull V value) {
+    if (this.refresher == null) return false;
+    long left = this.cache.getTimeLeft(value).toMillisRound();
+    return left <= value.getToRemove().toMillisRound() * this.refreshAhead;
+  }
+
+  /**
+   * Runs a refresh in the executor for refreshes. Failed refreshes are given to the handler of the
+   * cache as no reader is waiting for them.
+   *
+   * @param claimed the keys being refreshed and their futures
+   * @param load the load of the refresh which completes the futures
+   */
+  private void refresh(@NonNull Map<K, CompletableFuture<V>> claimed, @NonNull Runnable load) {
+    CompletableFuture.allOf(claimed.values().toArray(new CompletableFuture[0]))
+        .whenComplete(
+            (value, e) -> {
+              if (e != null) this.cache.getHandler().accept(e);
+            });
+    try {
+      this.refresher.execute(load);
+    } catch (RuntimeException e) {
+      claimed.forEach(
+          (key, future) -> {
+            this.loading.remove(key, future);
+            future.completeExceptionally(e);
+          });
+    }
+  }
+
+  /**
+   * Loads an object and completes its future.
+   *
+   * @param key the key of the object
+   * @param loader the function to load the object
+   * @param future the future to complete
+   */
+  private void load(
+      @NonNull K key,
+      @NonNull Function<? super K, ? extends V> loader,
+      @NonNull CompletableFuture<V> future) {
+    long start = System.nanoTime();
+    V value;
+    try {
+      value = loader.apply(key);
+    } catch (Throwable e) {
+      this.cache.getStatsCounter().recordLoadFailure(System.nanoTime() - start);
+      this.loading.remove(key, future);
+      future.completeExceptionally(e);
+      return;
+    }
+    this.cache.getStatsCounter().recordLoadSuccess(System.nanoTime() - start);
+    try {
+      if (value != null) this.store(key, value);
+      this.loading.remove(key, future);
+      future.complete(value);
+    } catch (Throwable e) {
+      this.loading.remove(key, future);
+      future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Loads many objects and completes their futures.
+   *
+   * @param claimed the keys to load and their futures
+   * @param loader the function to load the objects
+   */
+  private void loadAll(
+      @NonNull Map<K, CompletableFuture<V>> claimed,
+      @NonNull Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> loader) {
+    Map<? extends K, ? extends V> values;
+    long start = System.nanoTime();
+    try {
+      values = loader.apply(new LinkedHashSet<>(claimed.keySet()));
+      this.cache.getStatsCounter().recordLoadSuccess(System.nanoTime() - start);
+    } catch (Throwable e) {
+      this.cache.getStatsCounter().recordLoadFailure(System.nanoTime() - start);
+      claimed.forEach(
+          (key, future) -> {
+            this.loading.remove(key, future);
+            future.completeExceptionally(e);
+          });
+      return;
+    }
+    claimed.forEach(
+        (key, future) -> {
+          try {
+            V value = values == null ? null : values.get(key);
+            if (value != null) this.store(key, value);
+            this.loading.remove(key, future);
+            future.complete(value);
+          } catch (Throwable e) {
+            this.loading.remove(key, future);
+            future.completeExceptionally(e);
+          }
+        });
+  }
+
+  /**
+   * Stores a loaded object in cache. If there's an object with the same key it gets replaced, this
+   * happens when the object was refreshed. A {@link MemoryCache} replaces it holding the lock of
+   * the key so readers do not miss it and the {@link Catchable#onRemove()} of the replaced object
+   * is called
+   *
+   * @param key the key that was loaded
+   * @param value the loaded object
+   * @throws IllegalArgumentException if the key of the object does not match the loaded key
+   */
+  private void store(@NonNull K key, @NonNull V value) {
+    if (!key.equals(value.getKey())) {
+      throw new IllegalArgumentException(
+          "The key of " + value + " does not match the loaded key " + key);
+    }
+    if (this.cache instanceof MemoryCache) {
+      ((MemoryCache) this.cache).replace(value);
+      return;
+    }
+    Optional<V> previous = this.peek(key);
+    if (previous.isPresent() && previous.get() != value) this.cache.remove(previous.get());
+    this.cache.putIfAbsent(value);
+  }
+}
@@ -1,24 +1,133 @@
 package me.googas.net.cache;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.experimental.Delegate;
+import me.googas.io.StarboxFile;
+import me.googas.io.context.Json;
+import me.googas.starbox.expressions.HandledExpression;
 import me.googas.starbox.scheduler.Scheduler;
 import me.googas.starbox.time.Time;
 import me.googas.starbox.time.unit.Unit;
 
-/** Simple implementation for {@link Cache}. */
+/**
+ * Simple implementation for {@link Cache}.
+ *
+ * <p>Objects are indexed by their {@link Object#hashCode()} and their {@link Catchable#getKey()}
+ * when they are added so {@link #contains(Catchable)}, {@link #remove(Catchable)}, {@link
+ * #refresh(Catchable)} and {@link #get(Class, Object, boolean)} do not have to test every object in
+ * cache. Objects are also indexed by their class and each of its supertypes so {@link
+ * #filter(Class, Predicate)} only visits the objects of the requested type
+ *
+ * <p>The objects are also kept in a queue ordered by their removal time so {@link #run()} only
+ * visits the objects that must be removed
+ *
+ * <p>References are registered in a {@link ReferenceQueue} so the objects collected by the garbage
+ * collector are dropped from the cache as the queue is drained in {@link #run()} and while adding
+ * objects, without scanning the whole cache
+ *
+ * <p>Statistics are always recorded in {@link #getStatsCounter()} so the hit rate can be used to
+ * tune the time to remove of the objects
+ *
+ * <p>The objects in cache may be written to a file using {@link #snapshot(StarboxFile, Json)} and
+ * restored after a restart using {@link #restore(StarboxFile, Json, Executor)} so the cache does
+ * not start empty
+ *
+ * <p>The cache may be bounded using {@link #maximumSize(long)} or {@link #maximumWeight(long)} in
+ * which case objects are evicted using a segmented least recently used policy
+ *
+ * <p>A bounded cache may move the keyed objects that it evicts to an {@link OffHeapTier} using
+ * {@link #offHeap(OffHeapTier)} which keeps them serialized outside of the heap
+ *
+ * <p>Bulk operations such as {@link #addAll(Collection)} update the indexes once per object. They
+ * are not atomic: other threads may read or write the cache while a batch is being applied
+ *
+ * <p>{@link Catchable#onRemove()} is called for the objects that expire, are evicted or are
+ * replaced by {@link LoadingCache}, never for the objects removed explicitly with {@link
+ * #remove(Catchable)}, {@link #invalidateIf(Class, Predicate)} or {@link #clear()}. The objects
+ * evicted while adding objects are notified once the cache has been updated and no lock is held, so
+ * callbacks may use the cache
+ *
+ * <p>The map of the cache can only be read. The read methods of {@link Map} such as {@link
+ * #containsKey(Object)} or {@link #entrySet()} are still available but objects must be added and
+ * removed using the methods of the cache so {@code put} and {@code remove(Object)} are not
+ *
+ * <p>All the methods are safe to use from many threads. Adding objects is atomic as the indexes are
+ * updated with atomic operations and computing objects holds a lock chosen by the key from a set of
+ * locks so different keys are computed concurrently. The same lock is held while adding a keyed
+ * object. The expiry queue is split in as many queues as locks and the writes to the eviction
+ * policy are buffered so writers of different keys do not wait for a single lock
+ */
 public class MemoryCache extends TimerTask implements Cache {
 
+  /** The maximum number of collected references dropped when adding an object. */
+  private static final int RECLAIM_ON_WRITE = 16;
+
+  /** The number of entries of a snapshot restored in a single task. */
+  private static final int RESTORE_BATCH = 64;
+
   /** The map required for the cache. */
-  @NonNull @Delegate
-  private final Map<SoftReference<Catchable>, Long> map = new ConcurrentHashMap<>();
+  @NonNull private final Map<SoftReference<Catchable>, Long> map = new ConcurrentHashMap<>();
+
+  /** The references indexed by the hash code of their catchable. */
+  @NonNull private final Map<Integer, CacheReference> hashes = new ConcurrentHashMap<>();
+
+  /** The references of keyed catchables indexed by their key. */
+  @NonNull private final Map<Object, CacheReference> keys = new ConcurrentHashMap<>();
+
+  /** The references indexed by the class of their catchable and each of its supertypes. */
+  @NonNull private final Map<Class<?>, Set<CacheReference>> types = new ConcurrentHashMap<>();
+
+  /** The supertypes of each class that has been added to the cache. */
+  @NonNull private final Map<Class<?>, List<Class<?>>> hierarchies = new ConcurrentHashMap<>();
+
+  /** The locks to compute objects. A key is always computed holding the same lock. */
+  @NonNull private final Object[] stripes = MemoryCache.createStripes();
+
+  /** The references ordered by their removal time split in as many queues as locks. */
+  @NonNull private final ExpiryQueue[] expiries = MemoryCache.createExpiries(this.stripes.length);
+
+  /** The references whose catchable was collected by the garbage collector. */
+  @NonNull private final ReferenceQueue<Catchable> collected = new ReferenceQueue<>();
+
+  /** The counter of the statistics of the cache. */
+  @NonNull @Getter private final StatsCounter statsCounter = new StatsCounter();
+
+  /** The eviction policy if the cache is bounded. */
+  private volatile SegmentedLru policy;
+
+  /** The second level where evicted objects are moved. Null if there's no second level */
+  private volatile OffHeapTier tier;
+
+  /**
+   * The queue to call {@link Catchable#onRemove()} asynchronously. Null if they are called in run
+   */
+  private volatile RemovalQueue removals;
 
   @NonNull @Getter private Consumer<Throwable> handler = Throwable::printStackTrace;
 
@@ -47,14 +156,1025 @@ public class MemoryCache extends TimerTask implements Cache {
     return this;
   }
 
+  /**
+   * Bound the cache to a maximum number of objects. When the cache exceeds it the objects that are
+   * less likely to be used again are evicted and their {@link Catchable#onRemove()} is called.
+   *
+   * @param size the maximum number of objects in cache
+   * @return this same instance
+   * @throws IllegalStateException if objects have already been added to the cache
+   */
+  @NonNull
+  public MemoryCache maximumSize(long size) {
+    return this.bound(new SegmentedLru(size, false));
+  }
+
+  /**
+   * Bound the cache to a maximum weight. The weight of each object is given by {@link
+   * Catchable#getWeight()} and when the sum exceeds the maximum the objects that are less likely to
+   * be used again are evicted and their {@link Catchable#onRemove()} is called.
+   *
+   * @param weight the maximum weight of the cache
+   * @return this same instance
+   * @throws IllegalStateException if objects have already been added to the cache
+   */
+  @NonNull
+  public MemoryCache maximumWeight(long weight) {
+    return this.bound(new SegmentedLru(weight, true));
+  }
+
+  /**
+   * Move the keyed objects that are evicted because the cache exceeded its maximum size or weight
+   * to a second level outside of the heap instead of removing them. When the key of a moved object
+   * is requested using {@link #get(Class, Object, boolean)} it is moved back to the cache. Moved
+   * objects keep their removal time and their {@link Catchable#onRemove()} is not called as they
+   * are still cached. It is called once they expire or they are dropped from the tier to make room
+   * for other objects
+   *
+   * @param tier the second level
+   * @return this same instance
+   * @throws IllegalStateException if the cache is not bounded
+   */
+  @NonNull
+  public MemoryCache offHeap(@NonNull OffHeapTier tier) {
+    if (this.policy == null) {
+      throw new IllegalStateException("The cache must be bounded to move evicted objects");
+    }
+    this.tier = tier;
+    return this;
+  }
+
+  /**
+   * Get the second level where evicted objects are moved.
+   *
+   * @see #offHeap(OffHeapTier)
+   * @return a {@link Optional} instance containing the second level if there's one else empty
+   */
+  @NonNull
+  public Optional<OffHeapTier> getOffHeapTier() {
+    return Optional.ofNullable(this.tier);
+  }
+
+  @NonNull
+  private static Object[] createStripes() {
+    int size = 1;
+    while (size < Runtime.getRuntime().availableProcessors() * 4) size <<= 1;
+    Object[] stripes = new Object[size];
+    for (int i = 0; i < size; i++) stripes[i] = new Object();
+    return stripes;
+  }
+
+  @NonNull
+  private static ExpiryQueue[] createExpiries(int size) {
+    ExpiryQueue[] expiries = new ExpiryQueue[size];
+    for (int i = 0; i < size; i++) expiries[i] = new ExpiryQueue();
+    return expiries;
+  }
+
+  /**
+   * Get the expiry queue of a reference. A reference is always in the same queue.
+   *
+   * @param reference the reference
+   * @return the queue of the reference
+   */
+  @NonNull
+  private ExpiryQueue expiry(@NonNull CacheReference reference) {
+    int hash = reference.hash;
+    return this.expiries[(hash ^ (hash >>> 16)) & (this.expiries.length - 1)];
+  }
+
+  /**
+   * Get the lock to compute a key.
+   *
+   * @param key the key to compute
+   * @return the lock of the key
+   */
+  @NonNull
+  private Object stripe(@NonNull Object key) {
+    int hash = key.hashCode();
+    return this.stripes[(hash ^ (hash >>> 16)) & (this.stripes.length - 1)];
+  }
+
+  /**
+   * Puts a reference in an index unless there's a reference with a catchable that has not been
+   * cleared.
+   *
+   * @param index the index to put the reference in
+   * @param key the key of the reference in the index
+   * @param reference the reference to put
+   * @param replaced the reference that is replaced even if its catchable has not been cleared. This
+   *     may be null
+   * @param <K> the type of key of the index
+   * @return the reference in the index or null if the reference was put
+   */
+  private static <K> CacheReference index(
+      @NonNull Map<K, CacheReference> index,
+      @NonNull K key,
+      @NonNull CacheReference reference,
+      CacheReference replaced) {
+    while (true) {
+      CacheReference present = index.putIfAbsent(key, reference);
+      if (present == null) return null;
+      if (present != replaced && present.get() != null) return present;
+      if (index.replace(key, present, reference)) return null;
+    }
+  }
+
+  /**
+   * Adds an object to the cache unless there's an instance of it already.
+   *
+   * @param catchable the object to add
+   * @param removed the list where the objects evicted to make room for the object are added so
+   *     their {@link Catchable#onRemove()} is called once no lock is held
+   * @return the instance that is already in cache or null if the object was added
+   */
+  private Catchable insert(@NonNull Catchable catchable, @NonNull List<Catchable> removed) {
+    return this.insert(catchable, this.getTimeToRemove(catchable), removed);
+  }
+
+  /**
+   * Adds an object to the cache with a removal time unless there's an instance of it already.
+   *
+   * @param catchable the object to add
+   * @param time the time in millis in which the object must be removed
+   * @param removed the list where the objects evicted to make room for the object are added so
+   *     their {@link Catchable#onRemove()} is called once no lock is held
+   * @return the instance that is already in cache or null if the object was added
+   */
+  private Catchable insert(
+      @NonNull Catchable catchable, long time, @NonNull List<Catchable> removed) {
+    Object key = catchable.getKey();
+    if (key == null) return this.link(catchable, time, null, removed);
+    synchronized (this.stripe(key)) {
+      return this.link(catchable, time, null, removed);
+    }
+  }
+
+  /**
+   * Adds an object to the cache unless there's an instance of it already. Keyed objects must be
+   * linked holding the lock of their key.
+   *
+   * @param catchable the object to add
+   * @param time the time in millis in which the object must be removed
+   * @param replaced the reference that the object replaces in the indexes. This may be null
+   * @param removed the list where the objects evicted or replaced are added so their {@link
+   *     Catchable#onRemove()} is called once no lock is held
+   * @return the instance that is already in cache or null if the object was added
+   */
+  private Catchable link(
+      @NonNull Catchable catchable,
+      long time,
+      CacheReference replaced,
+      @NonNull List<Catchable> removed) {
+    this.reclaim(MemoryCache.RECLAIM_ON_WRITE);
+    CacheReference reference = new CacheReference(catchable, this.collected);
+    SegmentedLru policy = this.policy;
+    if (policy != null) reference.weight = policy.weigh(catchable);
+    this.map.put(reference, time);
+    while (true) {
+      CacheReference present = MemoryCache.index(this.hashes, reference.hash, reference, replaced);
+      if (present == null && reference.key != null) {
+        present = MemoryCache.index(this.keys, reference.key, reference, replaced);
+        if (present != null) this.hashes.remove(reference.hash, reference);
+      }
+      if (present == null) break;
+      Catchable stored = present.get();
+      if (stored != null) {
+        this.map.remove(reference);
+        return stored;
+      }
+    }
+    if (replaced != null) {
+      Catchable previous = replaced.get();
+      if (this.unlink(replaced)) {
+        this.statsCounter.recordEviction(RemovalCause.EXPLICIT);
+        if (previous != null) removed.add(previous);
+      }
+      replaced.clear();
+    }
+    // The copy in the second level would be older than this object
+    OffHeapTier tier = this.tier;
+    if (tier != null && reference.key != null) tier.remove(reference.key);
+    for (Class<?> type : this.getHierarchy(reference.type)) {
+      this.types.computeIfAbsent(type, key -> ConcurrentHashMap.newKeySet()).add(reference);
+    }
+    this.expiry(reference).schedule(reference, time);
+    if (policy != null) {
+      for (CacheReference evicted : policy.add(reference)) this.evict(evicted, removed);
+    }
+    return null;
+  }
+
+  /**
+   * Call {@link Catchable#onRemove()} in an {@link Executor} instead of the thread that removes the
+   * object. Callbacks are queued and given to the executor in batches so {@link #run()} does not
+   * wait for them.
+   *
+   * @see RemovalQueue
+   * @param executor the executor to call the callbacks
+   * @param batchSize the maximum number of callbacks called in a single task of the executor
+   * @param capacity the maximum number of callbacks waiting to be called. When the queue is full
+   *     callbacks are called in the thread that removes the object
+   * @return this same instance
+   */
+  @NonNull
+  public MemoryCache removeAsync(@NonNull Executor executor, int batchSize, int capacity) {
+    this.removals = new RemovalQueue(this, executor, batchSize, capacity);
+    return this;
+  }
+
+  /**
+   * Get the queue used to call {@link Catchable#onRemove()} asynchronously.
+   *
+   * @see #removeAsync(Executor, int, int)
+   * @return a {@link Optional} instance containing the queue if callbacks are asynchronous else
+   *     empty
+   */
+  @NonNull
+  public Optional<RemovalQueue> getRemovalQueue() {
+    return Optional.ofNullable(this.removals);
+  }
+
+  /**
+   * Calls the {@link Catchable#onRemove()} of an object that was removed by the cache.
+   *
+   * @param catchable the removed object
+   */
+  private void onRemove(@NonNull Catchable catchable) {
+    RemovalQueue removals = this.removals;
+    if (removals != null) {
+      removals.submit(catchable);
+      return;
+    }
+    try {
+      catchable.onRemove();
+    } catch (Throwable e) {
+      this.handler.accept(e);
+    }
+  }
+
+  /**
+   * Calls the {@link Catchable#onRemove()} of the objects that were removed by the cache.
+   *
+   * @param removed the removed objects
+   */
+  private void onRemove(@NonNull List<Catchable> removed) {
+    for (Catchable catchable : removed) this.onRemove(catchable);
+  }
+
+  /**
+   * Write the objects in cache to a file so that they can be restored using {@link
+   * #restore(StarboxFile, Json, Executor)} after a restart. Objects are serialized using the {@link
+   * Json#getGson()} of the context along with their class and the time in which they must be
+   * removed. Objects that cannot be serialized are given to the {@link #getHandler()} and skipped.
+   * Only the objects in the heap are written, the objects moved to the {@link OffHeapTier} are not
+   * included
+   *
+   * @param file the file to write the snapshot to
+   * @param json the context to write the snapshot with
+   * @return a {@link HandledExpression} which on {@link HandledExpression#provide()} returns
+   *     whether the snapshot was written and handles {@link java.io.IOException}
+   */
+  @NonNull
+  public HandledExpression<Boolean> snapshot(@NonNull StarboxFile file, @NonNull Json json) {
+    CacheSnapshot snapshot = new CacheSnapshot();
+    long now = System.currentTimeMillis();
+    this.map.forEach(
+        (reference, time) -> {
+          Catchable catchable = reference.get();
+          if (catchable == null || time <= now) return;
+          try {
+            snapshot.entries.add(
+                new CacheSnapshot.Entry(
+                    catchable.getClass().getName(), time, json.getGson().toJsonTree(catchable)));
+          } catch (RuntimeException e) {
+            this.handler.accept(e);
+          }
+        });
+    return json.write(file, snapshot);
+  }
+
+  /**
+   * Restore the objects written by {@link #snapshot(StarboxFile, Json)}. Objects are restored with
+   * the time they had left when the snapshot was taken so the ones that should have been removed
+   * while the snapshot was stored are skipped. The file is read in the calling thread and the
+   * objects are deserialized and added in batches in the executor
+   *
+   * <p>Objects that are already in cache are not replaced and objects that cannot be deserialized
+   * are given to the {@link #getHandler()} and skipped
+   *
+   * @param file the file to read the snapshot from
+   * @param json the context to read the snapshot with
+   * @param executor the executor in which objects are deserialized
+   * @return a {@link CompletableFuture} which completes with the number of restored objects. If the
+   *     file does not exist or cannot be read it completes with 0
+   */
+  @NonNull
+  public CompletableFuture<Integer> restore(
+      @NonNull StarboxFile file, @NonNull Json json, @NonNull Executor executor) {
+    CacheSnapshot snapshot =
+        json.read(file, CacheSnapshot.class).handle(this.handler::accept).provide().orElse(null);
+    if (snapshot == null) return CompletableFuture.completedFuture(0);
+    AtomicInteger restored = new AtomicInteger();
+    List<CompletableFuture<Void>> batches = new ArrayList<>();
+    for (int i = 0; i < snapshot.entries.size(); i += MemoryCache.RESTORE_BATCH) {
+      List<CacheSnapshot.Entry> batch =
+          snapshot.entries.subList(
+              i, Math.min(snapshot.entries.size(), i + MemoryCache.RESTORE_BATCH));
+      batches.add(
+          CompletableFuture.runAsync(
+              () -> batch.forEach(entry -> restored.addAndGet(this.restore(json, entry))),
+              executor));
+    }
+    return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0]))
+        .thenApply(v -> restored.get());
+  }
+
+  /**
+   * Restores an entry of a snapshot.
+   *
+   * @param json the context to deserialize the object
+   * @param entry the entry to restore
+   * @return 1 if the object was added to the cache else 0
+   */
+  private int restore(@NonNull Json json, @NonNull CacheSnapshot.Entry entry) {
+    if (entry.time <= System.currentTimeMillis()) return 0;
+    try {
+      Class<?> type = Class.forName(entry.type);
+      if (!Catchable.class.isAssignableFrom(type)) {
+        throw new IllegalArgumentException(entry.type + " is not catchable");
+      }
+      Catchable catchable = (Catchable) json.getGson().fromJson(entry.value, type);
+      List<Catchable> removed = new ArrayList<>();
+      int restored =
+          catchable != null && this.insert(catchable, entry.time, removed) == null ? 1 : 0;
+      this.onRemove(removed);
+      return restored;
+    } catch (ClassNotFoundException | RuntimeException e) {
+      this.handler.accept(e);
+      return 0;
+    }
+  }
+
+  /**
+   * Get the class and the supertypes of a class that are also {@link Catchable}.
+   *
+   * @param clazz the class to get the hierarchy from
+   * @return the class and its supertypes
+   */
+  @NonNull
+  private List<Class<?>> getHierarchy(@NonNull Class<?> clazz) {
+    return this.hierarchies.computeIfAbsent(
+        clazz,
+        key -> {
+          Set<Class<?>> hierarchy = new LinkedHashSet<>();
+          Deque<Class<?>> pending = new ArrayDeque<>();
+          pending.add(key);
+          while (!pending.isEmpty()) {
+            Class<?> type = pending.poll();
+            if (!Catchable.class.isAssignableFrom(type) || !hierarchy.add(type)) continue;
+            if (type.getSuperclass() != null) pending.add(type.getSuperclass());
+            pending.addAll(Arrays.asList(type.getInterfaces()));
+          }
+          return new ArrayList<>(hierarchy);
+        });
+  }
+
+  @NonNull
+  private MemoryCache bound(@NonNull SegmentedLru policy) {
+    if (!this.map.isEmpty()) {
+      throw new IllegalStateException("The cache must be bounded before adding objects");
+    }
+    this.policy = policy;
+    return this;
+  }
+
+  /**
+   * Get the reference of an object inside of cache.
+   *
+   * @param catchable the object to get the reference
+   * @return the reference if the object is in cache else null
+   */
+  private CacheReference find(@NonNull Catchable catchable) {
+    CacheReference reference = this.hashes.get(catchable.hashCode());
+    if (reference != null && reference.get() != null) return reference;
+    Object key = catchable.getKey();
+    if (key != null) {
+      reference = this.keys.get(key);
+      if (reference != null && reference.get() != null) return reference;
+    }
+    return null;
+  }
+
+  /**
+   * Removes a reference from the map, the indexes and the expiry queue.
+   *
+   * @param reference the reference to remove
+   * @return whether the reference was inside the map
+   */
+  private boolean unlink(@NonNull CacheReference reference) {
+    this.unindex(reference);
+    this.expiry(reference).cancel(reference);
+    return this.map.remove(reference) != null;
+  }
+
+  /**
+   * Removes a reference from the indexes.
+   *
+   * @param reference the reference to remove
+   */
+  private void unindex(@NonNull CacheReference reference) {
+    this.hashes.remove(reference.hash, reference);
+    if (reference.key != null) this.keys.remove(reference.key, reference);
+    for (Class<?> type : this.getHierarchy(reference.type)) {
+      Set<CacheReference> references = this.types.get(type);
+      if (references != null) references.remove(reference);
+    }
+    SegmentedLru policy = this.policy;
+    if (policy != null) policy.remove(reference);
+  }
+
+  /**
+   * Drops the references whose catchable was collected by the garbage collector.
+   *
+   * @param maximum the maximum number of references to drop
+   */
+  private void reclaim(int maximum) {
+    Reference<? extends Catchable> reference;
+    for (int i = 0; i < maximum && (reference = this.collected.poll()) != null; i++) {
+      if (this.unlink((CacheReference) reference)) {
+        this.statsCounter.recordEviction(RemovalCause.COLLECTED);
+      }
+    }
+  }
+
+  /**
+   * Evicts a reference chosen by the eviction policy.
+   *
+   * @param reference the reference to evict
+   * @param removed the list where the evicted object is added if it was not moved to the {@link
+   *     OffHeapTier}
+   */
+  private void evict(@NonNull CacheReference reference, @NonNull List<Catchable> removed) {
+    Catchable catchable = reference.get();
+    Long time = this.map.get(reference);
+    if (!this.unlink(reference)) return;
+    this.statsCounter.recordEviction(RemovalCause.SIZE);
+    if (catchable != null && !this.demote(reference, catchable, time, removed)) {
+      removed.add(catchable);
+    }
+    reference.clear();
+  }
+
+  /**
+   * Removes a reference and the copy of its object in the {@link OffHeapTier} if there's one.
+   *
+   * @param reference the reference to remove
+   * @return whether the reference was in cache
+   */
+  private boolean discard(@NonNull CacheReference reference) {
+    OffHeapTier tier = this.tier;
+    if (tier != null && reference.key != null) tier.remove(reference.key);
+    if (!this.unlink(reference)) return false;
+    this.statsCounter.recordEviction(RemovalCause.EXPLICIT);
+    return true;
+  }
+
+  /**
+   * Moves an evicted object to the {@link OffHeapTier} if there's one.
+   *
+   * @param reference the reference of the object
+   * @param catchable the object
+   * @param time the time in millis in which the object must be removed
+   * @param removed the list where the objects dropped from the tier to make room are added
+   * @return whether the object was moved
+   */
+  private boolean demote(
+      @NonNull CacheReference reference,
+      @NonNull Catchable catchable,
+      Long time,
+      @NonNull List<Catchable> removed) {
+    OffHeapTier tier = this.tier;
+    if (tier == null || reference.key == null || time == null) return false;
+    List<OffHeapTier.Dropped> dropped = new ArrayList<>();
+    try {
+      return tier.put(reference.key, catchable, time, dropped);
+    } catch (RuntimeException e) {
+      this.handler.accept(e);
+      return false;
+    } finally {
+      this.read(tier, dropped, removed);
+    }
+  }
+
+  /**
+   * Deserializes the objects dropped from the {@link OffHeapTier} so their {@link
+   * Catchable#onRemove()} can be called. Their eviction was recorded when they were moved to the
+   * tier. Objects that cannot be deserialized are given to the {@link #getHandler()}
+   *
+   * @param tier the tier that dropped the objects
+   * @param dropped the dropped objects
+   * @param removed the list where the deserialized objects are added
+   */
+  private void read(
+      @NonNull OffHeapTier tier,
+      @NonNull List<OffHeapTier.Dropped> dropped,
+      @NonNull List<Catchable> removed) {
+    for (OffHeapTier.Dropped object : dropped) {
+      try {
+        Catchable catchable = tier.read(object);
+        if (catchable != null) removed.add(catchable);
+      } catch (RuntimeException e) {
+        this.handler.accept(e);
+      }
+    }
+  }
+
+  /**
+   * Moves an object from the {@link OffHeapTier} back to the cache.
+   *
+   * @param clazz the clazz that the object must be assignable to
+   * @param key the key of the object
+   * @param removed the list where the objects evicted to make room for the object are added
+   * @return the object that was moved, the instance that was added with the same key while it was
+   *     being moved or null if the tier does not have the object
+   */
+  private Catchable promote(
+      @NonNull Class<?> clazz, @NonNull Object key, @NonNull List<Catchable> removed) {
+    OffHeapTier tier = this.tier;
+    if (tier == null) return null;
+    Map.Entry<Catchable, Long> entry;
+    List<OffHeapTier.Dropped> dropped = new ArrayList<>();
+    try {
+      entry = tier.take(key, clazz, dropped);
+    } catch (RuntimeException e) {
+      this.handler.accept(e);
+      return null;
+    } finally {
+      this.read(tier, dropped, removed);
+    }
+    if (entry == null) return null;
+    Catchable present = this.insert(entry.getKey(), entry.getValue(), removed);
+    return present == null ? entry.getKey() : present;
+  }
+
+  @Override
+  public @NonNull <T extends Catchable> Optional<T> get(
+      @NonNull Class<T> clazz, @NonNull Predicate<T> predicate, boolean refresh) {
+    Optional<T> optional = Cache.super.get(clazz, predicate, refresh);
+    if (optional.isPresent()) {
+      this.statsCounter.recordHits(1);
+    } else {
+      this.statsCounter.recordMisses(1);
+    }
+    return optional;
+  }
+
+  @Override
+  public @NonNull <T extends Catchable> Optional<T> get(
+      @NonNull Class<T> clazz, @NonNull Object key, boolean refresh) {
+    Optional<T> optional = this.peek(clazz, key, refresh);
+    if (optional.isPresent()) {
+      this.statsCounter.recordHits(1);
+    } else {
+      this.statsCounter.recordMisses(1);
+    }
+    return optional;
+  }
+
+  /**
+   * Get an object from cache using its key without recording a hit or a miss. This is used by
+   * {@link LoadingCache} to check the cache again after it has recorded a miss.
+   *
+   * @param clazz the clazz of the catchable for casting
+   * @param key the key of the catchable
+   * @param refresh whether to refresh the object
+   * @param <T> the type of the catchable
+   * @return a {@link Optional} instance containing the catchable if found else null
+   */
+  @NonNull
+  <T extends Catchable> Optional<T> peek(
+      @NonNull Class<T> clazz, @NonNull Object key, boolean refresh) {
+    List<Catchable> removed = new ArrayList<>();
+    Optional<T> optional = this.peek(clazz, key, refresh, removed);
+    this.onRemove(removed);
+    return optional;
+  }
+
+  /**
+   * Get an object from cache using its key without recording a hit or a miss.
+   *
+   * @param clazz the clazz of the catchable for casting
+   * @param key the key of the catchable
+   * @param refresh whether to refresh the object
+   * @param removed the list where the objects evicted to move the object back from the {@link
+   *     OffHeapTier} are added
+   * @param <T> the type of the catchable
+   * @return a {@link Optional} instance containing the catchable if found else null
+   */
+  @NonNull
+  private <T extends Catchable> Optional<T> peek(
+      @NonNull Class<T> clazz,
+      @NonNull Object key,
+      boolean refresh,
+      @NonNull List<Catchable> removed) {
+    CacheReference reference = this.keys.get(key);
+    Catchable catchable = reference == null ? null : reference.get();
+    if (catchable == null) {
+      catchable = this.promote(clazz, key, removed);
+      return clazz.isInstance(catchable) ? Optional.of(clazz.cast(catchable)) : Optional.empty();
+    }
+    if (!clazz.isAssignableFrom(catchable.getClass())) return Optional.empty();
+    if (refresh) {
+      this.refresh(reference, catchable);
+    } else if (this.policy != null) {
+      this.policy.access(reference);
+    }
+    return Optional.of(clazz.cast(catchable));
+  }
+
+  /**
+   * Refreshes the removal time of a reference.
+   *
+   * @param reference the reference to refresh
+   * @param catchable the catchable of the reference
+   */
+  private void refresh(@NonNull CacheReference reference, @NonNull Catchable catchable) {
+    long time = this.getTimeToRemove(catchable);
+    if (this.map.replace(reference, time) != null)
+      this.expiry(reference).reschedule(reference, time);
+    SegmentedLru policy = this.policy;
+    if (policy != null) policy.access(reference);
+  }
+
+  @Override
+  public boolean contains(@NonNull Catchable catchable) {
+    return this.find(catchable) != null;
+  }
+
+  @Override
+  public void add(@NonNull Catchable catchable) {
+    if (this.putIfAbsent(catchable).isPresent()) {
+      throw new IllegalStateException(
+          "There's already an instance of " + catchable + " inside of the cache");
+    }
+  }
+
+  @Override
+  public @NonNull Optional<Catchable> putIfAbsent(@NonNull Catchable catchable) {
+    List<Catchable> removed = new ArrayList<>();
+    Catchable present = this.insert(catchable, removed);
+    this.onRemove(removed);
+    return Optional.ofNullable(present);
+  }
+
+  /**
+   * Adds a keyed object replacing the object that has the same key. The key is moved from one
+   * object to the other so readers find either of them while the object is replaced, and the {@link
+   * Catchable#onRemove()} of the replaced object is called.
+   *
+   * @param catchable the object to add
+   * @throws IllegalArgumentException if the object does not have a key
+   */
+  void replace(@NonNull Catchable catchable) {
+    Object key = catchable.getKey();
+    if (key == null) throw new IllegalArgumentException(catchable + " does not have a key");
+    List<Catchable> removed = new ArrayList<>();
+    synchronized (this.stripe(key)) {
+      CacheReference present = this.keys.get(key);
+      if (present == null || present.get() != catchable) {
+        this.link(catchable, this.getTimeToRemove(catchable), present, removed);
+      }
+    }
+    this.onRemove(removed);
+  }
+
+  @Override
+  public <T extends Catchable> T computeIfAbsent(
+      @NonNull Class<T> clazz, @NonNull Object key, @NonNull Supplier<T> supplier) {
+    Optional<T> present = this.get(clazz, key);
+    if (present.isPresent()) return present.get();
+    List<Catchable> removed = new ArrayList<>();
+    try {
+      synchronized (this.stripe(key)) {
+        present = this.peek(clazz, key, true, removed);
+        if (present.isPresent()) return present.get();
+        long start = System.nanoTime();
+        T catchable;
+        try {
+          catchable = supplier.get();
+        } catch (RuntimeException e) {
+          this.statsCounter.recordLoadFailure(System.nanoTime() - start);
+          throw e;
+        }
+        this.statsCounter.recordLoadSuccess(System.nanoTime() - start);
+        if (catchable == null) return null;
+        if (!key.equals(catchable.getKey())) {
+          throw new IllegalArgumentException(
+              "The key of " + catchable + " does not match the computed key " + key);
+        }
+        // The key may have been taken by an object added without computing it
+        Catchable stored = this.insert(catchable, removed);
+        if (stored == null) return catchable;
+        if (!clazz.isInstance(stored)) {
+          throw new IllegalStateException(
+              "There's already an instance of " + catchable + " inside of the cache");
+        }
+        return clazz.cast(stored);
+      }
+    } finally {
+      this.onRemove(removed);
+    }
+  }
+
+  @Override
+  public @NonNull List<Catchable> addAll(@NonNull Collection<? extends Catchable> catchables) {
+    List<Catchable> present = new ArrayList<>();
+    List<Catchable> removed = new ArrayList<>();
+    for (Catchable catchable : catchables) {
+      if (this.insert(catchable, removed) != null) present.add(catchable);
+    }
+    this.onRemove(removed);
+    return present;
+  }
+
+  @Override
+  public @NonNull <K, T extends Catchable> Map<K, T> getAll(
+      @NonNull Class<T> clazz, @NonNull Collection<? extends K> keys) {
+    Map<K, T> found = new HashMap<>();
+    int misses = 0;
+    for (K key : keys) {
+      if (found.containsKey(key)) continue;
+      Optional<T> optional = this.peek(clazz, key, false);
+      if (optional.isPresent()) {
+        found.put(key, optional.get());
+      } else {
+        misses++;
+      }
+    }
+    this.statsCounter.recordHits(found.size());
+    this.statsCounter.recordMisses(misses);
+    return found;
+  }
+
+  @Override
+  public int removeAll(@NonNull Collection<? extends Catchable> catchables) {
+    int removed = 0;
+    for (Catchable catchable : catchables) {
+      if (this.remove(catchable)) removed++;
+    }
+    return removed;
+  }
+
+  /**
+   * Removes the objects of a type that match a predicate. The objects moved to the {@link
+   * OffHeapTier} are deserialized to be tested so they cannot be moved back to the cache later.
+   *
+   * @param clazz the class of the objects
+   * @param predicate the predicate to match the objects to remove
+   * @param <T> the type of the objects
+   * @return the number of removed objects
+   */
+  @Override
+  public <T extends Catchable> int invalidateIf(
+      @NonNull Class<T> clazz, @NonNull Predicate<T> predicate) {
+    int removed = 0;
+    Set<CacheReference> references = this.types.get(clazz);
+    if (references != null) {
+      for (CacheReference reference : references) {
+        Catchable catchable = reference.get();
+        if (catchable != null && predicate.test(clazz.cast(catchable)) && this.discard(reference)) {
+          removed++;
+        }
+      }
+    }
+    OffHeapTier tier = this.tier;
+    if (tier != null) {
+      try {
+        removed += tier.removeIf(clazz, predicate);
+      } catch (RuntimeException e) {
+        this.handler.accept(e);
+      }
+    }
+    return removed;
+  }
+
+  @Override
+  public @NonNull <T extends Catchable> Stream<T> filter(
+      @NonNull Class<T> clazz, @NonNull Predicate<T> predicate) {
+    Set<CacheReference> references = this.types.get(clazz);
+    if (references == null) return Stream.empty();
+    // The sets of the index are concurrent so there's no need of a copy
+    return references.stream()
+        .map(SoftReference::get)
+        .filter(Objects::nonNull)
+        .map(clazz::cast)
+        .filter(predicate);
+  }
+
+  @Override
+  public @NonNull Time getTimeLeft(@NonNull Catchable catchable) {
+    CacheReference reference = this.find(catchable);
+    Long time = reference == null ? null : this.map.get(reference);
+    if (time == null) return Time.ZERO;
+    long millis = time - System.currentTimeMillis();
+    return Time.ofMillis(millis < 0 ? 0 : millis, false);
+  }
+
+  @Override
+  public boolean remove(@NonNull Catchable catchable) {
+    OffHeapTier tier = this.tier;
+    Object key = catchable.getKey();
+    boolean demoted = tier != null && key != null && tier.remove(key);
+    CacheReference reference = this.find(catchable);
+    return reference != null && this.discard(reference) || demoted;
+  }
+
+  /**
+   * Removes an object using its key without recording a hit or a miss and without moving it back
+   * from the {@link OffHeapTier}. This is used by {@link InvalidationBus} to apply the keys
+   * received from its peers
+   *
+   * @param clazz the class that the object must be an instance of
+   * @param key the key of the object
+   * @return whether the object was removed
+   */
+  boolean remove(@NonNull Class<?> clazz, @NonNull Object key) {
+    CacheReference reference = this.keys.get(key);
+    Catchable catchable = reference == null ? null : reference.get();
+    if (catchable != null && clazz.isInstance(catchable)) return this.discard(reference);
+    OffHeapTier tier = this.tier;
+    return tier != null && tier.remove(key);
+  }
+
+  /**
+   * Refreshes an object using its key without recording a hit or a miss. Objects in the {@link
+   * OffHeapTier} are not refreshed
+   *
+   * @param clazz the class that the object must be an instance of
+   * @param key the key of the object
+   */
+  void refresh(@NonNull Class<?> clazz, @NonNull Object key) {
+    CacheReference reference = this.keys.get(key);
+    Catchable catchable = reference == null ? null : reference.get();
+    if (catchable != null && clazz.isInstance(catchable)) this.refresh(reference, catchable);
+  }
+
+  @Override
+  public void refresh(@NonNull Catchable catchable) {
+    CacheReference reference = this.find(catchable);
+    if (reference != null) this.refresh(reference, catchable);
+  }
+
   @Override
   public void run() {
-    Cache.super.run();
+    this.reclaim(Integer.MAX_VALUE);
+    long now = System.currentTimeMillis();
+    for (ExpiryQueue expiry : this.expiries) this.expire(expiry, now);
+    SegmentedLru policy = this.policy;
+    if (policy != null) {
+      // Applies the writes buffered while other threads held the policy
+      List<Catchable> removed = new ArrayList<>();
+      for (CacheReference evicted : policy.cleanUp()) this.evict(evicted, removed);
+      this.onRemove(removed);
+    }
+    OffHeapTier tier = this.tier;
+    if (tier != null) {
+      List<OffHeapTier.Dropped> dropped = new ArrayList<>();
+      List<Catchable> removed = new ArrayList<>();
+      tier.expire(now, dropped);
+      this.read(tier, dropped, removed);
+      this.onRemove(removed);
+    }
+  }
+
+  /**
+   * Removes the references of a queue that are due.
+   *
+   * @param expiry the queue to poll
+   * @param now the current time in millis
+   */
+  private void expire(@NonNull ExpiryQueue expiry, long now) {
+    CacheReference reference;
+    while ((reference = expiry.poll(now)) != null) {
+      Long time = this.map.get(reference);
+      if (time == null) continue;
+      Catchable catchable = reference.get();
+      if (catchable == null) {
+        // Collected but not enqueued yet
+        if (this.unlink(reference)) this.statsCounter.recordEviction(RemovalCause.COLLECTED);
+      } else if (time > now || !this.map.remove(reference, time)) {
+        // The reference was refreshed after it was scheduled
+        Long refreshed = this.map.get(reference);
+        if (refreshed != null) expiry.schedule(reference, refreshed);
+      } else {
+        this.unindex(reference);
+        this.statsCounter.recordEviction(RemovalCause.EXPIRED);
+        this.onRemove(catchable);
+        reference.clear();
+      }
+    }
   }
 
+  /**
+   * Get the number of objects in cache. Objects moved to the {@link OffHeapTier} are not counted
+   *
+   * @return the number of objects in cache
+   */
+  public int size() {
+    return this.map.size();
+  }
+
+  /**
+   * Get whether the cache has no objects. Objects moved to the {@link OffHeapTier} are not counted
+   *
+   * @return true if there are no objects in cache
+   */
+  public boolean isEmpty() {
+    return this.map.isEmpty();
+  }
+
+  /**
+   * Get whether the map of the cache contains a reference.
+   *
+   * @param key the reference to check
+   * @return true if the reference is in the map
+   */
+  public boolean containsKey(Object key) {
+    return this.map.containsKey(key);
+  }
+
+  /**
+   * Get whether an object must be removed at a given time.
+   *
+   * @param value the time in millis
+   * @return true if a reference in the map has the time
+   */
+  public boolean containsValue(Object value) {
+    return this.map.containsValue(value);
+  }
+
+  /**
+   * Get the time in which the object of a reference must be removed.
+   *
+   * @param key the reference of the object
+   * @return the time in millis or null if the reference is not in the map
+   */
+  public Long get(Object key) {
+    return this.map.get(key);
+  }
+
+  /**
+   * Get the references in the map.
+   *
+   * @return the unmodifiable view of the references
+   */
+  @NonNull
+  public Set<SoftReference<Catchable>> keySet() {
+    return this.getMap().keySet();
+  }
+
+  /**
+   * Get the removal times in the map.
+   *
+   * @return the unmodifiable view of the times
+   */
+  @NonNull
+  public Collection<Long> values() {
+    return this.getMap().values();
+  }
+
+  /**
+   * Get the references in the map along with their removal time.
+   *
+   * @return the unmodifiable view of the entries
+   */
+  @NonNull
+  public Set<Map.Entry<SoftReference<Catchable>, Long>> entrySet() {
+    return this.getMap().entrySet();
+  }
+
+  /**
+   * Removes every object from the cache and the {@link OffHeapTier}. As when clearing the map,
+   * {@link Catchable#onRemove()} is not called
+   */
+  public void clear() {
+    for (SoftReference<Catchable> reference : this.map.keySet()) {
+      this.discard((CacheReference) reference);
+    }
+    OffHeapTier tier = this.tier;
+    if (tier != null) tier.clear();
+  }
+
+  /**
+   * Get the map of the cache. Objects must be added or removed using the methods of the cache as
+   * the map cannot keep the indexes updated so this is an unmodifiable view.
+   *
+   * @return the unmodifiable view of the map
+   */
   @Override
   public @NonNull Map<SoftReference<Catchable>, Long> getMap() {
-    return this.map;
+    return Collections.unmodifiableMap(this.map);
   }
 
   @Override
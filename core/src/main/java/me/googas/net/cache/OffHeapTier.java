@@ -0,0 +1,350 @@
+package me.googas.net.cache;
+
+import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A second level for {@link MemoryCache} which stores serialized objects outside of the heap. When
+ * a keyed object is evicted because the cache exceeded its maximum size or weight it is serialized
+ * using {@link Gson} and written to a direct {@link ByteBuffer}, when the key is requested again
+ * the object is deserialized and added back to the cache.
+ *
+ * <p>The buffer is allocated once and split in blocks of the same size so objects do not create
+ * garbage while they are stored. When there's not enough free blocks the least recently stored
+ * objects are dropped. Dropped objects and objects that expire while stored are given back to the
+ * cache which calls their {@link Catchable#onRemove()}
+ *
+ * @see MemoryCache#offHeap(OffHeapTier)
+ */
+public class OffHeapTier {
+
+  /** The instance to serialize objects. */
+  @NonNull private final Gson gson;
+
+  /** The memory outside the heap where objects are written. */
+  @NonNull private final ByteBuffer buffer;
+
+  /** The size of each block in bytes. */
+  @Getter private final int blockSize;
+
+  /** The index of the blocks that are not used. Only the first {@link #freeCount} are valid */
+  @NonNull private final int[] free;
+
+  /** The number of blocks that are not used. */
+  private int freeCount;
+
+  /** The stored objects indexed by their key in the order they were stored. */
+  @NonNull private final LinkedHashMap<Object, Slot> slots = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The stored objects sorted by the time in which they must be removed. */
+  @NonNull private final TreeSet<Slot> deadlines = new TreeSet<>(Slot.ORDER);
+
+  /** The number of objects that have been stored used to sort objects with the same time. */
+  private long stored;
+
+  /**
+   * Create the tier.
+   *
+   * @param gson the instance to serialize objects. Objects in cache must be serializable with it
+   * @param capacity the maximum number of bytes to allocate
+   * @param blockSize the size of each block in bytes. Objects use at least one block so this should
+   *     be close to the size of the smaller objects
+   * @throws IllegalArgumentException if the capacity is smaller than a block or the block size is
+   *     not positive
+   */
+  public OffHeapTier(@NonNull Gson gson, long capacity, int blockSize) {
+    if (blockSize < 1) throw new IllegalArgumentException("The block size must be positive");
+    if (capacity < blockSize || capacity > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("The capacity must be between the block size and 2GB");
+    }
+    this.gson = gson;
+    this.blockSize = blockSize;
+    int blocks = (int) (capacity / blockSize);
+    this.buffer = ByteBuffer.allocateDirect(blocks * blockSize);
+    this.free = new int[blocks];
+    // The first block is at the top of the stack
+    for (int i = 0; i < blocks; i++) this.free[i] = blocks - 1 - i;
+    this.freeCount = blocks;
+  }
+
+  /**
+   * Create the tier using blocks of 1KB.
+   *
+   * @param gson the instance to serialize objects. Objects in cache must be serializable with it
+   * @param capacity the maximum number of bytes to allocate
+   */
+  public OffHeapTier(@NonNull Gson gson, long capacity) {
+    this(gson, capacity, 1024);
+  }
+
+  /**
+   * Stores an object. If there's an object with the same key it is replaced.
+   *
+   * @param key the key of the object
+   * @param catchable the object to store
+   * @param time the time in millis in which the object must be removed
+   * @param dropped the list where the objects dropped to make room for the object are added
+   * @return whether the object was stored. Objects larger than the tier are not stored
+   */
+  synchronized boolean put(
+      @NonNull Object key,
+      @NonNull Catchable catchable,
+      long time,
+      @NonNull List<Dropped> dropped) {
+    byte[] bytes = this.gson.toJson(catchable).getBytes(StandardCharsets.UTF_8);
+    int needed = (bytes.length + this.blockSize - 1) / this.blockSize;
+    this.release(this.slots.remove(key));
+    if (needed > this.buffer.capacity() / this.blockSize) return false;
+    Iterator<Slot> eldest = this.slots.values().iterator();
+    while (this.freeCount < needed && eldest.hasNext()) {
+      Slot slot = eldest.next();
+      eldest.remove();
+      dropped.add(new Dropped(slot.type, this.read(slot)));
+      this.release(slot);
+    }
+    int[] blocks = new int[needed];
+    for (int i = 0; i < needed; i++) {
+      blocks[i] = this.free[--this.freeCount];
+      int offset = i * this.blockSize;
+      ByteBuffer block = this.block(blocks[i]);
+      block.put(bytes, offset, Math.min(this.blockSize, bytes.length - offset));
+    }
+    Slot slot = new Slot(key, catchable.getClass(), time, bytes.length, blocks, this.stored++);
+    this.slots.put(key, slot);
+    this.deadlines.add(slot);
+    return true;
+  }
+
+  /**
+   * Removes an object and deserializes it.
+   *
+   * @param key the key of the object
+   * @param clazz the class that the object must be assignable to
+   * @param dropped the list where the object is added if it should have been removed already
+   * @return the object and its removal time or null if there's no object with the key, it is not an
+   *     instance of the class or it should have been removed already
+   */
+  synchronized Map.Entry<Catchable, Long> take(
+      @NonNull Object key, @NonNull Class<?> clazz, @NonNull List<Dropped> dropped) {
+    Slot slot = this.slots.get(key);
+    if (slot == null || !clazz.isAssignableFrom(slot.type)) return null;
+    this.slots.remove(key);
+    byte[] bytes = this.read(slot);
+    this.release(slot);
+    if (slot.time <= System.currentTimeMillis()) {
+      dropped.add(new Dropped(slot.type, bytes));
+      return null;
+    }
+    Catchable catchable = this.gson.fromJson(new String(bytes, StandardCharsets.UTF_8), slot.type);
+    return catchable == null ? null : new AbstractMap.SimpleEntry<>(catchable, slot.time);
+  }
+
+  /**
+   * Removes the objects that should have been removed already so their blocks can be used again.
+   * Only the objects that expired are visited
+   *
+   * @param now the current time in millis
+   * @param dropped the list where the removed objects are added
+   */
+  synchronized void expire(long now, @NonNull List<Dropped> dropped) {
+    while (!this.deadlines.isEmpty() && this.deadlines.first().time <= now) {
+      Slot slot = this.deadlines.pollFirst();
+      this.slots.remove(slot.key);
+      dropped.add(new Dropped(slot.type, this.read(slot)));
+      this.release(slot);
+    }
+  }
+
+  /**
+   * Deserializes an object that was dropped.
+   *
+   * @param dropped the dropped object
+   * @return the object or null if it was serialized as null
+   */
+  Catchable read(@NonNull Dropped dropped) {
+    return this.gson.fromJson(new String(dropped.bytes, StandardCharsets.UTF_8), dropped.type);
+  }
+
+  /**
+   * Removes the objects of a type that match a predicate. The objects are copied while holding the
+   * lock of the tier but they are deserialized and tested without it. Objects that are replaced
+   * while they are tested are kept
+   *
+   * @param clazz the class of the objects
+   * @param predicate the predicate to match the objects to remove
+   * @param <T> the type of the objects
+   * @return the number of removed objects
+   */
+  <T extends Catchable> int removeIf(@NonNull Class<T> clazz, @NonNull Predicate<T> predicate) {
+    Map<Object, Slot> candidates = new HashMap<>();
+    Map<Slot, byte[]> copies = new HashMap<>();
+    synchronized (this) {
+      this.slots.forEach(
+          (key, slot) -> {
+            if (!clazz.isAssignableFrom(slot.type)) return;
+            candidates.put(key, slot);
+            copies.put(slot, this.read(slot));
+          });
+    }
+    int removed = 0;
+    for (Map.Entry<Object, Slot> entry : candidates.entrySet()) {
+      Slot slot = entry.getValue();
+      Catchable catchable =
+          this.gson.fromJson(new String(copies.get(slot), StandardCharsets.UTF_8), slot.type);
+      if (catchable == null || !predicate.test(clazz.cast(catchable))) continue;
+      synchronized (this) {
+        if (this.slots.remove(entry.getKey(), slot)) {
+          this.release(slot);
+          removed++;
+        }
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Removes an object without deserializing it.
+   *
+   * @param key the key of the object
+   * @return whether there was an object with the key
+   */
+  synchronized boolean remove(@NonNull Object key) {
+    Slot slot = this.slots.remove(key);
+    this.release(slot);
+    return slot != null;
+  }
+
+  /**
+   * Copies the bytes of a slot. The slot must be stored
+   *
+   * @param slot the slot to copy
+   * @return the serialized object
+   */
+  @NonNull
+  private byte[] read(@NonNull Slot slot) {
+    byte[] bytes = new byte[slot.length];
+    for (int i = 0; i < slot.blocks.length; i++) {
+      int offset = i * this.blockSize;
+      this.block(slot.blocks[i]).get(bytes, offset, Math.min(this.blockSize, slot.length - offset));
+    }
+    return bytes;
+  }
+
+  /**
+   * Get a view of a block of the buffer.
+   *
+   * @param index the index of the block
+   * @return the view of the block
+   */
+  @NonNull
+  private ByteBuffer block(int index) {
+    ByteBuffer block = this.buffer.duplicate();
+    block.position(index * this.blockSize);
+    block.limit(block.position() + this.blockSize);
+    return block;
+  }
+
+  /**
+   * Frees the blocks used by a slot and stops tracking its time. The slot must have been removed
+   * from the stored objects
+   *
+   * @param slot the slot to free. This may be null
+   */
+  private void release(Slot slot) {
+    if (slot == null) return;
+    this.deadlines.remove(slot);
+    for (int block : slot.blocks) this.free[this.freeCount++] = block;
+  }
+
+  /** Removes every object without deserializing them. */
+  synchronized void clear() {
+    this.slots.values().forEach(this::release);
+    this.slots.clear();
+  }
+
+  /**
+   * Get the number of objects stored.
+   *
+   * @return the number of objects
+   */
+  public synchronized int size() {
+    return this.slots.size();
+  }
+
+  /**
+   * Get the number of bytes used by the stored objects. This includes the unused space of the last
+   * block of each object
+   *
+   * @return the number of bytes used
+   */
+  public synchronized long getUsedBytes() {
+    return (long) (this.free.length - this.freeCount) * this.blockSize;
+  }
+
+  /**
+   * Get the number of bytes allocated outside of the heap.
+   *
+   * @return the capacity of the tier
+   */
+  public long getCapacity() {
+    return this.buffer.capacity();
+  }
+
+  /**
+   * An object dropped from the tier. It is copied from the buffer so it can be deserialized without
+   * holding the lock of the tier.
+   */
+  static final class Dropped {
+
+    @NonNull private final Class<? extends Catchable> type;
+    @NonNull private final byte[] bytes;
+
+    private Dropped(@NonNull Class<? extends Catchable> type, @NonNull byte[] bytes) {
+      this.type = type;
+      this.bytes = bytes;
+    }
+  }
+
+  /** A stored object. */
+  private static final class Slot {
+
+    /** Sorts slots by their time and the order in which they were stored. */
+    @NonNull
+    private static final Comparator<Slot> ORDER =
+        Comparator.<Slot>comparingLong(slot -> slot.time).thenComparingLong(slot -> slot.sequence);
+
+    @NonNull private final Object key;
+    @NonNull private final Class<? extends Catchable> type;
+    private final long time;
+    private final int length;
+    @NonNull private final int[] blocks;
+    private final long sequence;
+
+    private Slot(
+        @NonNull Object key,
+        @NonNull Class<? extends Catchable> type,
+        long time,
+        int length,
+        @NonNull int[] blocks,
+        long sequence) {
+      this.key = key;
+      this.type = type;
+      this.time = time;
+      this.length = length;
+      this.blocks = blocks;
+      this.sequence = sequence;
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package me.googas.net.cache;
+
+/** The reason why an object was removed from a {@link Cache}. */
+public enum RemovalCause {
+  /** The time to remove of the object was reached. */
+  EXPIRED,
+  /** The object was evicted because the cache exceeded its maximum size or weight. */
+  SIZE,
+  /** The object was cleared by the garbage collector before it expired. */
+  COLLECTED,
+  /** The object was removed using {@link Cache#remove(Catchable)}. */
+  EXPLICIT
+}
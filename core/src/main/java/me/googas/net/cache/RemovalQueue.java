@@ -0,0 +1,183 @@
+package me.googas.net.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.NonNull;
+
+/**
+ * Calls {@link Catchable#onRemove()} of the objects removed from a {@link MemoryCache} in an {@link
+ * Executor} so that slow removals do not stall {@link MemoryCache#run()}.
+ *
+ * <p>Removed objects wait in a bounded queue and are handed to the executor in batches, a single
+ * batch runs at a time so callbacks are called in the same order the objects were removed. When the
+ * queue is full the callback is called in the thread that removed the object, this slows down the
+ * removals until the executor catches up and it is counted in {@link #getBackpressured()}
+ *
+ * <p>A batch that the executor accepted but has not started after a second is given again, so an
+ * executor that drops tasks silently does not stop the callbacks
+ */
+public class RemovalQueue {
+
+  /** The state of the queue when no batch is running or waiting in the executor. */
+  private static final long IDLE = 0;
+
+  /** The state of the queue when a batch is running. */
+  private static final long RUNNING = Long.MIN_VALUE;
+
+  /** The nanos after which a batch that has not started is given to the executor again. */
+  private static final long STALL = TimeUnit.SECONDS.toNanos(1);
+
+  /** The cache that removes the objects. */
+  @NonNull private final Cache cache;
+
+  /** The executor in which the batches are run. */
+  @NonNull private final Executor executor;
+
+  /** The maximum number of callbacks in a batch. */
+  private final int batchSize;
+
+  /** The objects that are waiting for their callback. */
+  @NonNull private final BlockingQueue<Catchable> queue;
+
+  /**
+   * {@link #IDLE}, {@link #RUNNING} or the {@link System#nanoTime()} in which a batch was given to
+   * the executor.
+   */
+  @NonNull private final AtomicLong draining = new AtomicLong(RemovalQueue.IDLE);
+
+  @NonNull private final LongAdder completed = new LongAdder();
+  @NonNull private final LongAdder failed = new LongAdder();
+  @NonNull private final LongAdder backpressured = new LongAdder();
+
+  /**
+   * Create the queue.
+   *
+   * @param cache the cache that removes the objects
+   * @param executor the executor in which the batches are run
+   * @param batchSize the maximum number of callbacks in a batch
+   * @param capacity the maximum number of objects waiting for their callback
+   */
+  RemovalQueue(@NonNull Cache cache, @NonNull Executor executor, int batchSize, int capacity) {
+    if (batchSize < 1) throw new IllegalArgumentException("The batch size must be at least 1");
+    if (capacity < 1) throw new IllegalArgumentException("The capacity must be at least 1");
+    this.cache = cache;
+    this.executor = executor;
+    this.batchSize = batchSize;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * Queue the callback of a removed object.
+   *
+   * @param catchable the object that was removed
+   */
+  void submit(@NonNull Catchable catchable) {
+    if (this.queue.offer(catchable)) {
+      this.drain();
+    } else {
+      this.backpressured.increment();
+      this.call(catchable);
+    }
+  }
+
+  /**
+   * Gives a batch to the executor unless one is already running or waiting to run. The queue is
+   * checked again after each batch so objects queued while it was running are not left behind
+   */
+  private void drain() {
+    while (!this.queue.isEmpty()) {
+      long state = this.draining.get();
+      long now = System.nanoTime();
+      if (state == RemovalQueue.RUNNING) return;
+      if (state != RemovalQueue.IDLE && now - state < RemovalQueue.STALL) return;
+      long handoff = now == RemovalQueue.IDLE || now == RemovalQueue.RUNNING ? now + 1 : now;
+      if (!this.draining.compareAndSet(state, handoff)) continue;
+      try {
+        this.executor.execute(
+            () -> {
+              if (this.runBatch(handoff)) this.drain();
+            });
+        return;
+      } catch (RuntimeException e) {
+        // The executor rejected the batch so it is run in this thread
+        this.runBatch(handoff);
+      }
+    }
+  }
+
+  /**
+   * Runs a batch of callbacks unless it was given to the executor again because it stalled.
+   *
+   * @param handoff the time in which the batch was given to the executor
+   * @return whether the batch was run
+   */
+  private boolean runBatch(long handoff) {
+    if (!this.draining.compareAndSet(handoff, RemovalQueue.RUNNING)) return false;
+    try {
+      List<Catchable> batch = new ArrayList<>(Math.min(this.batchSize, this.queue.size()));
+      this.queue.drainTo(batch, this.batchSize);
+      batch.forEach(this::call);
+    } finally {
+      this.draining.set(RemovalQueue.IDLE);
+    }
+    return true;
+  }
+
+  /**
+   * Calls the callback of an object.
+   *
+   * @param catchable the object that was removed
+   */
+  private void call(@NonNull Catchable catchable) {
+    try {
+      catchable.onRemove();
+    } catch (Throwable e) {
+      this.failed.increment();
+      this.cache.getHandler().accept(e);
+    }
+    this.completed.increment();
+  }
+
+  /**
+   * Get the number of objects waiting for their callback.
+   *
+   * @return the number of objects in the queue
+   */
+  public int getPending() {
+    return this.queue.size();
+  }
+
+  /**
+   * Get the number of callbacks that have been called.
+   *
+   * @return the number of callbacks called including the ones that failed
+   */
+  public long getCompleted() {
+    return this.completed.sum();
+  }
+
+  /**
+   * Get the number of callbacks that threw an exception.
+   *
+   * @return the number of failed callbacks
+   */
+  public long getFailed() {
+    return this.failed.sum();
+  }
+
+  /**
+   * Get the number of callbacks that were called in the thread that removed the object because the
+   * queue was full.
+   *
+   * @return the number of callbacks that could not be queued
+   */
+  public long getBackpressured() {
+    return this.backpressured.sum();
+  }
+}
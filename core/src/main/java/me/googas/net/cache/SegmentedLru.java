@@ -0,0 +1,262 @@
+package me.googas.net.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.NonNull;
+
+/**
+ * A segmented least recently used eviction policy for {@link MemoryCache}.
+ *
+ * <p>References start in the probation segment and are moved to the protected segment the first
+ * time they are accessed again. When the protected segment exceeds its share of the maximum weight
+ * its least recently used references go back to probation. Victims are taken from the least
+ * recently used end of probation so objects that were only used once are evicted before the ones
+ * that are used often
+ *
+ * <p>Accesses are recorded only if the policy is not busy, losing some of them under contention is
+ * preferred to making readers wait. Additions and removals are never lost: they are buffered and
+ * applied in order by the thread that holds the lock, so writers only wait for it when too many
+ * writes are buffered
+ */
+final class SegmentedLru {
+
+  /** The share of the maximum weight that the protected segment may use. */
+  private static final double PROTECTED_SHARE = 0.8;
+
+  /** The number of buffered writes from which writers wait for the lock to apply them. */
+  private static final int MAXIMUM_BUFFERED = 1024;
+
+  @NonNull private final ReentrantLock lock = new ReentrantLock();
+
+  /** The additions and removals that have not been applied to the segments. */
+  @NonNull private final Queue<Write> writes = new ConcurrentLinkedQueue<>();
+
+  /** The number of buffered writes. */
+  @NonNull private final AtomicInteger buffered = new AtomicInteger();
+
+  @NonNull
+  private final LinkedHashMap<CacheReference, Boolean> probation =
+      new LinkedHashMap<>(16, 0.75f, true);
+
+  @NonNull
+  private final LinkedHashMap<CacheReference, Boolean> protect =
+      new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The maximum weight of the cache. */
+  private final long maximum;
+
+  /** Whether to use {@link Catchable#getWeight()} or count each reference as one. */
+  private final boolean weighted;
+
+  /** The total weight of the references in both segments. */
+  private long weight;
+
+  /** The weight of the references in the protected segment. */
+  private long protectedWeight;
+
+  /**
+   * Create the policy.
+   *
+   * @param maximum the maximum weight of the cache
+   * @param weighted whether to use {@link Catchable#getWeight()} or count each reference as one
+   */
+  SegmentedLru(long maximum, boolean weighted) {
+    if (maximum < 0) throw new IllegalArgumentException("The maximum cannot be negative");
+    this.maximum = maximum;
+    this.weighted = weighted;
+  }
+
+  /**
+   * Get the weight that a catchable will use in the policy.
+   *
+   * @param catchable the catchable to weight
+   * @return the weight of the catchable
+   */
+  int weigh(@NonNull Catchable catchable) {
+    if (!this.weighted) return 1;
+    int weight = catchable.getWeight();
+    if (weight < 0) throw new IllegalArgumentException(catchable + " has a negative weight");
+    return weight;
+  }
+
+  /**
+   * Adds a reference to the policy. If another thread is applying the buffered writes it evicts for
+   * this one too
+   *
+   * @param reference the reference that was added to the cache
+   * @return the references that must be evicted from the cache
+   */
+  @NonNull
+  List<CacheReference> add(@NonNull CacheReference reference) {
+    this.buffer(new Write(reference, true));
+    return this.drain(true);
+  }
+
+  /**
+   * Applies the buffered writes and takes the victims. Used to evict the references added while
+   * removals were being applied.
+   *
+   * @return the references that must be evicted from the cache
+   */
+  @NonNull
+  List<CacheReference> cleanUp() {
+    return this.drain(true);
+  }
+
+  /**
+   * Buffers a write.
+   *
+   * @param write the write to buffer
+   */
+  private void buffer(@NonNull Write write) {
+    this.writes.add(write);
+    this.buffered.incrementAndGet();
+  }
+
+  /**
+   * Applies the buffered writes unless another thread is already applying them. The writes buffered
+   * while the lock was held are applied after releasing it so none is left behind
+   *
+   * @param evict whether to take victims once the writes are applied
+   * @return the victims or an empty list
+   */
+  @NonNull
+  private List<CacheReference> drain(boolean evict) {
+    List<CacheReference> victims = Collections.emptyList();
+    while (!this.writes.isEmpty()) {
+      if (this.buffered.get() >= SegmentedLru.MAXIMUM_BUFFERED) {
+        this.lock.lock();
+      } else if (!this.lock.tryLock()) {
+        return victims;
+      }
+      try {
+        this.apply();
+        if (evict) {
+          List<CacheReference> taken = this.evict();
+          if (victims.isEmpty()) {
+            victims = taken;
+          } else {
+            victims.addAll(taken);
+          }
+        }
+      } finally {
+        this.lock.unlock();
+      }
+    }
+    return victims;
+  }
+
+  /** Applies the buffered writes. Must be called holding the lock. */
+  private void apply() {
+    Write write;
+    while ((write = this.writes.poll()) != null) {
+      this.buffered.decrementAndGet();
+      CacheReference reference = write.reference;
+      if (write.add) {
+        this.probation.put(reference, true);
+        this.weight += reference.weight;
+      } else if (this.probation.remove(reference) != null) {
+        this.weight -= reference.weight;
+      } else if (this.protect.remove(reference) != null) {
+        this.weight -= reference.weight;
+        this.protectedWeight -= reference.weight;
+      }
+    }
+  }
+
+  /**
+   * Records that a reference was accessed.
+   *
+   * @param reference the reference that was accessed
+   */
+  void access(@NonNull CacheReference reference) {
+    if (!this.lock.tryLock()) return;
+    try {
+      this.apply();
+      if (this.protect.get(reference) != null) return;
+      if (this.probation.remove(reference) == null) return;
+      this.protect.put(reference, true);
+      this.protectedWeight += reference.weight;
+      long protectedMaximum = (long) (this.maximum * SegmentedLru.PROTECTED_SHARE);
+      Iterator<CacheReference> iterator = this.protect.keySet().iterator();
+      while (this.protectedWeight > protectedMaximum && iterator.hasNext()) {
+        CacheReference demoted = iterator.next();
+        iterator.remove();
+        this.protectedWeight -= demoted.weight;
+        this.probation.put(demoted, true);
+      }
+    } finally {
+      this.lock.unlock();
+    }
+    // Writes buffered while the access held the lock
+    this.drain(false);
+  }
+
+  /**
+   * Removes a reference from the policy. Removals do not evict so the references added while they
+   * are applied are evicted by the next addition or {@link #cleanUp()}
+   *
+   * @param reference the reference that was removed from the cache
+   */
+  void remove(@NonNull CacheReference reference) {
+    this.buffer(new Write(reference, false));
+    this.drain(false);
+  }
+
+  /**
+   * Takes victims until the weight is below the maximum. Must be called holding the lock.
+   *
+   * @return the victims
+   */
+  @NonNull
+  private List<CacheReference> evict() {
+    if (this.weight <= this.maximum) return Collections.emptyList();
+    List<CacheReference> victims = new ArrayList<>();
+    while (this.weight > this.maximum) {
+      boolean fromProbation = !this.probation.isEmpty();
+      Iterator<CacheReference> iterator =
+          (fromProbation ? this.probation : this.protect).keySet().iterator();
+      if (!iterator.hasNext()) break;
+      CacheReference victim = iterator.next();
+      iterator.remove();
+      this.weight -= victim.weight;
+      if (!fromProbation) this.protectedWeight -= victim.weight;
+      victims.add(victim);
+    }
+    return victims;
+  }
+
+  /**
+   * Get the total weight of the references in the policy.
+   *
+   * @return the total weight
+   */
+  long getWeight() {
+    this.lock.lock();
+    try {
+      this.apply();
+      return this.weight;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /** An addition or a removal waiting to be applied. */
+  private static final class Write {
+
+    @NonNull private final CacheReference reference;
+    private final boolean add;
+
+    private Write(@NonNull CacheReference reference, boolean add) {
+      this.reference = reference;
+      this.add = add;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package me.googas.net.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+import lombok.NonNull;
+
+/**
+ * Records the statistics of a {@link Cache}. Counts are kept in {@link LongAdder} so recording is
+ * cheap even when many threads use the cache and it can stay enabled in production.
+ *
+ * @see CacheStats
+ */
+public final class StatsCounter {
+
+  /** A counter that does not record anything. Used by caches that do not keep statistics. */
+  @NonNull public static final StatsCounter DISABLED = new StatsCounter(false);
+
+  private final boolean enabled;
+  @NonNull private final LongAdder hits = new LongAdder();
+  @NonNull private final LongAdder misses = new LongAdder();
+  @NonNull private final LongAdder loadSuccesses = new LongAdder();
+  @NonNull private final LongAdder loadFailures = new LongAdder();
+  @NonNull private final LongAdder loadTime = new LongAdder();
+  @NonNull private final LongAdder[] evictions = new LongAdder[RemovalCause.values().length];
+
+  private StatsCounter(boolean enabled) {
+    this.enabled = enabled;
+    for (int i = 0; i < this.evictions.length; i++) this.evictions[i] = new LongAdder();
+  }
+
+  /** Create a counter that records statistics. */
+  public StatsCounter() {
+    this(true);
+  }
+
+  /**
+   * Records lookups that found an object.
+   *
+   * @param count the number of hits
+   */
+  public void recordHits(int count) {
+    if (this.enabled) this.hits.add(count);
+  }
+
+  /**
+   * Records lookups that did not find an object.
+   *
+   * @param count the number of misses
+   */
+  public void recordMisses(int count) {
+    if (this.enabled) this.misses.add(count);
+  }
+
+  /**
+   * Records a load that gave an object.
+   *
+   * @param nanos the time spent loading in nanoseconds
+   */
+  public void recordLoadSuccess(long nanos) {
+    if (!this.enabled) return;
+    this.loadSuccesses.increment();
+    this.loadTime.add(nanos);
+  }
+
+  /**
+   * Records a load that threw an exception.
+   *
+   * @param nanos the time spent loading in nanoseconds
+   */
+  public void recordLoadFailure(long nanos) {
+    if (!this.enabled) return;
+    this.loadFailures.increment();
+    this.loadTime.add(nanos);
+  }
+
+  /**
+   * Records that an object was removed from the cache.
+   *
+   * @param cause the cause of the removal
+   */
+  public void recordEviction(@NonNull RemovalCause cause) {
+    if (this.enabled) this.evictions[cause.ordinal()].increment();
+  }
+
+  /**
+   * Takes a snapshot of the recorded statistics.
+   *
+   * @param size the current number of objects in the cache
+   * @return the snapshot of the statistics
+   */
+  @NonNull
+  public CacheStats snapshot(long size) {
+    long[] evictions = new long[this.evictions.length];
+    for (int i = 0; i < evictions.length; i++) evictions[i] = this.evictions[i].sum();
+    return new CacheStats(
+        this.hits.sum(),
+        this.misses.sum(),
+        this.loadSuccesses.sum(),
+        this.loadFailures.sum(),
+        this.loadTime.sum(),
+        evictions,
+        size);
+  }
+}
@@ -0,0 +1,81 @@
+package me.googas.net.sockets.json;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import lombok.NonNull;
+import me.googas.net.api.exception.MessengerListenFailException;
+import me.googas.net.sockets.json.exception.JsonCommunicationException;
+
+/**
+ * A {@link JsonMessenger} that reads its socket in a thread of its own. The thread blocks in {@link
+ * #listen()} until a message is read and messages are written directly in the output stream of the
+ * socket
+ */
+public interface BlockingJsonMessenger extends JsonMessenger, Runnable {
+
+  /**
+   * Writes encoded bytes in the socket. Writes are serialized so messages from different threads
+   * are not mixed
+   *
+   * @param buffer the bytes to write
+   */
+  @Override
+  default void write(@NonNull ByteBuffer buffer) {
+    try {
+      OutputStream output = this.getSocket().getOutputStream();
+      synchronized (this.getWire()) {
+        output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        output.flush();
+      }
+    } catch (IOException e) {
+      if (!this.isClosed()) this.getThrowableHandler().accept(e);
+    }
+  }
+
+  /**
+   * Get the input line to receive messages.
+   *
+   * @return the input line
+   */
+  @NonNull
+  BufferedReader getInput();
+
+  /** Listens for messages until the messenger is closed or it fails to listen. */
+  @Override
+  default void run() {
+    while (true) {
+      try {
+        if (this.isClosed()) {
+          break;
+        } else {
+          this.listen();
+        }
+      } catch (MessengerListenFailException e) {
+        this.getThrowableHandler().accept(e);
+        this.close();
+        break;
+      }
+    }
+  }
+
+  /**
+   * Listens for incoming messages. This blocks until a message is read
+   *
+   * @throws MessengerListenFailException if the messenger fails to listen to new messages
+   */
+  default void listen() throws MessengerListenFailException {
+    try {
+      boolean open =
+          this.getWire()
+              .read(
+                  this.getSocket().getInputStream(),
+                  this::receive,
+                  line -> this.getThrowableHandler().accept(new JsonCommunicationException(line)));
+      if (!open) this.close();
+    } catch (IOException e) {
+      if (!this.isClosed()) throw new MessengerListenFailException(null, e);
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package me.googas.net.sockets.json;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import lombok.NonNull;
+import me.googas.net.api.messages.StarboxRequest;
+
+/**
+ * Sends a request to many messengers without waiting for each of them. The request is serialized
+ * once for each {@link Wire#getEncoding()} used by the messengers instead of once per messenger and
+ * the replies are gathered in a single future.
+ */
+public final class Broadcast {
+
+  private Broadcast() {}
+
+  /**
+   * Sends a request to many messengers. Each messenger waits for its reply on its own so a slow
+   * messenger only delays the future up to the timeout, messengers that do not reply in time or
+   * reply with an error are left out of the result and the exception is given to the handler
+   *
+   * @param messengers the messengers to send the request to. They must share the same gson
+   * @param request the request to send
+   * @param timeout the millis that each messenger waits for its reply
+   * @param writer the executor in which the request is written to each messenger. If it rejects a
+   *     write the request is written in the calling thread
+   * @param handler the handler of the exceptions of the messengers that did not reply
+   * @param <M> the type of messengers
+   * @param <T> the type of object requested
+   * @return a future which completes with the replies mapped by the messenger that sent them once
+   *     every messenger has replied or timed out
+   */
+  @NonNull
+  public static <M extends JsonMessenger, T> CompletableFuture<Map<M, T>> send(
+      @NonNull Collection<? extends M> messengers,
+      @NonNull StarboxRequest<T> request,
+      long timeout,
+      @NonNull Executor writer,
+      @NonNull Consumer<Throwable> handler) {
+    Map<Object, ByteBuffer> encoded = new HashMap<>();
+    Map<M, CompletableFuture<T>> futures = new HashMap<>();
+    for (M messenger : messengers) {
+      if (messenger.isClosed()) continue;
+      Wire wire = messenger.getWire();
+      ByteBuffer buffer =
+          encoded.computeIfAbsent(
+              wire.getEncoding(), encoding -> wire.encode(messenger.getGson(), request));
+      futures.put(messenger, messenger.await(request, timeout));
+      // Each messenger reads the shared bytes with its own position
+      ByteBuffer duplicate = buffer.duplicate();
+      try {
+        writer.execute(() -> messenger.write(duplicate));
+      } catch (RejectedExecutionException e) {
+        messenger.write(duplicate);
+      }
+    }
+    return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]))
+        .handle(
+            (ignored, e) -> {
+              Map<M, T> replies = new HashMap<>();
+              futures.forEach(
+                  (messenger, future) -> {
+                    try {
+                      replies.put(messenger, future.join());
+                    } catch (CompletionException ex) {
+                      handler.accept(ex.getCause() == null ? ex : ex.getCause());
+                    }
+                  });
+              return replies;
+            });
+  }
+}
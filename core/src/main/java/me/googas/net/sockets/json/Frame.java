@@ -0,0 +1,107 @@
+package me.googas.net.sockets.json;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A message read by a {@link FrameDecoder}. Messages in the {@link WireFormat#FRAMED} format are
+ * written as a header of {@link #HEADER} bytes followed by the payload while messages in the {@link
+ * WireFormat#LEGACY} format are read as frames without flags.
+ *
+ * <p>The header is made of the {@link #MAGIC} byte, a byte with the flags of the message and the
+ * length of the payload as a big-endian int. The lowest bits of the flags contain the id of the
+ * {@link me.googas.net.sockets.json.codec.MessageCodec} of the payload, the {@link #COMPRESSED}
+ * flag tells whether the payload has been compressed and the {@link #BATCH} flag whether it
+ * contains many messages
+ */
+public final class Frame {
+
+  /**
+   * The first byte of a framed message. It is not valid in UTF-8 so it can never start a message in
+   * the legacy format
+   */
+  public static final byte MAGIC = (byte) 0xFF;
+
+  /** The number of bytes of the header. */
+  public static final int HEADER = 6;
+
+  /** The mask of the flags which contain the id of the codec of the payload. */
+  public static final int CODEC = 0x07;
+
+  /** The flag of the frames which payload is compressed by a {@link FrameCompressor}. */
+  public static final int COMPRESSED = 0x08;
+
+  /** The flag of the frames which payload is a json array with many messages. */
+  public static final int BATCH = 0x10;
+
+  /** The flag of the frames that tell that a message sent could not be read. */
+  public static final int INVALID = 0x80;
+
+  /** The flags of the message. */
+  @Getter private final int flags;
+
+  /** The bytes of the message. */
+  @NonNull @Getter private final byte[] payload;
+
+  /**
+   * Create the frame.
+   *
+   * @param flags the flags of the message
+   * @param payload the bytes of the message
+   */
+  public Frame(int flags, @NonNull byte[] payload) {
+    this.flags = flags;
+    this.payload = payload;
+  }
+
+  /**
+   * Encodes a message in the framed format.
+   *
+   * @param flags the flags of the message
+   * @param payload the bytes of the message
+   * @return the buffer ready to be written
+   */
+  @NonNull
+  public static ByteBuffer encode(int flags, @NonNull byte[] payload) {
+    return Frame.encode(flags, payload, 0, payload.length);
+  }
+
+  /**
+   * Encodes part of an array as a message in the framed format.
+   *
+   * @param flags the flags of the message
+   * @param bytes the array that contains the bytes of the message
+   * @param offset the index of the first byte of the message
+   * @param length the number of bytes of the message
+   * @return the buffer ready to be written
+   */
+  @NonNull
+  public static ByteBuffer encode(int flags, @NonNull byte[] bytes, int offset, int length) {
+    ByteBuffer buffer = ByteBuffer.allocate(Frame.HEADER + length);
+    buffer.put(Frame.MAGIC).put((byte) flags).putInt(length).put(bytes, offset, length);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Get whether the message has a flag.
+   *
+   * @param flag the flag to check
+   * @return true if the message has the flag
+   */
+  public boolean is(int flag) {
+    return (this.flags & flag) != 0;
+  }
+
+  /**
+   * Get the payload as UTF-8 text.
+   *
+   * @return the text of the payload
+   */
+  @NonNull
+  public String text() {
+    return new String(this.payload, StandardCharsets.UTF_8);
+  }
+}
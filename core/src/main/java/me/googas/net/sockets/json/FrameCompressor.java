@@ -0,0 +1,126 @@
+package me.googas.net.sockets.json;
+
+import com.google.gson.JsonParseException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import lombok.NonNull;
+
+/**
+ * Compresses and decompresses the payload of frames using deflate. The {@link Deflater}, {@link
+ * Inflater} and the buffer in which payloads are compressed are reused by all the messages of a
+ * {@link Wire} so only the written frame and the decompressed payload are allocated per message.
+ *
+ * <p>Compressed payloads start with the length of the decompressed payload as a big-endian int
+ * followed by the deflate stream
+ */
+final class FrameCompressor {
+
+  /** The name of the compression in the handshake. */
+  @NonNull static final String DEFLATE = "deflate";
+
+  /** The bytes before the deflate stream in a compressed payload. */
+  private static final int LENGTH = 4;
+
+  /** The size from which the buffer is not kept once a payload has been compressed. */
+  private static final int KEEP = 64 * 1024;
+
+  /** The lock of the deflater and its buffer. */
+  @NonNull private final Object deflating = new Object();
+
+  /** The lock of the inflater. */
+  @NonNull private final Object inflating = new Object();
+
+  private Deflater deflater;
+  private Inflater inflater;
+
+  /** The buffer in which payloads are compressed. */
+  private byte[] buffer;
+
+  /**
+   * Compresses a payload and frames it.
+   *
+   * @param flags the flags of the frame, {@link Frame#COMPRESSED} is added to them
+   * @param payload the payload to compress
+   * @return the buffer ready to be written or null if the compressed payload is not smaller
+   */
+  ByteBuffer frame(int flags, @NonNull byte[] payload) {
+    synchronized (this.deflating) {
+      if (this.deflater == null) this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+      if (this.buffer == null || this.buffer.length < payload.length) {
+        this.buffer = new byte[payload.length];
+      }
+      this.deflater.reset();
+      this.deflater.setInput(payload);
+      this.deflater.finish();
+      int size = FrameCompressor.LENGTH;
+      while (!this.deflater.finished() && size < payload.length) {
+        size += this.deflater.deflate(this.buffer, size, payload.length - size);
+      }
+      ByteBuffer frame = null;
+      // Incompressible payloads are sent as they are
+      if (this.deflater.finished()) {
+        ByteBuffer.wrap(this.buffer).putInt(payload.length);
+        frame = Frame.encode(flags | Frame.COMPRESSED, this.buffer, 0, size);
+      }
+      if (this.buffer.length > FrameCompressor.KEEP) this.buffer = null;
+      return frame;
+    }
+  }
+
+  /**
+   * Decompresses a payload.
+   *
+   * @param payload the compressed payload
+   * @param maximum the maximum number of bytes of the decompressed payload
+   * @return the decompressed payload
+   * @throws JsonParseException if the payload is not valid or exceeds the maximum
+   */
+  @NonNull
+  byte[] decompress(@NonNull byte[] payload, int maximum) {
+    if (payload.length < FrameCompressor.LENGTH) {
+      throw new JsonParseException("The compressed message is too short");
+    }
+    int length = ByteBuffer.wrap(payload).getInt();
+    if (length < 0 || length > maximum) {
+      throw new JsonParseException("The message exceeds the maximum of " + maximum + " bytes");
+    }
+    byte[] decompressed = new byte[length];
+    synchronized (this.inflating) {
+      if (this.inflater == null) this.inflater = new Inflater();
+      this.inflater.reset();
+      this.inflater.setInput(
+          payload, FrameCompressor.LENGTH, payload.length - FrameCompressor.LENGTH);
+      try {
+        int size = 0;
+        while (size < length && !this.inflater.finished()) {
+          int inflated = this.inflater.inflate(decompressed, size, length - size);
+          if (inflated == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+            break;
+          }
+          size += inflated;
+        }
+        if (size != length) {
+          throw new JsonParseException("The compressed message does not match its length");
+        }
+      } catch (DataFormatException e) {
+        throw new JsonParseException("The compressed message is not valid", e);
+      }
+    }
+    return decompressed;
+  }
+
+  /** Releases the native resources of the deflater and inflater. They are created again if used. */
+  void end() {
+    synchronized (this.deflating) {
+      if (this.deflater != null) this.deflater.end();
+      this.deflater = null;
+      this.buffer = null;
+    }
+    synchronized (this.inflating) {
+      if (this.inflater != null) this.inflater.end();
+      this.inflater = null;
+    }
+  }
+}
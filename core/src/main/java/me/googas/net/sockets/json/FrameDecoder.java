@@ -0,0 +1,231 @@
+package me.googas.net.sockets.json;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import lombok.NonNull;
+
+/**
+ * Decodes the messages written by a {@link JsonMessenger} from bytes. Both {@link WireFormat} are
+ * decoded: the first byte of each message tells whether it is framed, in which case the payload is
+ * copied at once using the length in the header, or whether it is made of lines ended by a line
+ * containing '---'.
+ *
+ * <p>A decoder keeps the messages that have not been completed between calls so each connection
+ * must use its own decoder
+ */
+public final class FrameDecoder {
+
+  /** The line which ends a legacy message. */
+  @NonNull private static final byte[] END = "---".getBytes(StandardCharsets.UTF_8);
+
+  /** The prefix of the lines sent when a legacy message could not be read. */
+  @NonNull
+  private static final byte[] INVALID = "Invalid Message:".getBytes(StandardCharsets.UTF_8);
+
+  /** Waiting for the first byte of a message. */
+  private static final int START = 0;
+  /** Reading the header of a framed message. */
+  private static final int HEADER = 1;
+  /** Reading the payload of a framed message. */
+  private static final int PAYLOAD = 2;
+  /** Reading the lines of a legacy message. */
+  private static final int LINES = 3;
+
+  /** The maximum size of the legacy buffer that is kept between messages. */
+  private static final int RETAINED = 64 * 1024;
+
+  @NonNull private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER - 1);
+
+  /** The maximum number of bytes of a message. */
+  private final int maximum;
+
+  private int state = FrameDecoder.START;
+
+  /** The flags of the framed message being read. */
+  private int flags;
+
+  /** The payload of the framed message being read. */
+  private byte[] payload;
+
+  private int read;
+
+  /** The bytes of the legacy message being read. */
+  @NonNull private byte[] message = new byte[256];
+
+  private int messageLength;
+
+  /** The start of the current line in {@link #message}. */
+  private int line;
+
+  /**
+   * Create the decoder.
+   *
+   * @param maximum the maximum number of bytes of a message
+   */
+  public FrameDecoder(int maximum) {
+    if (maximum < 1) throw new IllegalArgumentException("The maximum must be positive");
+    this.maximum = maximum;
+  }
+
+  /**
+   * Decodes the bytes of a buffer. The buffer must be ready to be read and all its bytes are
+   * consumed.
+   *
+   * @param bytes the bytes to decode
+   * @param frames the consumer of the decoded messages
+   * @param invalid the consumer of the reasons sent by the peer when a message could not be read
+   * @throws IOException if a message exceeds the maximum number of bytes
+   */
+  public void decode(
+      @NonNull ByteBuffer bytes, @NonNull Consumer<Frame> frames, @NonNull Consumer<String> invalid)
+      throws IOException {
+    while (bytes.hasRemaining()) {
+      switch (this.state) {
+        case FrameDecoder.START:
+          if (bytes.get(bytes.position()) == Frame.MAGIC) {
+            bytes.get();
+            this.state = FrameDecoder.HEADER;
+          } else {
+            this.state = FrameDecoder.LINES;
+          }
+          break;
+        case FrameDecoder.HEADER:
+          this.readHeader(bytes);
+          if (this.state == FrameDecoder.PAYLOAD && this.payload.length == 0) {
+            this.complete(frames, invalid);
+          }
+          break;
+        case FrameDecoder.PAYLOAD:
+          int length = Math.min(bytes.remaining(), this.payload.length - this.read);
+          bytes.get(this.payload, this.read, length);
+          this.read += length;
+          if (this.read == this.payload.length) this.complete(frames, invalid);
+          break;
+        default:
+          this.readLines(bytes, frames, invalid);
+      }
+    }
+  }
+
+  /**
+   * Reads the header of a framed message.
+   *
+   * @param bytes the bytes to decode
+   * @throws IOException if the message exceeds the maximum number of bytes
+   */
+  private void readHeader(@NonNull ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining() && this.header.hasRemaining()) this.header.put(bytes.get());
+    if (this.header.hasRemaining()) return;
+    this.header.flip();
+    this.flags = this.header.get() & 0xFF;
+    int length = this.header.getInt();
+    this.header.clear();
+    if (length < 0 || length > this.maximum) {
+      throw new IOException("The message exceeds " + this.maximum + " bytes");
+    }
+    this.payload = new byte[length];
+    this.read = 0;
+    this.state = FrameDecoder.PAYLOAD;
+  }
+
+  /**
+   * Gives the framed message that has been read to the consumers.
+   *
+   * @param frames the consumer of the decoded messages
+   * @param invalid the consumer of the reasons sent by the peer when a message could not be read
+   */
+  private void complete(@NonNull Consumer<Frame> frames, @NonNull Consumer<String> invalid) {
+    Frame frame = new Frame(this.flags, this.payload);
+    this.payload = null;
+    this.state = FrameDecoder.START;
+    if (frame.is(Frame.INVALID)) {
+      invalid.accept(frame.text());
+    } else {
+      frames.accept(frame);
+    }
+  }
+
+  /**
+   * Reads the lines of a legacy message until the buffer is consumed or the message is completed.
+   *
+   * @param bytes the bytes to decode
+   * @param frames the consumer of the decoded messages
+   * @param invalid the consumer of the reasons sent by the peer when a message could not be read
+   * @throws IOException if the message exceeds the maximum number of bytes
+   */
+  private void readLines(
+      @NonNull ByteBuffer bytes, @NonNull Consumer<Frame> frames, @NonNull Consumer<String> invalid)
+      throws IOException {
+    while (bytes.hasRemaining()) {
+      byte b = bytes.get();
+      if (this.messageLength >= this.maximum) {
+        throw new IOException("The message exceeds " + this.maximum + " bytes");
+      }
+      if (this.messageLength == this.message.length) {
+        this.message =
+            Arrays.copyOf(this.message, (int) Math.min(this.maximum, this.message.length * 2L));
+      }
+      this.message[this.messageLength++] = b;
+      if (b == '\n' && this.line(frames, invalid)) return;
+    }
+  }
+
+  /**
+   * Called when a line of a legacy message has been completed.
+   *
+   * @param frames the consumer of the decoded messages
+   * @param invalid the consumer of the reasons sent by the peer when a message could not be read
+   * @return true if the line ended the message
+   */
+  private boolean line(@NonNull Consumer<Frame> frames, @NonNull Consumer<String> invalid) {
+    int end = this.messageLength - 1;
+    if (end > this.line && this.message[end - 1] == '\r') end--;
+    int length = end - this.line;
+    if (this.matches(FrameDecoder.END, length) && length == FrameDecoder.END.length) {
+      byte[] payload = Arrays.copyOf(this.message, this.line);
+      this.reset();
+      if (payload.length != 0) frames.accept(new Frame(0, payload));
+      return true;
+    } else if (this.matches(FrameDecoder.INVALID, length)) {
+      String reason = new String(this.message, this.line, length, StandardCharsets.UTF_8);
+      this.reset();
+      invalid.accept(reason);
+      return true;
+    } else if (length == 0 && this.line == 0) {
+      // Blank lines between messages are ignored
+      this.reset();
+      return true;
+    } else {
+      this.message[end] = '\n';
+      this.messageLength = end + 1;
+      this.line = this.messageLength;
+    }
+    return false;
+  }
+
+  /**
+   * Get whether the current line starts with a prefix.
+   *
+   * @param prefix the prefix to match
+   * @param length the length of the current line
+   * @return true if the line starts with the prefix
+   */
+  private boolean matches(@NonNull byte[] prefix, int length) {
+    if (length < prefix.length) return false;
+    for (int i = 0; i < prefix.length; i++) {
+      if (this.message[this.line + i] != prefix[i]) return false;
+    }
+    return true;
+  }
+
+  /** Prepares the decoder to read the next message. */
+  private void reset() {
+    if (this.message.length > FrameDecoder.RETAINED) this.message = new byte[256];
+    this.messageLength = 0;
+    this.line = 0;
+    this.state = FrameDecoder.START;
+  }
+}
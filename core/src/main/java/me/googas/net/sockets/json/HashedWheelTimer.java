@@ -0,0 +1,287 @@
+package me.googas.net.sockets.json;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.NonNull;
+
+/**
+ * A timer that keeps its timeouts in a wheel of buckets. Scheduling and cancelling a timeout take
+ * constant time regardless of how many timeouts are pending which makes it suitable for request
+ * timeouts where most of them are cancelled because the response arrives first.
+ *
+ * <p>A single thread moves through a bucket each tick and runs the timeouts that expired in it, so
+ * timeouts may run up to a tick late and tasks must be short. Timeouts further than a full turn of
+ * the wheel wait in their bucket for the remaining turns
+ */
+public class HashedWheelTimer {
+
+  private static final int WAITING = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  /** The maximum number of new timeouts moved into the wheel each tick. */
+  private static final int TRANSFER_PER_TICK = 100_000;
+
+  /** The duration of a tick in nanos. */
+  private final long tick;
+
+  /** The buckets of the wheel. */
+  @NonNull private final Bucket[] wheel;
+
+  /** The mask to get the bucket of a tick. */
+  private final int mask;
+
+  /** The {@link System#nanoTime()} in which the timer started. */
+  private final long start;
+
+  /** The timeouts that have been scheduled but are not in the wheel yet. */
+  @NonNull private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+
+  /** The timeouts that have been cancelled and must be removed from their bucket. */
+  @NonNull private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+  /** The number of timeouts that have not expired nor been cancelled. */
+  @NonNull private final AtomicLong pending = new AtomicLong();
+
+  /** The thread that moves through the wheel. */
+  @NonNull private final Thread worker;
+
+  /** Whether the timer has been stopped. */
+  private volatile boolean stopped;
+
+  /**
+   * Create and start the timer.
+   *
+   * @param tick the duration of a tick
+   * @param unit the unit of the duration of a tick
+   * @param buckets the number of buckets in the wheel. It is rounded up to a power of two
+   * @param name the name of the thread of the timer
+   * @throws IllegalArgumentException if the tick or the number of buckets are not positive
+   */
+  public HashedWheelTimer(long tick, @NonNull TimeUnit unit, int buckets, @NonNull String name) {
+    if (tick <= 0) throw new IllegalArgumentException("The tick must be positive");
+    if (buckets <= 0 || buckets > 1 << 30) {
+      throw new IllegalArgumentException("The number of buckets must be between 1 and 2^30");
+    }
+    int size = Integer.highestOneBit(buckets);
+    if (size < buckets) size <<= 1;
+    this.tick = unit.toNanos(tick);
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) this.wheel[i] = new Bucket();
+    this.mask = size - 1;
+    this.start = System.nanoTime();
+    this.worker = new Thread(this::work, name);
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Schedule a task to run once the delay has elapsed.
+   *
+   * @param task the task to run
+   * @param delay the delay before running the task
+   * @param unit the unit of the delay
+   * @return the timeout which can be used to cancel the task
+   * @throws IllegalStateException if the timer has been stopped
+   */
+  @NonNull
+  public Timeout schedule(@NonNull Runnable task, long delay, @NonNull TimeUnit unit) {
+    if (this.stopped) throw new IllegalStateException("The timer has been stopped");
+    Timeout timeout =
+        new Timeout(task, System.nanoTime() + Math.max(0, unit.toNanos(delay)) - this.start);
+    this.pending.incrementAndGet();
+    this.scheduled.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Get the number of timeouts that have not expired nor been cancelled.
+   *
+   * @return the number of pending timeouts
+   */
+  public long getPending() {
+    return this.pending.get();
+  }
+
+  /** Stops the timer. Pending timeouts will never run. */
+  public void stop() {
+    this.stopped = true;
+    this.worker.interrupt();
+  }
+
+  /** Moves through the wheel until the timer is stopped. */
+  private void work() {
+    long ticks = 0;
+    while (!this.stopped) {
+      long deadline = this.tick * (ticks + 1);
+      long sleep = deadline - (System.nanoTime() - this.start);
+      if (sleep > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        } catch (InterruptedException e) {
+          continue;
+        }
+      }
+      this.removeCancelled();
+      this.transfer(ticks);
+      this.wheel[(int) (ticks & this.mask)].expire(deadline);
+      ticks++;
+    }
+  }
+
+  /** Removes the cancelled timeouts from their bucket. */
+  private void removeCancelled() {
+    Timeout timeout;
+    while ((timeout = this.cancelled.poll()) != null) {
+      if (timeout.bucket != null) timeout.bucket.remove(timeout);
+    }
+  }
+
+  /**
+   * Moves the scheduled timeouts into their bucket.
+   *
+   * @param ticks the current tick of the wheel
+   */
+  private void transfer(long ticks) {
+    for (int i = 0; i < HashedWheelTimer.TRANSFER_PER_TICK; i++) {
+      Timeout timeout = this.scheduled.poll();
+      if (timeout == null) break;
+      if (timeout.state.get() != HashedWheelTimer.WAITING) continue;
+      long expires = timeout.deadline / this.tick;
+      timeout.rounds = (expires - ticks) / this.wheel.length;
+      this.wheel[(int) (Math.max(expires, ticks) & this.mask)].add(timeout);
+    }
+  }
+
+  /** A task that is waiting in the timer. */
+  public final class Timeout {
+
+    @NonNull private final Runnable task;
+
+    /** The nanos since the start of the timer in which the task must run. */
+    private final long deadline;
+
+    @NonNull private final AtomicInteger state = new AtomicInteger(HashedWheelTimer.WAITING);
+
+    /** The turns of the wheel left before the timeout expires. Only used by the worker */
+    private long rounds;
+
+    private Bucket bucket;
+    private Timeout next;
+    private Timeout previous;
+
+    private Timeout(@NonNull Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancels the timeout so its task never runs.
+     *
+     * @return true if the timeout was cancelled, false if it had already expired or been cancelled
+     */
+    public boolean cancel() {
+      if (!this.state.compareAndSet(HashedWheelTimer.WAITING, HashedWheelTimer.CANCELLED)) {
+        return false;
+      }
+      HashedWheelTimer.this.pending.decrementAndGet();
+      HashedWheelTimer.this.cancelled.add(this);
+      return true;
+    }
+
+    /**
+     * Get whether the timeout has been cancelled.
+     *
+     * @return true if the timeout was cancelled
+     */
+    public boolean isCancelled() {
+      return this.state.get() == HashedWheelTimer.CANCELLED;
+    }
+
+    /**
+     * Get whether the timeout has expired.
+     *
+     * @return true if the task has been run
+     */
+    public boolean isExpired() {
+      return this.state.get() == HashedWheelTimer.EXPIRED;
+    }
+
+    /** Runs the task unless the timeout was cancelled. */
+    private void expire() {
+      if (!this.state.compareAndSet(HashedWheelTimer.WAITING, HashedWheelTimer.EXPIRED)) return;
+      HashedWheelTimer.this.pending.decrementAndGet();
+      try {
+        this.task.run();
+      } catch (Throwable e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+      }
+    }
+  }
+
+  /** A bucket of the wheel. It is a linked list of timeouts only accessed by the worker */
+  private final class Bucket {
+
+    private Timeout head;
+    private Timeout tail;
+
+    /**
+     * Adds a timeout at the end of the bucket.
+     *
+     * @param timeout the timeout to add
+     */
+    private void add(@NonNull Timeout timeout) {
+      timeout.bucket = this;
+      if (this.head == null) {
+        this.head = this.tail = timeout;
+      } else {
+        this.tail.next = timeout;
+        timeout.previous = this.tail;
+        this.tail = timeout;
+      }
+    }
+
+    /**
+     * Removes a timeout from the bucket.
+     *
+     * @param timeout the timeout to remove
+     * @return the timeout that followed the removed one
+     */
+    private Timeout remove(@NonNull Timeout timeout) {
+      Timeout next = timeout.next;
+      if (timeout.previous != null) timeout.previous.next = next;
+      if (next != null) next.previous = timeout.previous;
+      if (timeout == this.head) this.head = next;
+      if (timeout == this.tail) this.tail = timeout.previous;
+      timeout.next = null;
+      timeout.previous = null;
+      timeout.bucket = null;
+      return next;
+    }
+
+    /**
+     * Runs the timeouts that expire in this turn of the wheel.
+     *
+     * @param deadline the nanos since the start of the timer in which the current tick ends
+     */
+    private void expire(long deadline) {
+      Timeout timeout = this.head;
+      while (timeout != null) {
+        if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+          Timeout next = this.remove(timeout);
+          timeout.expire();
+          timeout = next;
+        } else if (timeout.isCancelled()) {
+          timeout = this.remove(timeout);
+        } else {
+          timeout.rounds--;
+          timeout = timeout.next;
+        }
+      }
+    }
+  }
+}
@@ -1,13 +1,18 @@
 package me.googas.net.sockets.json;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import java.io.BufferedReader;
-import java.io.IOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import lombok.NonNull;
@@ -19,21 +24,87 @@ import me.googas.net.api.messages.Message;
 import me.googas.net.api.messages.Request;
 import me.googas.net.api.messages.Response;
 import me.googas.net.api.messages.StarboxRequest;
-import me.googas.net.sockets.json.exception.JsonCommunicationException;
 import me.googas.net.sockets.json.exception.JsonExternalCommunicationException;
 import me.googas.net.sockets.json.exception.JsonInternalCommunicationException;
 import me.googas.net.sockets.json.server.JsonClientThread;
+import me.googas.net.sockets.json.server.NioJsonConnection;
 
-/** A {@link Messenger} that works with json messages. */
-public interface JsonMessenger extends Messenger, Runnable {
+/**
+ * A {@link Messenger} that works with json messages. How messages are read and written depends on
+ * the transport: {@link BlockingJsonMessenger} reads them in its own thread while a {@link
+ * NioJsonConnection} is read by the I/O threads of its server
+ */
+public interface JsonMessenger extends Messenger {
 
   /**
-   * Prints a line in the output stream.
+   * Sends a message to the peer in the format given by {@link #getWire()}.
    *
-   * @param line the line to print
+   * @param line the json of the message
    */
   default void printLine(@NonNull String line) {
-    this.getOutput().println(line + "\n---");
+    this.write(this.getWire().encode(line));
+  }
+
+  /**
+   * Sends a message to the peer encoding it with the format and codec given by {@link #getWire()}.
+   *
+   * @param message the message to send
+   */
+  default void sendMessage(@NonNull Message message) {
+    this.write(this.getWire().encode(this.getGson(), message));
+  }
+
+  /**
+   * Sends many messages to the peer in a single write. If the peer agreed to it in the handshake
+   * they are sent in a single batch frame
+   *
+   * @param messages the messages to send
+   * @see Wire#encodeAll(Gson, List)
+   */
+  default void sendMessages(@NonNull List<? extends Message> messages) {
+    if (messages.isEmpty()) return;
+    this.write(this.getWire().encodeAll(this.getGson(), messages));
+  }
+
+  /**
+   * Writes encoded bytes to the peer. Messages written from different threads must not be mixed
+   *
+   * @param buffer the bytes to write
+   */
+  void write(@NonNull ByteBuffer buffer);
+
+  /**
+   * Agrees with the peer on the protocol to use in the wire. Until the peer answers messages are
+   * written in the {@link WireFormat#LEGACY} format, peers that do not know the handshake answer it
+   * as any request without receptor so the legacy format keeps being used with them
+   *
+   * @return a future which completes with the format in which messages are written after the
+   *     handshake
+   */
+  @NonNull
+  default CompletableFuture<WireFormat> handshake() {
+    Wire wire = this.getWire();
+    return this.send(new StarboxRequest<>(JsonObject.class, Wire.HANDSHAKE, wire.offer()))
+        .handle(
+            (answer, e) -> {
+              if (answer != null) wire.apply(answer);
+              return wire.getFormat();
+            });
+  }
+
+  /**
+   * Answers the handshake sent by the peer. It is answered in the format that was being used and
+   * the agreed protocol is used for the following messages
+   *
+   * @param request the handshake request
+   */
+  default void acceptHandshake(@NonNull ReceivedJsonRequest request) {
+    Wire wire = this.getWire();
+    JsonObject answer = wire.answer(request.getParameters());
+    Response<JsonObject> response = new Response<>(request.getId(), answer);
+    response.setError(false);
+    this.sendMessage(response);
+    wire.apply(answer);
   }
 
   /**
@@ -44,9 +115,16 @@ public interface JsonMessenger extends Messenger, Runnable {
    */
   @NonNull
   default Optional<AwaitingRequest<?>> getRequest(@NonNull UUID uuid) {
-    return this.getRequests().keySet().stream()
-        .filter(awaiting -> awaiting.getRequest().getId().equals(uuid))
-        .findFirst();
+    return Optional.ofNullable(this.getRequests().get(uuid));
+  }
+
+  /**
+   * Get the number of requests that have been sent and are waiting for a response.
+   *
+   * @return the number of requests in flight
+   */
+  default int getInFlight() {
+    return this.getRequests().size();
   }
 
   /**
@@ -61,54 +139,166 @@ public interface JsonMessenger extends Messenger, Runnable {
   }
 
   /**
-   * Get a receptor by its method.
+   * Get a receptor by its method. If the receptors are a {@link ReceptorSet} it is found in its
+   * index
    *
    * @param method the method to match
    * @return the possible receptor in an optional wrapper
    */
   @NonNull
   default Optional<JsonReceptor> getReceptor(@NonNull String method) {
-    return this.getReceptors().stream()
+    Collection<JsonReceptor> receptors = this.getReceptors();
+    if (receptors instanceof ReceptorSet) {
+      return Optional.ofNullable(((ReceptorSet) receptors).get(method));
+    }
+    return receptors.stream()
         .filter(receptor -> receptor.getRequestMethod().equalsIgnoreCase(method))
         .findFirst();
   }
 
   /**
-   * Accepts a request.
+   * Accepts a request. The request is handled in the {@link #getExecutor()} using {@link
+   * #handleRequest(ReceivedJsonRequest)}. If the {@link #getLimiter()} or the executor cannot take
+   * the request it is answered with an error with the cause {@link RequestLimiter#BUSY} or {@link
+   * RequestLimiter#OVERLOADED}
    *
    * @param request the request to be accepted
    */
   default void acceptRequest(@NonNull ReceivedJsonRequest request) {
-    CompletableFuture.runAsync(
-        () -> {
-          Optional<JsonReceptor> optional = this.getReceptor(request);
-          Response<?> response;
-          if (optional.isPresent()) {
-            try {
-              JsonReceptor receptor = optional.get();
-              response =
-                  new Response<>(request.getId(), receptor.execute(this, request, this.getGson()));
-              response.setError(false);
-            } catch (JsonExternalCommunicationException e) {
-              response = new Response<>(request.getId(), new Error(e.getMessage()));
-            } catch (JsonInternalCommunicationException e) {
-              response =
-                  new Response<>(request.getId(), new Error("Internal Error: " + e.getMessage()));
-              this.getThrowableHandler().accept(e);
-            }
-          } else {
-            response = new Response<>(request.getId(), null);
-            response.setError(false);
-          }
-          this.printLine(this.getGson().toJson(response));
-        });
+    RequestLimiter limiter = this.getLimiter();
+    if (!limiter.tryAcquire()) {
+      this.sendMessage(new Response<>(request.getId(), new Error(RequestLimiter.BUSY)));
+      return;
+    }
+    try {
+      this.getExecutor()
+          .execute(
+              () -> {
+                try {
+                  this.handleRequest(request);
+                } finally {
+                  limiter.release();
+                }
+              });
+    } catch (RejectedExecutionException e) {
+      limiter.release();
+      this.sendMessage(new Response<>(request.getId(), new Error(RequestLimiter.OVERLOADED)));
+    }
+  }
+
+  /**
+   * Get the limiter of the requests from the peer that are handled at the same time.
+   *
+   * @return the limiter of the requests
+   */
+  @NonNull
+  default RequestLimiter getLimiter() {
+    return RequestLimiter.UNLIMITED;
+  }
+
+  /**
+   * Get the executor in which requests are handled. By default it is {@link Workers#shared()}
+   *
+   * @return the executor of the requests
+   */
+  @NonNull
+  default Executor getExecutor() {
+    return Workers.shared();
+  }
+
+  /**
+   * Accepts many requests that were received together. The requests are handled concurrently in the
+   * {@link #getExecutor()} using {@link #respond(ReceivedJsonRequest)} and their responses are sent
+   * together once all of them are ready
+   *
+   * @param requests the requests to be accepted
+   */
+  default void acceptRequests(@NonNull List<ReceivedJsonRequest> requests) {
+    Executor executor = this.getExecutor();
+    RequestLimiter limiter = this.getLimiter();
+    List<CompletableFuture<Response<?>>> futures = new ArrayList<>(requests.size());
+    for (ReceivedJsonRequest request : requests) {
+      if (!limiter.tryAcquire()) {
+        futures.add(
+            CompletableFuture.completedFuture(
+                new Response<>(request.getId(), new Error(RequestLimiter.BUSY))));
+        continue;
+      }
+      try {
+        futures.add(
+            CompletableFuture.supplyAsync(
+                () -> {
+                  try {
+                    return this.respond(request);
+                  } catch (RuntimeException e) {
+                    // A single failing receptor must not leave the rest of the batch unanswered
+                    this.getThrowableHandler().accept(e);
+                    return new Response<>(request.getId(), new Error("Internal Error"));
+                  } finally {
+                    limiter.release();
+                  }
+                },
+                executor));
+      } catch (RejectedExecutionException e) {
+        limiter.release();
+        futures.add(
+            CompletableFuture.completedFuture(
+                new Response<>(request.getId(), new Error(RequestLimiter.OVERLOADED))));
+      }
+    }
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+        .thenRun(
+            () -> {
+              List<Response<?>> responses = new ArrayList<>(futures.size());
+              for (CompletableFuture<Response<?>> future : futures) responses.add(future.join());
+              this.sendMessages(responses);
+            });
+  }
+
+  /**
+   * Handles a request in the calling thread. This executes the receptor of the request and sends
+   * the response
+   *
+   * @param request the request to be handled
+   */
+  default void handleRequest(@NonNull ReceivedJsonRequest request) {
+    this.sendMessage(this.respond(request));
+  }
+
+  /**
+   * Executes the receptor of a request in the calling thread.
+   *
+   * @param request the request to respond
+   * @return the response to the request
+   */
+  @NonNull
+  default Response<?> respond(@NonNull ReceivedJsonRequest request) {
+    Optional<JsonReceptor> optional = this.getReceptor(request);
+    Response<?> response;
+    if (optional.isPresent()) {
+      try {
+        JsonReceptor receptor = optional.get();
+        response = new Response<>(request.getId(), receptor.execute(this, request, this.getGson()));
+        response.setError(false);
+      } catch (JsonExternalCommunicationException e) {
+        response = new Response<>(request.getId(), new Error(e.getMessage()));
+      } catch (JsonInternalCommunicationException e) {
+        response = new Response<>(request.getId(), new Error("Internal Error: " + e.getMessage()));
+        this.getThrowableHandler().accept(e);
+      }
+    } else {
+      response = new Response<>(request.getId(), null);
+      response.setError(false);
+    }
+    return response;
   }
 
   /**
    * Send a request.
    *
    * <p>This method will give you the option to change what to do in case of an exception such as a
-   * timeout
+   * timeout. The request times out after {@link #getTimeout()} like the ones sent using {@link
+   * #send(StarboxRequest)}
    *
    * @param request the request to send
    * @param consumer the method to execute when the result is given
@@ -120,11 +310,15 @@ public interface JsonMessenger extends Messenger, Runnable {
       @NonNull StarboxRequest<T> request,
       @NonNull Consumer<Optional<T>> consumer,
       @NonNull Consumer<Throwable> exception) {
-    this.getRequests()
-        .put(
-            new AwaitingRequest<>(request, request.getClazz(), consumer, exception),
-            System.currentTimeMillis());
-    this.printLine(this.getGson().toJson(request));
+    this.send(request)
+        .whenComplete(
+            (result, e) -> {
+              if (e == null) {
+                consumer.accept(Optional.ofNullable(result));
+              } else {
+                exception.accept(e);
+              }
+            });
   }
 
   /**
@@ -142,20 +336,20 @@ public interface JsonMessenger extends Messenger, Runnable {
   void setLastMessage(long millis);
 
   /**
-   * Get the output line to send messages.
+   * Get the protocol that this messenger uses in the wire.
    *
-   * @return the output line to send messages
+   * @return the protocol of the messenger
    */
   @NonNull
-  PrintWriter getOutput();
+  Wire getWire();
 
   /**
-   * Get the input line to receive messages.
+   * Get the output line to send messages.
    *
-   * @return the input line
+   * @return the output line to send messages
    */
   @NonNull
-  BufferedReader getInput();
+  PrintWriter getOutput();
 
   /**
    * Get the receptors that the messenger is capable of using.
@@ -180,12 +374,14 @@ public interface JsonMessenger extends Messenger, Runnable {
   boolean isClosed();
 
   /**
-   * Get the request that this messenger has sent and the time when they were sent.
+   * Get the requests that this messenger has sent and are waiting for a response mapped by their
+   * id. The map must be safe to use from many threads as responses are received in the thread of
+   * the messenger while requests are sent from any thread
    *
-   * @return the request that this messenger has sent
+   * @return the requests that this messenger has sent
    */
   @NonNull
-  Map<AwaitingRequest<?>, Long> getRequests();
+  Map<UUID, AwaitingRequest<?>> getRequests();
 
   /**
    * Get the gson instance that this messenger may use.
@@ -219,102 +415,238 @@ public interface JsonMessenger extends Messenger, Runnable {
   @NonNull
   StringBuilder getBuilder();
 
-  @Override
-  default void run() {
-    while (true) {
-      try {
-        if (this.isClosed()) {
-          break;
-        } else {
-          this.listen();
-        }
-      } catch (MessengerListenFailException e) {
-        this.getThrowableHandler().accept(e);
-        this.close();
-        break;
+  /**
+   * Receives a message that was read by this messenger.
+   *
+   * @param frame the message that was read
+   * @see #receive(JsonElement)
+   */
+  default void receive(@NonNull Frame frame) {
+    this.setLastMessage(System.currentTimeMillis());
+    JsonElement element;
+    try {
+      element = this.getWire().parse(this.getGson(), frame);
+      if (frame.is(Frame.BATCH) && !element.isJsonArray()) {
+        throw new JsonParseException("Batches must be json arrays");
       }
+    } catch (RuntimeException e) {
+      this.reject(e);
+      return;
+    }
+    if (frame.is(Frame.BATCH)) {
+      this.receiveAll(element.getAsJsonArray());
+    } else {
+      this.receive(element);
     }
   }
 
-  @Override
-  default void listen() throws MessengerListenFailException {
+  /**
+   * Receives a message that cannot be handled because this messenger is overloaded. The requests in
+   * it are answered with an error without being handled while other messages are received as usual
+   *
+   * @param frame the message that was read
+   * @param cause the cause of the error sent in response to the requests
+   */
+  default void refuse(@NonNull Frame frame, @NonNull String cause) {
+    this.setLastMessage(System.currentTimeMillis());
+    Gson gson = this.getGson();
+    JsonArray messages;
     try {
-      StringBuilder builder = this.getBuilder();
-      builder.setLength(0);
-      String line;
-      boolean closed = false;
-      while ((line = this.getInput().readLine()) != null
-          || (closed = this.getInput().read() == -1)) {
-        if (closed) break;
-        if (line.startsWith("Invalid Message:")) {
-          this.getThrowableHandler().accept(new JsonCommunicationException(line));
-          builder.setLength(0);
-          break;
-        }
-        if (line.equalsIgnoreCase("---") || !this.getInput().ready()) {
-          break;
-        } else {
-          builder.append(line).append("\n");
-        }
+      JsonElement element = this.getWire().parse(gson, frame);
+      if (frame.is(Frame.BATCH) && element.isJsonArray()) {
+        messages = element.getAsJsonArray();
+      } else {
+        messages = new JsonArray();
+        messages.add(element);
       }
-      this.setLastMessage(System.currentTimeMillis());
-      if (builder.length() != 0) {
-        Gson gson = this.getGson();
-        String json = builder.toString();
+    } catch (RuntimeException e) {
+      this.reject(e);
+      return;
+    }
+    List<Response<?>> responses = new ArrayList<>();
+    for (JsonElement element : messages) {
+      if (element.isJsonObject() && element.getAsJsonObject().has("method")) {
         try {
-          Message message = gson.fromJson(json, Message.class);
-          if (message instanceof ReceivedJsonRequest) {
-            this.acceptRequest((ReceivedJsonRequest) message);
-          } else if (message instanceof Response) {
-            Optional<AwaitingRequest<?>> optional = this.getRequest(message.getId());
-            JsonObject object = gson.fromJson(json, JsonObject.class);
-            if (optional.isPresent()) {
-              AwaitingRequest<?> awaitingRequest = optional.get();
-              if (((Response<?>) message).isError()) {
-                if (!object.get("object").isJsonNull()) {
-                  awaitingRequest.completeExceptionally(
-                      new JsonInternalCommunicationException(
-                          gson.fromJson(object.get("object"), Error.class).getCause()));
-                } else {
-                  awaitingRequest.complete(null);
-                }
-              } else {
-                if (object.get("object") != null && !object.get("object").isJsonNull()) {
-                  awaitingRequest.completeFromJson(gson, object.get("object"));
-                } else {
-                  awaitingRequest.complete(null);
-                }
-              }
-              this.getRequests().remove(awaitingRequest);
-            }
+          ReceivedJsonRequest request = gson.fromJson(element, ReceivedJsonRequest.class);
+          if (Wire.HANDSHAKE.equals(request.getMethod())) {
+            this.acceptHandshake(request);
+          } else {
+            responses.add(new Response<>(request.getId(), new Error(cause)));
           }
         } catch (RuntimeException e) {
-          if (this instanceof JsonClientThread) {
-            this.printLine("Invalid Message: " + e.getMessage());
-          } else {
-            this.getThrowableHandler().accept(e);
+          this.reject(e);
+        }
+      } else {
+        this.receive(element);
+      }
+    }
+    this.sendMessages(responses);
+  }
+
+  /**
+   * Receives the messages of a batch. Requests are given together to {@link #acceptRequests(List)}
+   * and the rest of messages to {@link #receive(JsonElement)}
+   *
+   * @param messages the messages in the batch
+   */
+  default void receiveAll(@NonNull JsonArray messages) {
+    Gson gson = this.getGson();
+    List<ReceivedJsonRequest> requests = new ArrayList<>();
+    for (JsonElement element : messages) {
+      if (element.isJsonObject() && element.getAsJsonObject().has("method")) {
+        try {
+          ReceivedJsonRequest request = gson.fromJson(element, ReceivedJsonRequest.class);
+          if (!Wire.HANDSHAKE.equals(request.getMethod())) {
+            requests.add(request);
+            continue;
           }
+        } catch (RuntimeException e) {
+          this.reject(e);
+          continue;
+        }
+      }
+      this.receive(element);
+    }
+    if (!requests.isEmpty()) this.acceptRequests(requests);
+  }
+
+  /**
+   * Receives a message that was read by this messenger.
+   *
+   * @param json the message as a json string
+   * @see #receive(JsonElement)
+   */
+  default void receive(@NonNull String json) {
+    JsonElement element;
+    try {
+      element = JsonParser.parseString(json);
+    } catch (RuntimeException e) {
+      this.reject(e);
+      return;
+    }
+    this.receive(element);
+  }
+
+  /**
+   * Receives a message that was read by this messenger. Requests are given to {@link
+   * #acceptRequest(ReceivedJsonRequest)} and responses complete the request that is waiting for
+   * them
+   *
+   * @param element the parsed message
+   */
+  default void receive(@NonNull JsonElement element) {
+    Gson gson = this.getGson();
+    try {
+      if (!element.isJsonObject()) throw new JsonParseException("Messages must be json objects");
+      JsonObject object = element.getAsJsonObject();
+      if (object.has("method")) {
+        ReceivedJsonRequest request = gson.fromJson(object, ReceivedJsonRequest.class);
+        if (Wire.HANDSHAKE.equals(request.getMethod())) {
+          this.acceptHandshake(request);
+        } else {
+          this.acceptRequest(request);
         }
+        return;
       }
-    } catch (IOException e) {
-      if (!this.isClosed()) throw new MessengerListenFailException(null, e);
+      AwaitingRequest<?> awaitingRequest =
+          this.getRequests().remove(gson.fromJson(object.get("id"), UUID.class));
+      if (awaitingRequest == null) return;
+      JsonElement value = object.get("object");
+      boolean present = value != null && !value.isJsonNull();
+      JsonElement error = object.get("error");
+      if (error == null || error.getAsBoolean()) {
+        if (present) {
+          awaitingRequest.completeExceptionally(
+              new JsonInternalCommunicationException(gson.fromJson(value, Error.class).getCause()));
+        } else {
+          awaitingRequest.complete(null);
+        }
+      } else if (present) {
+        awaitingRequest.completeFromJson(gson, value);
+      } else {
+        awaitingRequest.complete(null);
+      }
+    } catch (RuntimeException e) {
+      this.reject(e);
+    }
+  }
+
+  /**
+   * Called when a message could not be read. Servers tell the peer that its message was invalid
+   * while clients give the exception to the {@link #getThrowableHandler()}
+   *
+   * @param e the reason why the message could not be read
+   */
+  default void reject(@NonNull RuntimeException e) {
+    if (this instanceof JsonClientThread || this instanceof NioJsonConnection) {
+      this.write(this.getWire().invalid(e.getMessage()));
+    } else {
+      this.getThrowableHandler().accept(e);
     }
   }
 
   @Override
   default <T> @NonNull CompletableFuture<T> send(@NonNull StarboxRequest<T> request) {
+    CompletableFuture<T> future = this.await(request);
+    this.sendMessage(request);
+    return future;
+  }
+
+  /**
+   * Sends many requests in a single write. If the peer agreed to it in the handshake they are sent
+   * in a single batch frame, run concurrently by the peer and answered in a single batch frame
+   *
+   * @param requests the requests to send
+   * @return the futures of the requests in the same order as the requests
+   */
+  @Override
+  default @NonNull List<CompletableFuture<?>> sendAll(
+      @NonNull Collection<? extends StarboxRequest<?>> requests) {
+    List<CompletableFuture<?>> futures = new ArrayList<>(requests.size());
+    for (StarboxRequest<?> request : requests) futures.add(this.await(request));
+    this.sendMessages(new ArrayList<>(requests));
+    return futures;
+  }
+
+  /**
+   * Makes a request wait for its response before it is sent. The request times out if the response
+   * is not received after {@link #getTimeout()}
+   *
+   * @param request the request that will be sent
+   * @param <T> the type of object requested
+   * @return the future which completes with the response
+   */
+  @NonNull
+  default <T> CompletableFuture<T> await(@NonNull StarboxRequest<T> request) {
+    return this.await(request, this.getTimeout());
+  }
+
+  /**
+   * Makes a request wait for its response before it is sent.
+   *
+   * @param request the request that will be sent
+   * @param timeout the millis after which the request times out if the response is not received
+   * @param <T> the type of object requested
+   * @return the future which completes with the response
+   */
+  @NonNull
+  default <T> CompletableFuture<T> await(@NonNull StarboxRequest<T> request, long timeout) {
     CompletableFuture<T> future = new CompletableFuture<>();
     AwaitingRequest<T> awaitingRequest = new AwaitingRequest<>(request, request.getClazz(), future);
-    this.getRequests().put(awaitingRequest, System.currentTimeMillis());
-    this.printLine(this.getGson().toJson(request));
-    JsonScheduler.INSTANCE.schedule(
-        () ->
-            future.completeExceptionally(
-                new MessengerListenFailException(
-                    "The request " + request + " has timed out after " + this.getTimeout() + "ms")),
-        this.getTimeout(),
-        TimeUnit.MILLISECONDS);
-    future.whenComplete((result, ex) -> this.getRequests().remove(awaitingRequest));
+    this.getRequests().put(request.getId(), awaitingRequest);
+    HashedWheelTimer.Timeout scheduled =
+        JsonScheduler.INSTANCE.schedule(
+            () ->
+                future.completeExceptionally(
+                    new MessengerListenFailException(
+                        "The request " + request + " has timed out after " + timeout + "ms")),
+            timeout,
+            TimeUnit.MILLISECONDS);
+    future.whenComplete(
+        (result, ex) -> {
+          scheduled.cancel();
+          this.getRequests().remove(request.getId(), awaitingRequest);
+        });
     return future;
   }
 }
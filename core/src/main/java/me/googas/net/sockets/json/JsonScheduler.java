@@ -1,8 +1,8 @@
 package me.googas.net.sockets.json;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class JsonScheduler {
-  static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor();
+  static final HashedWheelTimer INSTANCE =
+      new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 512, "json-request-timeouts");
 }
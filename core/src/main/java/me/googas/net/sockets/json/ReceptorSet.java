@@ -0,0 +1,114 @@
+package me.googas.net.sockets.json;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.NonNull;
+
+/**
+ * A set of receptors indexed by their {@link JsonReceptor#getRequestMethod()} so the receptor of a
+ * request is found with a single lookup instead of comparing it with every receptor. Methods are
+ * matched ignoring their case as in {@link JsonMessenger#getReceptor(String)}.
+ *
+ * <p>The set can be modified while requests are being received. If many receptors have the same
+ * method the one that was added first is used
+ */
+public class ReceptorSet extends AbstractSet<JsonReceptor> {
+
+  /** The receptors in the set. */
+  @NonNull private final Set<JsonReceptor> receptors = ConcurrentHashMap.newKeySet();
+
+  /** The receptors mapped by their method in lower case. */
+  @NonNull private final Map<String, JsonReceptor> index = new ConcurrentHashMap<>();
+
+  /** Create an empty set. */
+  public ReceptorSet() {}
+
+  /**
+   * Get the receptor of a method.
+   *
+   * @param method the method of the request
+   * @return the receptor or null if there's no receptor for the method
+   */
+  public JsonReceptor get(@NonNull String method) {
+    return this.index.get(ReceptorSet.key(method));
+  }
+
+  @Override
+  public synchronized boolean add(@NonNull JsonReceptor receptor) {
+    if (!this.receptors.add(receptor)) return false;
+    this.index.putIfAbsent(ReceptorSet.key(receptor.getRequestMethod()), receptor);
+    return true;
+  }
+
+  @Override
+  public synchronized boolean remove(Object object) {
+    if (!this.receptors.remove(object)) return false;
+    String key = ReceptorSet.key(((JsonReceptor) object).getRequestMethod());
+    if (this.index.remove(key, object)) {
+      // Another receptor with the same method may take its place
+      for (JsonReceptor receptor : this.receptors) {
+        if (ReceptorSet.key(receptor.getRequestMethod()).equals(key)) {
+          this.index.put(key, receptor);
+          break;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized void clear() {
+    this.receptors.clear();
+    this.index.clear();
+  }
+
+  @Override
+  public boolean contains(Object object) {
+    return this.receptors.contains(object);
+  }
+
+  @Override
+  public @NonNull Iterator<JsonReceptor> iterator() {
+    Iterator<JsonReceptor> iterator = this.receptors.iterator();
+    return new Iterator<JsonReceptor>() {
+      private JsonReceptor last;
+
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public JsonReceptor next() {
+        return this.last = iterator.next();
+      }
+
+      @Override
+      public void remove() {
+        if (this.last == null) throw new IllegalStateException();
+        ReceptorSet.this.remove(this.last);
+        this.last = null;
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return this.receptors.size();
+  }
+
+  /**
+   * Get the key of a method in the index.
+   *
+   * @param method the method
+   * @return the method in lower case
+   */
+  @NonNull
+  private static String key(@NonNull String method) {
+    return method.toLowerCase(Locale.ROOT);
+  }
+}
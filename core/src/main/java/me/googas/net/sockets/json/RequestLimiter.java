@@ -0,0 +1,83 @@
+package me.googas.net.sockets.json;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.NonNull;
+
+/**
+ * Limits the number of requests from a single peer that are handled at the same time. Servers give
+ * each client its own limiter so a client that sends many requests cannot take every worker and
+ * starve the rest of clients, requests over the limit are answered with an {@link
+ * me.googas.net.api.Error} with the cause {@link #BUSY}.
+ */
+public final class RequestLimiter {
+
+  /** The cause of the error sent when a peer has too many requests being handled. */
+  @NonNull public static final String BUSY = "Too many requests in progress";
+
+  /** The cause of the error sent when the executor of the requests cannot take more requests. */
+  @NonNull public static final String OVERLOADED = "The messenger is overloaded";
+
+  /** The limiter that does not limit requests. */
+  @NonNull public static final RequestLimiter UNLIMITED = new RequestLimiter(Integer.MAX_VALUE);
+
+  /** The maximum number of requests handled at the same time. */
+  private final int maximum;
+
+  /** The number of requests being handled. */
+  @NonNull private final AtomicInteger active = new AtomicInteger();
+
+  /**
+   * Create the limiter.
+   *
+   * @param maximum the maximum number of requests handled at the same time
+   * @throws IllegalArgumentException if the maximum is lower than 1
+   */
+  public RequestLimiter(int maximum) {
+    if (maximum < 1) throw new IllegalArgumentException("The maximum must be at least 1");
+    this.maximum = maximum;
+  }
+
+  /**
+   * Takes a place to handle a request. If it returns true {@link #release()} must be called once
+   * the request has been handled
+   *
+   * @return true if the request can be handled, false if the limit has been reached
+   */
+  public boolean tryAcquire() {
+    if (this.maximum == Integer.MAX_VALUE) return true;
+    while (true) {
+      int active = this.active.get();
+      if (active >= this.maximum) return false;
+      if (this.active.compareAndSet(active, active + 1)) return true;
+    }
+  }
+
+  /** Gives back the place taken by {@link #tryAcquire()}. */
+  public void release() {
+    if (this.maximum == Integer.MAX_VALUE) return;
+    this.active.decrementAndGet();
+  }
+
+  /**
+   * Get the number of requests being handled.
+   *
+   * @return the number of requests being handled
+   */
+  public int getActive() {
+    return this.active.get();
+  }
+
+  /**
+   * Get the maximum number of requests handled at the same time.
+   *
+   * @return the maximum number of requests
+   */
+  public int getMaximum() {
+    return this.maximum;
+  }
+
+  @Override
+  public String toString() {
+    return "RequestLimiter{" + "maximum=" + this.maximum + ", active=" + this.active + '}';
+  }
+}
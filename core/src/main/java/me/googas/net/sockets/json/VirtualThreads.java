@@ -0,0 +1,71 @@
+package me.googas.net.sockets.json;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import lombok.NonNull;
+
+/**
+ * Gives access to the virtual threads of Java 21 while keeping Java 8 as the baseline. Virtual
+ * threads are created using reflection so on older versions {@link #factory()} is empty and the
+ * platform threads must be used instead.
+ *
+ * <p>Virtual threads make the blocking model of {@link
+ * me.googas.net.sockets.json.client.JsonClient} and {@link
+ * me.googas.net.sockets.json.server.JsonClientThread} cheap as a blocked read does not hold a
+ * platform thread
+ */
+public final class VirtualThreads {
+
+  /** The factory of virtual threads or null if they are not available. */
+  private static final ThreadFactory FACTORY = VirtualThreads.lookup();
+
+  private VirtualThreads() {}
+
+  /**
+   * Finds the factory of virtual threads.
+   *
+   * @return the factory or null if the running version does not have virtual threads
+   */
+  private static ThreadFactory lookup() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get whether the running version has virtual threads.
+   *
+   * @return true if virtual threads are available
+   */
+  public static boolean isAvailable() {
+    return VirtualThreads.FACTORY != null;
+  }
+
+  /**
+   * Get the factory of virtual threads.
+   *
+   * @return a {@link Optional} instance containing the factory if virtual threads are available
+   *     else empty
+   */
+  @NonNull
+  public static Optional<ThreadFactory> factory() {
+    return Optional.ofNullable(VirtualThreads.FACTORY);
+  }
+
+  /**
+   * Get an executor which runs each task in a new virtual thread.
+   *
+   * @return a {@link Optional} instance containing the executor if virtual threads are available
+   *     else empty
+   */
+  @NonNull
+  public static Optional<Executor> executor() {
+    return VirtualThreads.factory().map(factory -> task -> factory.newThread(task).start());
+  }
+}
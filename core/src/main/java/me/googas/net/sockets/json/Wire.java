@@ -0,0 +1,484 @@
+package me.googas.net.sockets.json;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import lombok.NonNull;
+import me.googas.net.sockets.json.codec.MessageCodec;
+
+/**
+ * The protocol that a {@link JsonMessenger} uses in the wire. It decodes the messages read in any
+ * {@link WireFormat} and {@link MessageCodec} that it knows and encodes the messages written in the
+ * format and codec agreed with the peer using {@link JsonMessenger#handshake()}.
+ *
+ * <p>Messages are parsed once from their bytes using a {@link JsonReader} or the codec of their
+ * frame
+ */
+public class Wire {
+
+  /** The method of the request sent to agree on the protocol. */
+  @NonNull public static final String HANDSHAKE = "starbox:handshake";
+
+  /** The default maximum number of bytes of a message. */
+  public static final int DEFAULT_MAXIMUM = 16 * 1024 * 1024;
+
+  /** The default number of bytes from which the payload of messages is compressed. */
+  public static final int DEFAULT_COMPRESSION = 8 * 1024;
+
+  /** Used to encode json text with codecs that do not depend on the gson of the messenger. */
+  @NonNull private static final Gson GSON = new Gson();
+
+  @NonNull private final FrameDecoder decoder;
+
+  /** Compresses and decompresses the payload of frames. */
+  @NonNull private final FrameCompressor compressor = new FrameCompressor();
+
+  /** The maximum number of bytes of a message. */
+  private final int maximum;
+
+  /** The codecs that can be read mapped by their id. */
+  @NonNull private final MessageCodec[] codecs = new MessageCodec[Frame.CODEC + 1];
+
+  /** The codecs that are offered in the handshake in order of preference. */
+  @NonNull private final List<MessageCodec> preferred = new CopyOnWriteArrayList<>();
+
+  /** The format in which messages are written. */
+  @NonNull private volatile WireFormat format = WireFormat.LEGACY;
+
+  /** The codec with which framed messages are written. */
+  @NonNull private volatile MessageCodec codec = MessageCodec.JSON;
+
+  /**
+   * The number of bytes from which the payload of written messages is compressed. If it is negative
+   * messages are never compressed
+   */
+  private volatile int compression = Wire.DEFAULT_COMPRESSION;
+
+  /** Whether the peer agreed to read compressed messages. */
+  private volatile boolean compressed;
+
+  /** Whether the peer agreed to read batch frames. */
+  private volatile boolean batched;
+
+  /** The buffer in which blocking streams are read. */
+  private byte[] buffer;
+
+  /**
+   * Create the protocol. It knows the {@link MessageCodec#JSON} and {@link MessageCodec#BINARY}
+   * codecs and prefers the binary one
+   *
+   * @param maximum the maximum number of bytes of a message
+   */
+  public Wire(int maximum) {
+    this.decoder = new FrameDecoder(maximum);
+    this.maximum = maximum;
+    this.codecs[MessageCodec.JSON.getId()] = MessageCodec.JSON;
+    this.preferred.add(MessageCodec.JSON);
+    this.addCodec(MessageCodec.BINARY);
+  }
+
+  /** Create the protocol with the {@link #DEFAULT_MAXIMUM} number of bytes of a message. */
+  public Wire() {
+    this(Wire.DEFAULT_MAXIMUM);
+  }
+
+  /**
+   * Adds a codec that can be read and offered in the handshake. The added codec is preferred over
+   * the ones that were added before
+   *
+   * @param codec the codec to add
+   * @return this same instance
+   * @throws IllegalArgumentException if the id of the codec is not valid or it is used by another
+   *     codec
+   */
+  @NonNull
+  public Wire addCodec(@NonNull MessageCodec codec) {
+    int id = codec.getId();
+    if (id < 0 || id > Frame.CODEC) {
+      throw new IllegalArgumentException("The id of " + codec + " must be between 0 and 7");
+    }
+    MessageCodec registered = this.codecs[id];
+    if (registered == codec) return this;
+    if (registered != null) {
+      throw new IllegalArgumentException(codec + " uses the same id as " + registered);
+    }
+    this.codecs[id] = codec;
+    this.preferred.add(0, codec);
+    return this;
+  }
+
+  /**
+   * Reads a stream once and decodes the bytes that were read. This blocks until bytes are
+   * available.
+   *
+   * @param input the stream to read
+   * @param frames the consumer of the decoded messages
+   * @param invalid the consumer of the reasons sent by the peer when a message could not be read
+   * @return false if the end of the stream has been reached
+   * @throws IOException if the stream could not be read or a message exceeds the maximum
+   */
+  public boolean read(
+      @NonNull InputStream input,
+      @NonNull Consumer<Frame> frames,
+      @NonNull Consumer<String> invalid)
+      throws IOException {
+    if (this.buffer == null) this.buffer = new byte[8192];
+    int read = input.read(this.buffer);
+    if (read == -1) return false;
+    this.decoder.decode(ByteBuffer.wrap(this.buffer, 0, read), frames, invalid);
+    return true;
+  }
+
+  /**
+   * Decodes the bytes of a buffer.
+   *
+   * @param bytes the bytes to decode
+   * @param frames the consumer of the decoded messages
+   * @param invalid the consumer of the reasons sent by the peer when a message could not be read
+   * @throws IOException if a message exceeds the maximum
+   * @see FrameDecoder#decode(ByteBuffer, Consumer, Consumer)
+   */
+  public void decode(
+      @NonNull ByteBuffer bytes, @NonNull Consumer<Frame> frames, @NonNull Consumer<String> invalid)
+      throws IOException {
+    this.decoder.decode(bytes, frames, invalid);
+  }
+
+  /**
+   * Parses a message using the codec in the flags of its frame. Compressed payloads are
+   * decompressed first
+   *
+   * @param gson the gson of the messenger
+   * @param frame the message to parse
+   * @return the parsed json
+   * @throws JsonParseException if the message is not valid or its codec is not known
+   */
+  @NonNull
+  public JsonElement parse(@NonNull Gson gson, @NonNull Frame frame) {
+    MessageCodec codec = this.codecs[frame.getFlags() & Frame.CODEC];
+    if (codec == null) {
+      throw new JsonParseException("Unknown codec " + (frame.getFlags() & Frame.CODEC));
+    }
+    byte[] payload = frame.getPayload();
+    if (frame.is(Frame.COMPRESSED)) payload = this.compressor.decompress(payload, this.maximum);
+    return codec.decode(gson, payload);
+  }
+
+  /**
+   * Encodes a message in the format and codec in which messages are written.
+   *
+   * @param gson the gson of the messenger to serialize the message
+   * @param message the message to encode
+   * @return the buffer ready to be written
+   */
+  @NonNull
+  public ByteBuffer encode(@NonNull Gson gson, @NonNull Object message) {
+    if (this.format == WireFormat.FRAMED) {
+      MessageCodec codec = this.codec;
+      return this.frame(codec.getId(), codec.encode(gson, message));
+    }
+    return Wire.legacy(gson.toJson(message));
+  }
+
+  /**
+   * Encodes many messages in a single buffer. If the peer agreed to it they are encoded as a json
+   * array in a single {@link Frame#BATCH} frame else each message is encoded on its own
+   *
+   * @param gson the gson of the messenger to serialize the messages
+   * @param messages the messages to encode
+   * @return the buffer ready to be written
+   */
+  @NonNull
+  public ByteBuffer encodeAll(@NonNull Gson gson, @NonNull List<?> messages) {
+    if (messages.size() == 1) return this.encode(gson, messages.get(0));
+    if (this.batched && this.format == WireFormat.FRAMED) {
+      MessageCodec codec = this.codec;
+      return this.frame(codec.getId() | Frame.BATCH, codec.encode(gson, messages));
+    }
+    ByteBuffer[] buffers = new ByteBuffer[messages.size()];
+    int length = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = this.encode(gson, messages.get(i));
+      length += buffers[i].remaining();
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    for (ByteBuffer encoded : buffers) buffer.put(encoded);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Get the encoding in which messages are written. Wires with equal encodings write the same bytes
+   * for the same message so a message can be encoded once for all of them
+   *
+   * @return the encoding of the written messages
+   */
+  @NonNull
+  public Object getEncoding() {
+    return Arrays.asList(
+        this.format, this.codec, this.compressed ? this.compression : -1, this.batched);
+  }
+
+  /**
+   * Encodes a message which is already serialized in json.
+   *
+   * @param json the message to encode
+   * @return the buffer ready to be written
+   */
+  @NonNull
+  public ByteBuffer encode(@NonNull String json) {
+    if (this.format == WireFormat.FRAMED) {
+      MessageCodec codec = this.codec;
+      if (codec == MessageCodec.JSON) {
+        return this.frame(codec.getId(), json.getBytes(StandardCharsets.UTF_8));
+      }
+      return this.frame(codec.getId(), codec.encode(Wire.GSON, JsonParser.parseString(json)));
+    }
+    return Wire.legacy(json);
+  }
+
+  /**
+   * Frames a payload compressing it if the peer agreed to it and it is larger than the compression
+   * threshold.
+   *
+   * @param flags the flags of the frame
+   * @param payload the payload of the frame
+   * @return the buffer ready to be written
+   */
+  @NonNull
+  private ByteBuffer frame(int flags, @NonNull byte[] payload) {
+    int compression = this.compression;
+    if (this.compressed && compression >= 0 && payload.length >= compression) {
+      ByteBuffer frame = this.compressor.frame(flags, payload);
+      if (frame != null) return frame;
+    }
+    return Frame.encode(flags, payload);
+  }
+
+  /**
+   * Encodes a message in the legacy format.
+   *
+   * @param json the message to encode
+   * @return the buffer ready to be written
+   */
+  @NonNull
+  private static ByteBuffer legacy(@NonNull String json) {
+    return ByteBuffer.wrap((json + "\n---\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Encodes the notice sent when a message from the peer could not be read.
+   *
+   * @param reason the reason why the message could not be read
+   * @return the buffer ready to be written
+   */
+  @NonNull
+  public ByteBuffer invalid(String reason) {
+    String line = ("Invalid Message: " + reason).replace('\n', ' ');
+    if (this.format == WireFormat.FRAMED) {
+      return Frame.encode(Frame.INVALID, line.getBytes(StandardCharsets.UTF_8));
+    }
+    return Wire.legacy(line);
+  }
+
+  /**
+   * Get the parameters of the handshake offered to the peer.
+   *
+   * @return the parameters of the handshake
+   */
+  @NonNull
+  public Map<String, ?> offer() {
+    Map<String, Object> offer = new HashMap<>();
+    offer.put(
+        "formats",
+        Arrays.stream(WireFormat.values()).map(WireFormat::name).collect(Collectors.toList()));
+    offer.put(
+        "codecs", this.preferred.stream().map(MessageCodec::getName).collect(Collectors.toList()));
+    offer.put("compression", Collections.singletonList(FrameCompressor.DEFLATE));
+    offer.put("batch", true);
+    return offer;
+  }
+
+  /**
+   * Answers the handshake offered by a peer choosing the best protocol that both can use. Codecs
+   * are chosen using the preference of the peer
+   *
+   * @param parameters the parameters of the handshake
+   * @return the answer to send to the peer which must then be given to {@link #apply(JsonObject)}
+   */
+  @NonNull
+  public JsonObject answer(@NonNull Map<String, JsonElement> parameters) {
+    JsonObject answer = new JsonObject();
+    if (!Wire.strings(parameters.get("formats")).contains(WireFormat.FRAMED.name())) {
+      answer.addProperty("format", WireFormat.LEGACY.name());
+      return answer;
+    }
+    answer.addProperty("format", WireFormat.FRAMED.name());
+    MessageCodec codec = MessageCodec.JSON;
+    for (String name : Wire.strings(parameters.get("codecs"))) {
+      MessageCodec offered = this.getCodec(name);
+      if (offered != null) {
+        codec = offered;
+        break;
+      }
+    }
+    answer.addProperty("codec", codec.getName());
+    if (Wire.strings(parameters.get("compression")).contains(FrameCompressor.DEFLATE)) {
+      answer.addProperty("compression", FrameCompressor.DEFLATE);
+    }
+    if (Wire.strings(parameters.get("batch")).contains("true")) answer.addProperty("batch", true);
+    return answer;
+  }
+
+  /**
+   * Uses the protocol agreed in a handshake.
+   *
+   * @param answer the answer to the handshake
+   */
+  public void apply(@NonNull JsonObject answer) {
+    List<String> codec = Wire.strings(answer.get("codec"));
+    MessageCodec agreed = codec.isEmpty() ? null : this.getCodec(codec.get(0));
+    this.codec = agreed == null ? MessageCodec.JSON : agreed;
+    this.compressed = Wire.strings(answer.get("compression")).contains(FrameCompressor.DEFLATE);
+    this.batched = Wire.strings(answer.get("batch")).contains("true");
+    List<String> format = Wire.strings(answer.get("format"));
+    for (WireFormat value : WireFormat.values()) {
+      if (format.contains(value.name())) this.format = value;
+    }
+  }
+
+  /**
+   * Releases the resources used to compress messages. The wire can still be used but they will be
+   * allocated again
+   */
+  public void release() {
+    this.compressor.end();
+  }
+
+  /**
+   * Get the strings of a json element.
+   *
+   * @param element a string or an array of strings
+   * @return the strings in the element
+   */
+  @NonNull
+  private static List<String> strings(JsonElement element) {
+    List<String> strings = new ArrayList<>();
+    if (element == null) return strings;
+    JsonArray array = new JsonArray();
+    if (element.isJsonArray()) {
+      array = element.getAsJsonArray();
+    } else {
+      array.add(element);
+    }
+    for (JsonElement child : array) {
+      if (child.isJsonPrimitive()) strings.add(child.getAsString());
+    }
+    return strings;
+  }
+
+  /**
+   * Get a codec that can be read by its name.
+   *
+   * @param name the name of the codec
+   * @return the codec or null if there's no codec with the name
+   */
+  private MessageCodec getCodec(@NonNull String name) {
+    for (MessageCodec codec : this.preferred) {
+      if (codec.getName().equals(name)) return codec;
+    }
+    return null;
+  }
+
+  /**
+   * Get the format in which messages are written.
+   *
+   * @return the format of the written messages
+   */
+  @NonNull
+  public WireFormat getFormat() {
+    return this.format;
+  }
+
+  /**
+   * Set the format in which messages are written. The peer must be able to read it
+   *
+   * @param format the new format
+   */
+  public void setFormat(@NonNull WireFormat format) {
+    this.format = format;
+  }
+
+  /**
+   * Get the number of bytes from which the payload of written messages is compressed.
+   *
+   * @return the compression threshold or a negative number if messages are never compressed
+   */
+  public int getCompression() {
+    return this.compression;
+  }
+
+  /**
+   * Set the number of bytes from which the payload of written messages is compressed. Messages are
+   * only compressed if the peer agreed to it in the handshake
+   *
+   * @param compression the new threshold or a negative number to never compress messages
+   */
+  public void setCompression(int compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Get whether the peer agreed to read compressed messages.
+   *
+   * @return true if the peer can read compressed messages
+   */
+  public boolean isCompressed() {
+    return this.compressed;
+  }
+
+  /**
+   * Get whether the peer agreed to read batch frames.
+   *
+   * @return true if the peer can read batch frames
+   */
+  public boolean isBatched() {
+    return this.batched;
+  }
+
+  /**
+   * Get the codec with which framed messages are written.
+   *
+   * @return the codec of the written messages
+   */
+  @NonNull
+  public MessageCodec getCodec() {
+    return this.codec;
+  }
+
+  /**
+   * Set the codec with which framed messages are written. The peer must be able to read it
+   *
+   * @param codec the new codec
+   */
+  public void setCodec(@NonNull MessageCodec codec) {
+    this.codec = codec;
+  }
+}
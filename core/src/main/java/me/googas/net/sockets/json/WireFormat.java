@@ -0,0 +1,19 @@
+package me.googas.net.sockets.json;
+
+/**
+ * The formats in which a {@link JsonMessenger} may write its messages. Messengers read both formats
+ * at any time so the format in which a messenger writes is changed once the peer has told that it
+ * can read it using {@link JsonMessenger#handshake()}.
+ */
+public enum WireFormat {
+  /**
+   * Messages are lines of json ended by a line containing '---'. This is the format used by every
+   * version so it is used until the peer agrees on another one
+   */
+  LEGACY,
+  /**
+   * Messages are prefixed by a header containing the {@link Frame#MAGIC} byte, the flags of the
+   * message and the length of the payload so they can be read without looking at each character
+   */
+  FRAMED
+}
@@ -0,0 +1,96 @@
+package me.googas.net.sockets.json;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.NonNull;
+
+/**
+ * Creates the executors in which requests are handled. Unlike {@link
+ * java.util.concurrent.ForkJoinPool#commonPool()} the executors have their own threads and a
+ * bounded queue so when they are full they reject the requests instead of making them wait without
+ * limit.
+ */
+public final class Workers {
+
+  /** The number of threads of the default pools. */
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+
+  /** The number of tasks that can wait for a thread in the default pools. */
+  public static final int DEFAULT_QUEUE = 1024;
+
+  /** The seconds that idle threads are kept alive. */
+  private static final long KEEP_ALIVE = 60;
+
+  private Workers() {}
+
+  /**
+   * Get the pool in which messengers that do not have an executor of their own handle requests. It
+   * is created the first time it is used with {@link #DEFAULT_THREADS} threads and a queue of
+   * {@link #DEFAULT_QUEUE} tasks and it is never shut down
+   *
+   * @return the shared pool
+   */
+  @NonNull
+  public static Executor shared() {
+    return Shared.POOL;
+  }
+
+  /**
+   * Create a pool with {@link #DEFAULT_THREADS} threads and a queue of {@link #DEFAULT_QUEUE}
+   * tasks.
+   *
+   * @param name the prefix of the names of the threads
+   * @return the pool
+   * @see #bounded(String, int, int)
+   */
+  @NonNull
+  public static ExecutorService bounded(@NonNull String name) {
+    return Workers.bounded(name, Workers.DEFAULT_THREADS, Workers.DEFAULT_QUEUE);
+  }
+
+  /**
+   * Create a pool with a fixed number of threads and a bounded queue. Idle threads are stopped
+   * after a minute and the threads are daemons, so the pool does not need to be shut down.
+   * Executing a task when the queue is full throws {@link
+   * java.util.concurrent.RejectedExecutionException}
+   *
+   * @param name the prefix of the names of the threads
+   * @param threads the number of threads
+   * @param queue the number of tasks that can wait for a thread
+   * @return the pool
+   * @throws IllegalArgumentException if the number of threads or the queue is lower than 1
+   */
+  @NonNull
+  public static ExecutorService bounded(@NonNull String name, int threads, int queue) {
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory factory =
+        task -> {
+          Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        };
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            Workers.KEEP_ALIVE,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queue),
+            factory,
+            new ThreadPoolExecutor.AbortPolicy());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /** Holds the shared pool so it is only created if it is used. */
+  private static final class Shared {
+
+    /** The shared pool. */
+    @NonNull private static final ExecutorService POOL = Workers.bounded("json-worker");
+  }
+}
@@ -7,27 +7,43 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Consumer;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import me.googas.net.api.messages.AwaitingRequest;
 import me.googas.net.api.messages.Message;
+import me.googas.net.sockets.json.BlockingJsonMessenger;
 import me.googas.net.sockets.json.JsonMessenger;
 import me.googas.net.sockets.json.JsonReceptor;
+import me.googas.net.sockets.json.ReceptorSet;
+import me.googas.net.sockets.json.RequestLimiter;
+import me.googas.net.sockets.json.VirtualThreads;
+import me.googas.net.sockets.json.Wire;
+import me.googas.net.sockets.json.WireFormat;
+import me.googas.net.sockets.json.Workers;
 import me.googas.net.sockets.json.adapters.MessageDeserializer;
+import me.googas.net.sockets.json.codec.MessageCodec;
 import me.googas.net.sockets.json.reflect.ReflectJsonReceptor;
 import me.googas.net.sockets.json.server.JsonSocketServer;
 
 /** This object represents a client that can be used to connect to the {@link JsonSocketServer}. */
-public class JsonClient extends Thread implements JsonMessenger {
+public class JsonClient implements BlockingJsonMessenger {
 
   /** The builder to build json strings. */
   @NonNull @Getter private final StringBuilder builder = new StringBuilder();
@@ -52,16 +68,31 @@ public class JsonClient extends Thread implements JsonMessenger {
   @NonNull @Getter private final Set<JsonReceptor> receptors;
 
   /** The request that are waiting for a response. */
-  @NonNull @Getter private final HashMap<AwaitingRequest<?>, Long> requests = new HashMap<>();
+  @NonNull @Getter private final Map<UUID, AwaitingRequest<?>> requests = new ConcurrentHashMap<>();
+
+  /** The protocol used in the wire. */
+  @NonNull @Getter private final Wire wire = new Wire();
+
+  /** The limiter of the requests from the server that are handled at the same time. */
+  @NonNull @Getter private volatile RequestLimiter limiter = RequestLimiter.UNLIMITED;
 
   /** The time to timeout requests. */
   @Getter private final long timeout;
 
   /** Whether the messenger is closed. */
-  @Getter @Setter private boolean closed;
+  @Getter @Setter private volatile boolean closed;
 
   /** The millis of when the last message was sent. */
-  @Getter @Setter private long lastMessage;
+  @Getter @Setter private volatile long lastMessage;
+
+  /** The executor in which requests are handled. */
+  @NonNull @Getter private final Executor executor;
+
+  /** Whether the executor was created for this client and is shut down when it closes. */
+  private final boolean ownsExecutor;
+
+  /** The thread that listens to the messages of the server. Null until the client is started */
+  private volatile Thread thread;
 
   /**
    * Create the client.
@@ -87,6 +118,49 @@ public class JsonClient extends Thread implements JsonMessenger {
       long timeout,
       boolean closed,
       long lastMessage) {
+    this(
+        socket,
+        output,
+        input,
+        throwableHandler,
+        gson,
+        receptors,
+        timeout,
+        closed,
+        lastMessage,
+        Workers.bounded("json-client-worker"),
+        true);
+  }
+
+  /**
+   * Create the client.
+   *
+   * @param socket the socket to listen for messages
+   * @param output the output streams to send messages
+   * @param input the input stream to receive messages
+   * @param throwableHandler the handler for exceptions
+   * @param gson the gson instance to serialize and deserialize messages
+   * @param receptors the receptors to listen for requests
+   * @param timeout the amount of time to wait until a message timeout in millis
+   * @param closed whether this client is closed
+   * @param lastMessage the {@link System#currentTimeMillis()} in which the last message was
+   *     received
+   * @param executor the executor in which requests are handled
+   * @param ownsExecutor whether the executor is shut down when the client closes. Executors shared
+   *     with other components must not be shut down by the client
+   */
+  protected JsonClient(
+      @NonNull Socket socket,
+      @NonNull PrintWriter output,
+      @NonNull BufferedReader input,
+      @NonNull Consumer<Throwable> throwableHandler,
+      @NonNull Gson gson,
+      @NonNull Set<JsonReceptor> receptors,
+      long timeout,
+      boolean closed,
+      long lastMessage,
+      @NonNull Executor executor,
+      boolean ownsExecutor) {
     this.socket = socket;
     this.output = output;
     this.input = input;
@@ -96,6 +170,8 @@ public class JsonClient extends Thread implements JsonMessenger {
     this.timeout = timeout;
     this.closed = closed;
     this.lastMessage = lastMessage;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
   }
 
   /**
@@ -121,6 +197,8 @@ public class JsonClient extends Thread implements JsonMessenger {
     this.gson = gson;
     this.receptors = receptors;
     this.timeout = timeout;
+    this.executor = Workers.bounded("json-client-worker");
+    this.ownsExecutor = true;
     this.output =
         new PrintWriter(
             new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
@@ -144,7 +222,7 @@ public class JsonClient extends Thread implements JsonMessenger {
       @NonNull Gson gson,
       long timeout)
       throws IOException {
-    this(socket, throwableHandler, gson, new HashSet<>(), timeout);
+    this(socket, throwableHandler, gson, new ReceptorSet(), timeout);
   }
 
   @Override
@@ -163,6 +241,19 @@ public class JsonClient extends Thread implements JsonMessenger {
     }
     this.receptors.clear();
     this.requests.clear();
+    this.wire.release();
+    if (this.ownsExecutor && this.executor instanceof ExecutorService) {
+      ((ExecutorService) this.executor).shutdown();
+    }
+  }
+
+  /**
+   * Set the limiter of the requests from the server that are handled at the same time.
+   *
+   * @param limiter the new limiter
+   */
+  public void setLimiter(@NonNull RequestLimiter limiter) {
+    this.limiter = limiter;
   }
 
   /**
@@ -177,9 +268,41 @@ public class JsonClient extends Thread implements JsonMessenger {
     return new ClientBuilder(host, port);
   }
 
+  /**
+   * Starts listening to the messages of the server in a new thread.
+   *
+   * @throws IllegalStateException if it was already started
+   */
+  public void start() {
+    this.start(Thread::new);
+  }
+
+  /**
+   * Starts listening to the messages of the server in a thread created by a factory.
+   *
+   * @param factory the factory of the thread
+   * @throws IllegalStateException if it was already started
+   */
+  public synchronized void start(@NonNull ThreadFactory factory) {
+    if (this.thread != null) throw new IllegalStateException(this + " has already been started");
+    Thread thread = factory.newThread(this);
+    thread.start();
+    this.thread = thread;
+  }
+
+  /**
+   * Get the thread that listens to the messages of the server.
+   *
+   * @return a {@link Optional} instance containing the thread if it was started else empty
+   */
+  @NonNull
+  public Optional<Thread> getThread() {
+    return Optional.ofNullable(this.thread);
+  }
+
   @Override
-  public void run() {
-    JsonMessenger.super.run();
+  public String toString() {
+    return "JsonClient{" + "socket=" + this.socket + '}';
   }
 
   /** This class is used to create instances of clients in a neat way. */
@@ -191,6 +314,14 @@ public class JsonClient extends Thread implements JsonMessenger {
     @NonNull private GsonBuilder gson;
     @NonNull private Consumer<Throwable> handler;
     private long timeout;
+    @NonNull private WireFormat format = WireFormat.FRAMED;
+    @NonNull private final List<MessageCodec> codecs = new ArrayList<>();
+    private int compression = Wire.DEFAULT_COMPRESSION;
+    private ThreadFactory threadFactory;
+    private Executor executor;
+    private boolean ownsExecutor;
+    private int concurrency = Integer.MAX_VALUE;
+    private int connectTimeout;
 
     /**
      * Create the builder.
@@ -201,12 +332,104 @@ public class JsonClient extends Thread implements JsonMessenger {
     private ClientBuilder(@NonNull String host, int port) {
       this.host = host;
       this.port = port;
-      this.receptors = new HashSet<>();
+      this.receptors = new ReceptorSet();
       this.gson = new GsonBuilder().registerTypeAdapter(Message.class, new MessageDeserializer());
       this.handler = Throwable::printStackTrace;
       this.timeout = 1000;
     }
 
+    /**
+     * Set the factory of the thread that listens to the server. By default the client listens in a
+     * new platform thread
+     *
+     * @param threadFactory the new factory of threads
+     * @return this same builder instance
+     */
+    @NonNull
+    public ClientBuilder threads(@NonNull ThreadFactory threadFactory) {
+      this.threadFactory = threadFactory;
+      return this;
+    }
+
+    /**
+     * Set the millis to wait for the server to accept the connection. By default it waits without
+     * limit
+     *
+     * @param connectTimeout the millis to wait or 0 to wait without limit
+     * @return this same builder instance
+     * @throws IllegalArgumentException if the millis are negative
+     */
+    @NonNull
+    public ClientBuilder connectTimeout(int connectTimeout) {
+      if (connectTimeout < 0) {
+        throw new IllegalArgumentException("The connect timeout cannot be negative");
+      }
+      this.connectTimeout = connectTimeout;
+      return this;
+    }
+
+    /**
+     * Set the executor in which requests from the server are handled. By default a pool with {@link
+     * Workers#DEFAULT_THREADS} threads and a queue of {@link Workers#DEFAULT_QUEUE} requests is
+     * used, see {@link #workers(int, int)}
+     *
+     * @param executor the new executor. It is not shut down when the client closes as it may be
+     *     shared
+     * @return this same builder instance
+     */
+    @NonNull
+    public ClientBuilder executor(@NonNull Executor executor) {
+      this.executor = executor;
+      this.ownsExecutor = false;
+      return this;
+    }
+
+    /**
+     * Handle the requests from the server in a pool with its own threads and a bounded queue. When
+     * the queue is full requests are answered with an error with the cause {@link
+     * RequestLimiter#OVERLOADED} instead of waiting. The pool is shut down when the client closes
+     *
+     * @param threads the number of threads of the pool
+     * @param queue the number of requests that can wait for a thread
+     * @return this same builder instance
+     * @see Workers#bounded(String, int, int)
+     */
+    @NonNull
+    public ClientBuilder workers(int threads, int queue) {
+      this.executor = Workers.bounded("json-client-worker", threads, queue);
+      this.ownsExecutor = true;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of requests from the server that are handled at the same time.
+     * Requests over the limit are answered with an error with the cause {@link
+     * RequestLimiter#BUSY}. By default it is only limited by the executor
+     *
+     * @param concurrency the maximum number of requests
+     * @return this same builder instance
+     */
+    @NonNull
+    public ClientBuilder concurrency(int concurrency) {
+      if (concurrency < 1) throw new IllegalArgumentException("The concurrency must be at least 1");
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * Listen to the server and handle its requests in virtual threads. If the running version does
+     * not have virtual threads this does nothing and platform threads are used
+     *
+     * @return this same builder instance
+     * @see VirtualThreads
+     */
+    @NonNull
+    public ClientBuilder virtualThreads() {
+      VirtualThreads.factory().ifPresent(this::threads);
+      VirtualThreads.executor().ifPresent(this::executor);
+      return this;
+    }
+
     /**
      * Adds the parsed receptors from the given object. This will get the receptors from the object
      * using {@link ReflectJsonReceptor#getReceptors(Object)} and add them to the set
@@ -270,15 +493,70 @@ public class JsonClient extends Thread implements JsonMessenger {
       return this;
     }
 
+    /**
+     * Set the format in which the client will try to write its messages. If it is not {@link
+     * WireFormat#LEGACY} the client sends a handshake once it is started and writes in the legacy
+     * format until the server answers it, servers that do not know the format keep receiving legacy
+     * messages. By default {@link WireFormat#FRAMED} is used
+     *
+     * @param format the new format
+     * @return this same builder instance
+     * @see JsonMessenger#handshake()
+     */
+    @NonNull
+    public ClientBuilder format(@NonNull WireFormat format) {
+      this.format = format;
+      return this;
+    }
+
+    /**
+     * Adds a codec that may be agreed with the server in the handshake. Added codecs are preferred
+     * over {@link MessageCodec#BINARY} and {@link MessageCodec#JSON}
+     *
+     * @param codec the codec to add
+     * @return this same builder instance
+     * @see Wire#addCodec(MessageCodec)
+     */
+    @NonNull
+    public ClientBuilder codec(@NonNull MessageCodec codec) {
+      this.codecs.add(codec);
+      return this;
+    }
+
+    /**
+     * Set the number of bytes from which the payload of the messages of the client is compressed.
+     * Messages are only compressed if the server agrees to it in the handshake. By default {@link
+     * Wire#DEFAULT_COMPRESSION} is used
+     *
+     * @param compression the new threshold or a negative number to never compress messages
+     * @return this same builder instance
+     */
+    @NonNull
+    public ClientBuilder compression(int compression) {
+      this.compression = compression;
+      return this;
+    }
+
     /**
      * Starts the client.
      *
      * @return the client instance
      * @throws IOException if the server could not be found or the input/output could not be open
+     * @throws java.net.SocketTimeoutException if the server did not accept the connection before
+     *     the connect timeout
      */
     @NonNull
     public JsonClient start() throws IOException {
-      Socket socket = new Socket(host, port);
+      Socket socket = new Socket();
+      try {
+        socket.connect(new InetSocketAddress(this.host, this.port), this.connectTimeout);
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+      boolean ownsExecutor = this.executor == null || this.ownsExecutor;
+      Executor executor =
+          this.executor == null ? Workers.bounded("json-client-worker") : this.executor;
       JsonClient client =
           new JsonClient(
               socket,
@@ -291,8 +569,14 @@ public class JsonClient extends Thread implements JsonMessenger {
               this.receptors,
               timeout,
               false,
-              0);
-      client.start();
+              0,
+              executor,
+              ownsExecutor);
+      this.codecs.forEach(client.getWire()::addCodec);
+      client.getWire().setCompression(this.compression);
+      client.setLimiter(new RequestLimiter(this.concurrency));
+      client.start(this.threadFactory == null ? Thread::new : this.threadFactory);
+      if (this.format != WireFormat.LEGACY) client.handshake();
       return client;
     }
 
@@ -0,0 +1,593 @@
+package me.googas.net.sockets.json.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.NonNull;
+import me.googas.net.api.Messenger;
+import me.googas.net.api.exception.MessengerListenFailException;
+import me.googas.net.api.messages.StarboxRequest;
+import me.googas.net.sockets.json.Workers;
+
+/**
+ * A pool of {@link JsonClient} connected to many servers that serve the same receptors. Requests
+ * are sent using the healthy connection with the least requests waiting for a response so the load
+ * is spread across the servers.
+ *
+ * <p>A connection is unhealthy when it is closed, when too many of its requests time out in a row
+ * or when it has requests waiting for a response but nothing has been received for a while.
+ * Unhealthy connections are closed and connected again in the background
+ *
+ * <p>Connections are connected in threads of their own with a bounded connect timeout, a server
+ * that does not answer leaves its connections unhealthy until a later attempt succeeds but it does
+ * not delay the checks of the other connections
+ */
+public class JsonClientPool implements Messenger {
+
+  /** The connections of the pool. */
+  @NonNull @Getter private final List<Connection> connections;
+
+  /** Checks the health of the connections and connects them again. */
+  @NonNull private final ScheduledExecutorService scheduler;
+
+  /** Connects the clients of the connections. */
+  @NonNull private final ExecutorService connector;
+
+  /** The millis to wait for a server to accept a connection. */
+  private final int connectTimeout;
+
+  /** The number of requests that must time out in a row to drop a connection. */
+  private final int failures;
+
+  /** The millis without receiving a message after which a connection waiting for one is dropped. */
+  private final long stale;
+
+  /** The millis to wait before connecting a dropped connection again. */
+  private final long retry;
+
+  /** The handler of the exceptions thrown while checking the connections. */
+  @NonNull private final Consumer<Throwable> handler;
+
+  /** Whether the pool is closed. */
+  @Getter private volatile boolean closed;
+
+  /**
+   * Create the pool. Every connection starts connecting at the same time and the pool waits up to
+   * the connect timeout for them before the health checks are scheduled, the connections that are
+   * not connected by then are used once they are
+   *
+   * @param endpoints the servers to which the pool connects
+   * @param size the number of connections to each server
+   * @param configuration prepares the builder of each client before it is started
+   * @param failures the number of requests that must time out in a row to drop a connection
+   * @param stale the millis without receiving a message after which a connection with requests
+   *     waiting for a response is dropped
+   * @param retry the millis to wait before connecting a dropped connection again
+   * @param check the millis between each check of the health of the connections
+   * @param connectTimeout the millis to wait for a server to accept a connection
+   * @param handler the handler of the exceptions thrown while checking the connections
+   */
+  private JsonClientPool(
+      @NonNull List<InetSocketAddress> endpoints,
+      int size,
+      @NonNull Consumer<JsonClient.ClientBuilder> configuration,
+      int failures,
+      long stale,
+      long retry,
+      long check,
+      int connectTimeout,
+      @NonNull Consumer<Throwable> handler) {
+    this.failures = failures;
+    this.stale = stale;
+    this.retry = retry;
+    this.connectTimeout = connectTimeout;
+    this.handler = handler;
+    List<Connection> connections = new ArrayList<>(endpoints.size() * size);
+    for (InetSocketAddress endpoint : endpoints) {
+      for (int i = 0; i < size; i++) {
+        connections.add(new Connection(endpoint, configuration));
+      }
+    }
+    this.connections = Collections.unmodifiableList(connections);
+    // A connection is never connecting twice so the queue cannot be full
+    this.connector =
+        Workers.bounded(
+            "json-client-pool-connect",
+            Math.min(connections.size(), Workers.DEFAULT_THREADS),
+            connections.size());
+    CompletableFuture<?>[] attempts = new CompletableFuture<?>[connections.size()];
+    for (int i = 0; i < attempts.length; i++) attempts[i] = connections.get(i).connect();
+    try {
+      CompletableFuture.allOf(attempts).get(connectTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      // The connections that are still connecting are used once they are connected
+    }
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            task -> {
+              Thread thread = new Thread(task, "json-client-pool");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.scheduler.scheduleWithFixedDelay(this::check, check, check, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Start the builder of a pool.
+   *
+   * @return the builder of the pool
+   */
+  @NonNull
+  public static PoolBuilder builder() {
+    return new PoolBuilder();
+  }
+
+  /**
+   * Get the healthy connection with the least requests waiting for a response. The client of the
+   * connection is captured so it can be used even if the connection is dropped meanwhile
+   *
+   * @return the route to the connection or null if there's no healthy connection
+   */
+  private Route next() {
+    Route next = null;
+    int least = Integer.MAX_VALUE;
+    long now = System.currentTimeMillis();
+    for (Connection connection : this.connections) {
+      JsonClient client = connection.client;
+      if (client == null || !connection.isHealthy(client, now)) continue;
+      int inFlight = client.getInFlight();
+      if (inFlight < least) {
+        next = new Route(connection, client);
+        least = inFlight;
+      }
+    }
+    return next;
+  }
+
+  @Override
+  public <T> @NonNull CompletableFuture<T> send(@NonNull StarboxRequest<T> request) {
+    Route route = this.next();
+    if (route == null) return JsonClientPool.unavailable();
+    return route.connection.track(route.client, route.client.send(request));
+  }
+
+  /**
+   * Sends many requests using the healthy connection with the least requests waiting for a
+   * response. The requests are sent together in a single write
+   *
+   * @param requests the requests to send
+   * @return the futures of the requests in the same order as the requests
+   */
+  @Override
+  public @NonNull List<CompletableFuture<?>> sendAll(
+      @NonNull Collection<? extends StarboxRequest<?>> requests) {
+    Route route = this.next();
+    List<CompletableFuture<?>> futures = new ArrayList<>(requests.size());
+    if (route == null) {
+      for (int i = 0; i < requests.size(); i++) futures.add(JsonClientPool.unavailable());
+      return futures;
+    }
+    for (CompletableFuture<?> future : route.client.sendAll(requests)) {
+      futures.add(route.connection.track(route.client, future));
+    }
+    return futures;
+  }
+
+  /**
+   * Get a future failed because there's no healthy connection.
+   *
+   * @param <T> the type of the future
+   * @return the failed future
+   */
+  @NonNull
+  private static <T> CompletableFuture<T> unavailable() {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(new MessengerListenFailException("There's no healthy connection"));
+    return future;
+  }
+
+  /**
+   * Drops the unhealthy connections and starts connecting them again once they have waited to
+   * retry. Exceptions are given to the handler so the following checks are still scheduled
+   */
+  private void check() {
+    try {
+      long now = System.currentTimeMillis();
+      for (Connection connection : this.connections) {
+        if (this.closed) return;
+        JsonClient client = connection.client;
+        if (client != null && !connection.isHealthy(client, now)) {
+          connection.drop(now);
+        } else if (client == null && now >= connection.retryAt) {
+          connection.connect();
+        }
+      }
+    } catch (RuntimeException e) {
+      this.handler.accept(e);
+    }
+  }
+
+  /**
+   * Get the number of healthy connections.
+   *
+   * @return the number of healthy connections
+   */
+  public int getHealthy() {
+    long now = System.currentTimeMillis();
+    int healthy = 0;
+    for (Connection connection : this.connections) {
+      JsonClient client = connection.client;
+      if (client != null && connection.isHealthy(client, now)) healthy++;
+    }
+    return healthy;
+  }
+
+  /**
+   * Get the number of requests waiting for a response in all the connections.
+   *
+   * @return the number of requests in flight
+   */
+  public int getInFlight() {
+    int inFlight = 0;
+    for (Connection connection : this.connections) {
+      JsonClient client = connection.client;
+      if (client != null) inFlight += client.getInFlight();
+    }
+    return inFlight;
+  }
+
+  @Override
+  public void close() {
+    this.closed = true;
+    this.scheduler.shutdownNow();
+    this.connector.shutdownNow();
+    for (Connection connection : this.connections) {
+      JsonClient client = connection.client;
+      connection.client = null;
+      if (client != null) client.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "JsonClientPool{" + "connections=" + this.connections + '}';
+  }
+
+  /** A connection chosen to send requests and the client it had when it was chosen. */
+  private static final class Route {
+
+    @NonNull private final Connection connection;
+    @NonNull private final JsonClient client;
+
+    private Route(@NonNull Connection connection, @NonNull JsonClient client) {
+      this.connection = connection;
+      this.client = client;
+    }
+  }
+
+  /** A connection to one of the servers of the pool. */
+  public final class Connection {
+
+    /** The address of the server. */
+    @NonNull @Getter private final InetSocketAddress endpoint;
+
+    /** Prepares the builder of the client before it is started. */
+    @NonNull private final Consumer<JsonClient.ClientBuilder> configuration;
+
+    /** The number of requests that timed out in a row. */
+    @NonNull private final AtomicInteger timeouts = new AtomicInteger();
+
+    /** Whether the client is being connected. */
+    @NonNull private final AtomicBoolean connecting = new AtomicBoolean();
+
+    /** The client or null if it is not connected. */
+    private volatile JsonClient client;
+
+    /** The millis in which the connection may be connected again. */
+    private volatile long retryAt;
+
+    /** The millis in which a request was sent while no request was waiting for a response. */
+    private volatile long busySince;
+
+    private Connection(
+        @NonNull InetSocketAddress endpoint,
+        @NonNull Consumer<JsonClient.ClientBuilder> configuration) {
+      this.endpoint = endpoint;
+      this.configuration = configuration;
+    }
+
+    /**
+     * Starts connecting the client in the connector unless it is already being connected.
+     *
+     * @return a future which completes once the attempt is over
+     */
+    @NonNull
+    private CompletableFuture<Void> connect() {
+      if (JsonClientPool.this.closed || !this.connecting.compareAndSet(false, true)) {
+        return CompletableFuture.completedFuture(null);
+      }
+      return CompletableFuture.runAsync(this::open, JsonClientPool.this.connector)
+          .whenComplete((ignored, e) -> this.connecting.set(false));
+    }
+
+    /**
+     * Connects the client. If it cannot be connected before the connect timeout the connection
+     * stays unhealthy and it is retried later
+     */
+    private void open() {
+      JsonClient.ClientBuilder builder =
+          JsonClient.join(this.endpoint.getHostString(), this.endpoint.getPort());
+      try {
+        this.configuration.accept(builder);
+        JsonClient client = builder.connectTimeout(JsonClientPool.this.connectTimeout).start();
+        this.timeouts.set(0);
+        this.busySince = System.currentTimeMillis();
+        this.client = client;
+        // The pool may have been closed while connecting
+        if (JsonClientPool.this.closed) {
+          this.client = null;
+          client.close();
+        }
+      } catch (IOException e) {
+        this.retryAt = System.currentTimeMillis() + JsonClientPool.this.retry;
+      } catch (RuntimeException e) {
+        this.retryAt = System.currentTimeMillis() + JsonClientPool.this.retry;
+        JsonClientPool.this.handler.accept(e);
+      }
+    }
+
+    /**
+     * Closes the client to connect it again later.
+     *
+     * @param now the current millis
+     */
+    private void drop(long now) {
+      JsonClient client = this.client;
+      this.client = null;
+      this.retryAt = now + JsonClientPool.this.retry;
+      if (client != null) client.close();
+    }
+
+    /**
+     * Get whether the connection can be used.
+     *
+     * @param client the client of the connection
+     * @param now the current millis
+     * @return true if the client is connected and answers in time
+     */
+    private boolean isHealthy(@NonNull JsonClient client, long now) {
+      if (client.isClosed()) return false;
+      if (this.timeouts.get() >= JsonClientPool.this.failures) return false;
+      if (client.getInFlight() == 0) return true;
+      long since = Math.max(client.getLastMessage(), this.busySince);
+      return now - since < JsonClientPool.this.stale;
+    }
+
+    /**
+     * Follows the result of a request sent using this connection.
+     *
+     * @param client the client used to send the request
+     * @param future the future of the request
+     * @param <T> the type of object requested
+     * @return the same future
+     */
+    @NonNull
+    private <T> CompletableFuture<T> track(
+        @NonNull JsonClient client, @NonNull CompletableFuture<T> future) {
+      if (client.getInFlight() <= 1) {
+        this.busySince = System.currentTimeMillis();
+      }
+      future.whenComplete(
+          (result, e) -> {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof MessengerListenFailException) {
+              this.timeouts.incrementAndGet();
+            } else {
+              this.timeouts.set(0);
+            }
+          });
+      return future;
+    }
+
+    /**
+     * Get whether the connection is connected and can be used.
+     *
+     * @return true if the connection is healthy
+     */
+    public boolean isHealthy() {
+      JsonClient client = this.client;
+      return client != null && this.isHealthy(client, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the number of requests sent using this connection that are waiting for a response.
+     *
+     * @return the number of requests in flight
+     */
+    public int getInFlight() {
+      JsonClient client = this.client;
+      return client == null ? 0 : client.getInFlight();
+    }
+
+    @Override
+    public String toString() {
+      return "Connection{" + "endpoint=" + this.endpoint + '}';
+    }
+  }
+
+  /** Builds a {@link JsonClientPool}. */
+  public static class PoolBuilder {
+
+    @NonNull private final List<InetSocketAddress> endpoints = new ArrayList<>();
+    @NonNull private Consumer<JsonClient.ClientBuilder> configuration = builder -> {};
+    @NonNull private Consumer<Throwable> handler = Throwable::printStackTrace;
+    private int connections = 1;
+    private int failures = 3;
+    private long stale = 5000;
+    private long retry = 1000;
+    private long check = 250;
+    private int connectTimeout = 1000;
+
+    private PoolBuilder() {}
+
+    /**
+     * Adds a server to which the pool connects.
+     *
+     * @param host the host of the server
+     * @param port the port of the server
+     * @return this same builder instance
+     */
+    @NonNull
+    public PoolBuilder endpoint(@NonNull String host, int port) {
+      this.endpoints.add(InetSocketAddress.createUnresolved(host, port));
+      return this;
+    }
+
+    /**
+     * Set the number of connections to each server. By default there's one connection to each
+     *
+     * @param connections the number of connections to each server
+     * @return this same builder instance
+     */
+    @NonNull
+    public PoolBuilder connections(int connections) {
+      if (connections < 1) {
+        throw new IllegalArgumentException("There must be a connection at least");
+      }
+      this.connections = connections;
+      return this;
+    }
+
+    /**
+     * Set how each client is prepared before it is started, for instance to add its receptors or
+     * set its timeout. It is used each time a connection is connected again
+     *
+     * @param configuration the consumer of the builder of each client
+     * @return this same builder instance
+     */
+    @NonNull
+    public PoolBuilder configure(@NonNull Consumer<JsonClient.ClientBuilder> configuration) {
+      this.configuration = configuration;
+      return this;
+    }
+
+    /**
+     * Set the number of requests that must time out in a row to drop a connection. By default 3
+     *
+     * @param failures the number of requests
+     * @return this same builder instance
+     */
+    @NonNull
+    public PoolBuilder failures(int failures) {
+      if (failures < 1) throw new IllegalArgumentException("The failures must be at least 1");
+      this.failures = failures;
+      return this;
+    }
+
+    /**
+     * Set the millis without receiving a message after which a connection that has requests waiting
+     * for a response is dropped. By default 5 seconds
+     *
+     * @param stale the millis without receiving a message
+     * @return this same builder instance
+     */
+    @NonNull
+    public PoolBuilder stale(long stale) {
+      this.stale = stale;
+      return this;
+    }
+
+    /**
+     * Set the millis to wait before connecting a dropped connection again. By default a second
+     *
+     * @param retry the millis to wait
+     * @return this same builder instance
+     */
+    @NonNull
+    public PoolBuilder retry(long retry) {
+      this.retry = retry;
+      return this;
+    }
+
+    /**
+     * Set the millis between each check of the health of the connections. By default 250
+     *
+     * @param check the millis between each check
+     * @return this same builder instance
+     */
+    @NonNull
+    public PoolBuilder check(long check) {
+      if (check < 1) throw new IllegalArgumentException("The check must be at least 1 millisecond");
+      this.check = check;
+      return this;
+    }
+
+    /**
+     * Set the millis to wait for a server to accept a connection. Servers that do not accept it in
+     * time are left unhealthy and retried later. It replaces the connect timeout set in {@link
+     * #configure(Consumer)}. By default a second
+     *
+     * @param connectTimeout the millis to wait
+     * @return this same builder instance
+     */
+    @NonNull
+    public PoolBuilder connectTimeout(int connectTimeout) {
+      if (connectTimeout < 1) {
+        throw new IllegalArgumentException("The connect timeout must be at least 1 millisecond");
+      }
+      this.connectTimeout = connectTimeout;
+      return this;
+    }
+
+    /**
+     * Set the handler of the exceptions thrown while checking the health of the connections.
+     *
+     * @param handler the new exception handler
+     * @return this same builder instance
+     */
+    @NonNull
+    public PoolBuilder handle(@NonNull Consumer<Throwable> handler) {
+      this.handler = handler;
+      return this;
+    }
+
+    /**
+     * Starts the pool. It waits up to the connect timeout for the connections, servers that cannot
+     * be connected are retried in the background
+     *
+     * @return the started pool
+     * @throws IllegalStateException if no endpoint was added
+     */
+    @NonNull
+    public JsonClientPool start() {
+      if (this.endpoints.isEmpty()) throw new IllegalStateException("There are no endpoints");
+      return new JsonClientPool(
+          new ArrayList<>(this.endpoints),
+          this.connections,
+          this.configuration,
+          this.failures,
+          this.stale,
+          this.retry,
+          this.check,
+          this.connectTimeout,
+          this.handler);
+    }
+  }
+}
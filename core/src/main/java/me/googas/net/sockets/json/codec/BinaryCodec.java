@@ -0,0 +1,292 @@
+package me.googas.net.sockets.json.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import lombok.NonNull;
+
+/**
+ * A compact binary codec for json trees in the spirit of MessagePack. Each value starts with a tag
+ * byte, integers are written as zig-zag variable length numbers, doubles use 8 bytes and strings,
+ * arrays and objects are prefixed by their length so they can be read without looking for
+ * delimiters.
+ *
+ * <p>Numbers that are neither integers nor doubles that survive a round trip are written as text so
+ * they are not changed by the codec
+ */
+public final class BinaryCodec implements MessageCodec {
+
+  private static final int NULL = 0;
+  private static final int FALSE = 1;
+  private static final int TRUE = 2;
+  private static final int INTEGER = 3;
+  private static final int DOUBLE = 4;
+  private static final int NUMBER = 5;
+  private static final int STRING = 6;
+  private static final int ARRAY = 7;
+  private static final int OBJECT = 8;
+
+  /** The maximum nesting of arrays and objects that is decoded. */
+  private static final int MAX_DEPTH = 512;
+
+  BinaryCodec() {}
+
+  @Override
+  public int getId() {
+    return 1;
+  }
+
+  @Override
+  public @NonNull String getName() {
+    return "binary";
+  }
+
+  @Override
+  public @NonNull byte[] encode(@NonNull Gson gson, @NonNull Object message) {
+    JsonElement element =
+        message instanceof JsonElement ? (JsonElement) message : gson.toJsonTree(message);
+    Output output = new Output();
+    output.write(element);
+    return Arrays.copyOf(output.bytes, output.size);
+  }
+
+  @Override
+  public @NonNull JsonElement decode(@NonNull Gson gson, @NonNull byte[] payload) {
+    Input input = new Input(payload);
+    JsonElement element = input.read(0);
+    if (input.position != payload.length) {
+      throw new JsonParseException("Unexpected bytes after the message");
+    }
+    return element;
+  }
+
+  @Override
+  public String toString() {
+    return "BinaryCodec{}";
+  }
+
+  /** The bytes being encoded. */
+  private static final class Output {
+
+    @NonNull private byte[] bytes = new byte[256];
+    private int size;
+
+    private void ensure(int length) {
+      if (this.size + length > this.bytes.length) {
+        this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + length));
+      }
+    }
+
+    private void writeByte(int b) {
+      this.ensure(1);
+      this.bytes[this.size++] = (byte) b;
+    }
+
+    private void writeVarint(long value) {
+      this.ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        this.bytes[this.size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      this.bytes[this.size++] = (byte) value;
+    }
+
+    private void writeString(@NonNull String string) {
+      byte[] utf = string.getBytes(StandardCharsets.UTF_8);
+      this.writeVarint(utf.length);
+      this.ensure(utf.length);
+      System.arraycopy(utf, 0, this.bytes, this.size, utf.length);
+      this.size += utf.length;
+    }
+
+    private void write(@NonNull JsonElement element) {
+      if (element.isJsonNull()) {
+        this.writeByte(BinaryCodec.NULL);
+      } else if (element.isJsonPrimitive()) {
+        this.write(element.getAsJsonPrimitive());
+      } else if (element.isJsonArray()) {
+        JsonArray array = element.getAsJsonArray();
+        this.writeByte(BinaryCodec.ARRAY);
+        this.writeVarint(array.size());
+        for (JsonElement child : array) this.write(child);
+      } else {
+        JsonObject object = element.getAsJsonObject();
+        this.writeByte(BinaryCodec.OBJECT);
+        this.writeVarint(object.size());
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+          this.writeString(entry.getKey());
+          this.write(entry.getValue());
+        }
+      }
+    }
+
+    private void write(@NonNull JsonPrimitive primitive) {
+      if (primitive.isBoolean()) {
+        this.writeByte(primitive.getAsBoolean() ? BinaryCodec.TRUE : BinaryCodec.FALSE);
+      } else if (primitive.isString()) {
+        this.writeByte(BinaryCodec.STRING);
+        this.writeString(primitive.getAsString());
+      } else {
+        this.write(primitive.getAsNumber());
+      }
+    }
+
+    private void write(@NonNull Number number) {
+      if (number instanceof Integer
+          || number instanceof Long
+          || number instanceof Short
+          || number instanceof Byte) {
+        this.writeInteger(number.longValue());
+      } else if (number instanceof Double) {
+        this.writeByte(BinaryCodec.DOUBLE);
+        this.writeDouble(number.doubleValue());
+      } else {
+        String text = number.toString();
+        if (BinaryCodec.isInteger(text)) {
+          this.writeInteger(Long.parseLong(text));
+        } else if (BinaryCodec.isDouble(text)) {
+          this.writeByte(BinaryCodec.DOUBLE);
+          this.writeDouble(Double.parseDouble(text));
+        } else {
+          this.writeByte(BinaryCodec.NUMBER);
+          this.writeString(text);
+        }
+      }
+    }
+
+    private void writeInteger(long value) {
+      this.writeByte(BinaryCodec.INTEGER);
+      this.writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeDouble(double value) {
+      long bits = Double.doubleToRawLongBits(value);
+      this.ensure(8);
+      for (int shift = 56; shift >= 0; shift -= 8)
+        this.bytes[this.size++] = (byte) (bits >>> shift);
+    }
+  }
+
+  /**
+   * Get whether a number can be written as an integer without changing it.
+   *
+   * @param text the text of the number
+   * @return true if the text is an integer that fits in a long
+   */
+  private static boolean isInteger(@NonNull String text) {
+    int start = text.startsWith("-") ? 1 : 0;
+    // Longs have up to 19 digits, shorter numbers always fit
+    if (text.length() <= start || text.length() - start > 18) return false;
+    if (text.length() - start > 1 && text.charAt(start) == '0') return false;
+    for (int i = start; i < text.length(); i++) {
+      if (!Character.isDigit(text.charAt(i))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Get whether a number can be written as a double without changing it.
+   *
+   * @param text the text of the number
+   * @return true if the text is the same as the text of the double that it represents
+   */
+  private static boolean isDouble(@NonNull String text) {
+    try {
+      return Double.toString(Double.parseDouble(text)).equals(text);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /** The bytes being decoded. */
+  private static final class Input {
+
+    @NonNull private final byte[] bytes;
+    private int position;
+
+    private Input(@NonNull byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    private int readByte() {
+      if (this.position >= this.bytes.length) throw new JsonParseException("Unexpected end");
+      return this.bytes[this.position++] & 0xFF;
+    }
+
+    private long readVarint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = this.readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+      throw new JsonParseException("Malformed variable length number");
+    }
+
+    private int readLength() {
+      long length = this.readVarint();
+      if (length < 0 || length > this.bytes.length - this.position) {
+        throw new JsonParseException("Length " + length + " exceeds the message");
+      }
+      return (int) length;
+    }
+
+    @NonNull
+    private String readString() {
+      int length = this.readLength();
+      String string = new String(this.bytes, this.position, length, StandardCharsets.UTF_8);
+      this.position += length;
+      return string;
+    }
+
+    @NonNull
+    private JsonElement read(int depth) {
+      if (depth > BinaryCodec.MAX_DEPTH) throw new JsonParseException("The message is too deep");
+      int tag = this.readByte();
+      switch (tag) {
+        case BinaryCodec.NULL:
+          return JsonNull.INSTANCE;
+        case BinaryCodec.FALSE:
+          return new JsonPrimitive(false);
+        case BinaryCodec.TRUE:
+          return new JsonPrimitive(true);
+        case BinaryCodec.INTEGER:
+          long zigzag = this.readVarint();
+          return new JsonPrimitive((zigzag >>> 1) ^ -(zigzag & 1));
+        case BinaryCodec.DOUBLE:
+          long bits = 0;
+          for (int i = 0; i < 8; i++) bits = (bits << 8) | this.readByte();
+          return new JsonPrimitive(Double.longBitsToDouble(bits));
+        case BinaryCodec.NUMBER:
+          String text = this.readString();
+          try {
+            return new JsonPrimitive(new BigDecimal(text));
+          } catch (NumberFormatException e) {
+            throw new JsonParseException("Malformed number " + text, e);
+          }
+        case BinaryCodec.STRING:
+          return new JsonPrimitive(this.readString());
+        case BinaryCodec.ARRAY:
+          int size = this.readLength();
+          JsonArray array = new JsonArray(size);
+          for (int i = 0; i < size; i++) array.add(this.read(depth + 1));
+          return array;
+        case BinaryCodec.OBJECT:
+          int entries = this.readLength();
+          JsonObject object = new JsonObject();
+          for (int i = 0; i < entries; i++) object.add(this.readString(), this.read(depth + 1));
+          return object;
+        default:
+          throw new JsonParseException("Unknown tag " + tag);
+      }
+    }
+  }
+}
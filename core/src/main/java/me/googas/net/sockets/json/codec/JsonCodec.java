@@ -0,0 +1,43 @@
+package me.googas.net.sockets.json.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import lombok.NonNull;
+
+/** Writes messages as UTF-8 json text. This is the codec used when no other one is agreed. */
+public final class JsonCodec implements MessageCodec {
+
+  JsonCodec() {}
+
+  @Override
+  public int getId() {
+    return 0;
+  }
+
+  @Override
+  public @NonNull String getName() {
+    return "json";
+  }
+
+  @Override
+  public @NonNull byte[] encode(@NonNull Gson gson, @NonNull Object message) {
+    return gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public @NonNull JsonElement decode(@NonNull Gson gson, @NonNull byte[] payload) {
+    return JsonParser.parseReader(
+        new JsonReader(
+            new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8)));
+  }
+
+  @Override
+  public String toString() {
+    return "JsonCodec{}";
+  }
+}
@@ -0,0 +1,61 @@
+package me.googas.net.sockets.json.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import lombok.NonNull;
+import me.googas.net.sockets.json.Frame;
+import me.googas.net.sockets.json.Wire;
+
+/**
+ * Encodes and decodes the payload of the messages written in the {@link
+ * me.googas.net.sockets.json.WireFormat#FRAMED} format. Codecs work on the json tree of the
+ * messages so receptors and requests keep using {@link Gson} to bind their objects.
+ *
+ * <p>The id of the codec is written in the flags of each frame so a {@link Wire} can read messages
+ * of any codec it knows while the codec used to write them is agreed in the handshake using its
+ * name. Both peers must use the same id for the same codec
+ */
+public interface MessageCodec {
+
+  /** The codec that writes messages as json text. It can be read by every peer */
+  @NonNull MessageCodec JSON = new JsonCodec();
+
+  /** The compact binary codec. */
+  @NonNull MessageCodec BINARY = new BinaryCodec();
+
+  /**
+   * Get the id of the codec which is written in the flags of the frames.
+   *
+   * @return the id of the codec which must be between 0 and {@link Frame#CODEC}
+   */
+  int getId();
+
+  /**
+   * Get the name of the codec used to agree on it in the handshake.
+   *
+   * @return the name of the codec
+   */
+  @NonNull
+  String getName();
+
+  /**
+   * Encodes a message.
+   *
+   * @param gson the gson of the messenger to serialize the message
+   * @param message the message to encode, it may be a {@link JsonElement}
+   * @return the encoded bytes
+   */
+  @NonNull
+  byte[] encode(@NonNull Gson gson, @NonNull Object message);
+
+  /**
+   * Decodes a message.
+   *
+   * @param gson the gson of the messenger
+   * @param payload the encoded bytes
+   * @return the json tree of the message
+   * @throws com.google.gson.JsonParseException if the bytes are not a valid message
+   */
+  @NonNull
+  JsonElement decode(@NonNull Gson gson, @NonNull byte[] payload);
+}
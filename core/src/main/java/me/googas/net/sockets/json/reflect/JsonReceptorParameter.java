@@ -1,6 +1,10 @@
 package me.googas.net.sockets.json.reflect;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
 import lombok.NonNull;
+import me.googas.net.api.Messenger;
 
 /**
  * A parameter that the receptor needs to be used.
@@ -15,6 +19,12 @@ public class JsonReceptorParameter<T> {
   /** The class that is required for the receptor to be executed. */
   @NonNull private final Class<T> clazz;
 
+  /** Whether the parameter is given the messenger that executes the receptor. */
+  private final boolean messenger;
+
+  /** The adapter of the class resolved from the last gson used to read the parameter. */
+  private volatile Binding<T> binding;
+
   /**
    * Create the receptor parameter.
    *
@@ -24,6 +34,33 @@ public class JsonReceptorParameter<T> {
   public JsonReceptorParameter(@NonNull String name, @NonNull Class<T> clazz) {
     this.name = name;
     this.clazz = clazz;
+    this.messenger = Messenger.class.isAssignableFrom(clazz);
+  }
+
+  /**
+   * Reads the value of the parameter. The {@link TypeAdapter} of the class is resolved once and
+   * reused while the same gson is used
+   *
+   * @param gson the gson of the messenger
+   * @param element the json of the value
+   * @return the value of the parameter
+   */
+  public T fromJson(@NonNull Gson gson, @NonNull JsonElement element) {
+    Binding<T> binding = this.binding;
+    if (binding == null || binding.gson != gson) {
+      binding = new Binding<>(gson, gson.getAdapter(this.clazz));
+      this.binding = binding;
+    }
+    return binding.adapter.fromJsonTree(element);
+  }
+
+  /**
+   * Get whether the parameter is given the messenger that executes the receptor.
+   *
+   * @return true if the class of the parameter is a {@link Messenger}
+   */
+  public boolean isMessenger() {
+    return this.messenger;
   }
 
   /**
@@ -45,4 +82,20 @@ public class JsonReceptorParameter<T> {
   public Class<T> getClazz() {
     return this.clazz;
   }
+
+  /**
+   * A type adapter and the gson from which it was resolved.
+   *
+   * @param <T> the type of object that the adapter reads
+   */
+  private static final class Binding<T> {
+
+    @NonNull private final Gson gson;
+    @NonNull private final TypeAdapter<T> adapter;
+
+    private Binding(@NonNull Gson gson, @NonNull TypeAdapter<T> adapter) {
+      this.gson = gson;
+      this.adapter = adapter;
+    }
+  }
 }
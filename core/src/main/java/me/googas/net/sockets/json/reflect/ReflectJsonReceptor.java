@@ -1,7 +1,11 @@
 package me.googas.net.sockets.json.reflect;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
@@ -28,6 +32,9 @@ import me.googas.reflect.utility.ReflectUtil;
  */
 public class ReflectJsonReceptor implements JsonReceptor {
 
+  /** The parameters given to receptors that do not have parameters. */
+  @NonNull private static final Object[] NO_PARAMETERS = new Object[0];
+
   /** The method which request must use to prepare this receptor. */
   @NonNull private final String requestMethod;
 
@@ -37,6 +44,12 @@ public class ReflectJsonReceptor implements JsonReceptor {
   /** The method to prepare. This is the annotated method with {@link JsonReceptor} */
   @NonNull private final Method method;
 
+  /**
+   * The handle of the method bound to the object which takes the parameters as an array. Null if
+   * the method cannot be accessed using handles so it is invoked using reflection
+   */
+  private final MethodHandle invoker;
+
   /** The parameters that the receptor requires to be executed. */
   @NonNull private final List<JsonReceptorParameter<?>> parameters;
 
@@ -57,6 +70,54 @@ public class ReflectJsonReceptor implements JsonReceptor {
     this.object = object;
     this.method = method;
     this.parameters = parameters;
+    this.invoker = ReflectJsonReceptor.getInvoker(object, method);
+  }
+
+  /**
+   * Get the handle to invoke a method. The handle is bound to the object and typed as {@code
+   * (Object[])Object} so it can be invoked exactly without boxing the receiver or checking its type
+   * on each call. Exceptions and errors thrown by the method are wrapped in an {@link
+   * InvocationTargetException} as when it is invoked using reflection
+   *
+   * @param object the object required to prepare the method
+   * @param method the method to prepare
+   * @return the handle or null if the method cannot be accessed using handles
+   */
+  private static MethodHandle getInvoker(@NonNull Object object, @NonNull Method method) {
+    try {
+      MethodHandle handle;
+      try {
+        handle = MethodHandles.publicLookup().unreflect(method);
+      } catch (IllegalAccessException e) {
+        // Public methods of classes that are not public such as anonymous classes
+        method.setAccessible(true);
+        handle = MethodHandles.lookup().unreflect(method);
+      }
+      MethodHandle target =
+          MethodHandles.lookup()
+              .findStatic(
+                  ReflectJsonReceptor.class,
+                  "target",
+                  MethodType.methodType(Object.class, Throwable.class))
+              .asType(MethodType.methodType(handle.type().returnType(), Throwable.class));
+      return MethodHandles.catchException(handle, Throwable.class, target)
+          .bindTo(object)
+          .asSpreader(Object[].class, method.getParameterCount())
+          .asType(MethodType.methodType(Object.class, Object[].class));
+    } catch (IllegalAccessException | NoSuchMethodException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Wraps an exception or error thrown by the method of a receptor.
+   *
+   * @param e the exception or error thrown by the method
+   * @return never returns
+   * @throws InvocationTargetException always wrapping the exception
+   */
+  private static Object target(@NonNull Throwable e) throws InvocationTargetException {
+    throw new InvocationTargetException(e);
   }
 
   /**
@@ -92,25 +153,25 @@ public class ReflectJsonReceptor implements JsonReceptor {
       @NonNull Messenger messenger, @NonNull ReceivedJsonRequest request, @NonNull Gson gson)
       throws JsonExternalCommunicationException {
     if (this.getParameters().isEmpty()) {
-      return new Object[0];
+      return ReflectJsonReceptor.NO_PARAMETERS;
     } else {
       Object[] objects = new Object[this.getParameters().size()];
 
       for (int i = 0; i < this.getParameters().size(); i++) {
         JsonReceptorParameter<?> parameter = this.getParameters().get(i);
-        if (Messenger.class.isAssignableFrom(parameter.getClazz())) {
+        if (parameter.isMessenger()) {
           objects[i] = messenger;
-        } else if (request.getParameters().containsKey(parameter.getName())) {
+        } else {
+          JsonElement element = request.getParameters().get(parameter.getName());
+          if (element == null) {
+            throw new JsonExternalCommunicationException(
+                "Missing argument '" + parameter.getName() + "' in request " + request);
+          }
           try {
-            objects[i] =
-                gson.fromJson(
-                    request.getParameters().get(parameter.getName()), parameter.getClazz());
+            objects[i] = parameter.fromJson(gson, element);
           } catch (RuntimeException e) {
             throw new JsonExternalCommunicationException(e + " in request " + request);
           }
-        } else {
-          throw new JsonExternalCommunicationException(
-              "Missing argument '" + parameter.getName() + "' in request " + request);
         }
       }
       return objects;
@@ -126,8 +187,19 @@ public class ReflectJsonReceptor implements JsonReceptor {
   public Object execute(
       Messenger messenger, @NonNull ReceivedJsonRequest request, @NonNull Gson gson)
       throws JsonExternalCommunicationException, JsonInternalCommunicationException {
+    Object[] parameters = this.getParameters(messenger, request, gson);
+    if (this.invoker != null) {
+      try {
+        return (Object) this.invoker.invokeExact(parameters);
+      } catch (InvocationTargetException e) {
+        throw new JsonExternalCommunicationException(e);
+      } catch (Throwable e) {
+        // The parameters could not be given to the method
+        throw new JsonInternalCommunicationException(e);
+      }
+    }
     try {
-      return this.method.invoke(this.object, this.getParameters(messenger, request, gson));
+      return this.method.invoke(this.object, parameters);
     } catch (IllegalAccessException e) {
       throw new JsonInternalCommunicationException(e);
     } catch (InvocationTargetException e) {
@@ -9,9 +9,12 @@ import java.io.PrintWriter;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Consumer;
 import lombok.Getter;
 import lombok.NonNull;
@@ -20,15 +23,17 @@ import me.googas.net.api.Error;
 import me.googas.net.api.auth.Authenticator;
 import me.googas.net.api.messages.AwaitingRequest;
 import me.googas.net.api.messages.Response;
-import me.googas.net.sockets.json.JsonMessenger;
+import me.googas.net.sockets.json.BlockingJsonMessenger;
 import me.googas.net.sockets.json.JsonReceptor;
 import me.googas.net.sockets.json.ReceivedJsonRequest;
+import me.googas.net.sockets.json.RequestLimiter;
+import me.googas.net.sockets.json.Wire;
 
 /**
- * A guido client thread is the {@link Thread} where a client connected to the {@link
- * JsonSocketServer}.
+ * A client connected to the {@link JsonSocketServer}. It listens to the messages of the client in a
+ * thread of its own which is created once it is started.
  */
-public class JsonClientThread extends Thread implements JsonMessenger {
+public class JsonClientThread implements BlockingJsonMessenger {
 
   /** The builder to build json strings. */
   @NonNull @Getter private final StringBuilder builder = new StringBuilder();
@@ -46,7 +51,13 @@ public class JsonClientThread extends Thread implements JsonMessenger {
   @NonNull @Getter private final JsonSocketServer server;
 
   /** The request that are waiting for a response. */
-  @NonNull @Getter private final Map<AwaitingRequest<?>, Long> requests = new HashMap<>();
+  @NonNull @Getter private final Map<UUID, AwaitingRequest<?>> requests = new ConcurrentHashMap<>();
+
+  /** The protocol used in the wire. */
+  @NonNull @Getter private final Wire wire = new Wire();
+
+  /** The limiter of the requests from the client that are handled at the same time. */
+  @NonNull @Getter private final RequestLimiter limiter;
 
   /** The time to timeout requests. */
   @Getter private final long timeout;
@@ -57,6 +68,9 @@ public class JsonClientThread extends Thread implements JsonMessenger {
   /** The millis of when the last message was sent. */
   @Getter @Setter private long lastMessage;
 
+  /** The thread that listens to the messages of the client. Null until the client is started */
+  private volatile Thread thread;
+
   /**
    * Create the client thread.
    *
@@ -75,6 +89,7 @@ public class JsonClientThread extends Thread implements JsonMessenger {
         new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
     this.server = server;
     this.timeout = timeout;
+    this.limiter = new RequestLimiter(server.getConcurrency());
   }
 
   @Override
@@ -82,9 +97,36 @@ public class JsonClientThread extends Thread implements JsonMessenger {
     return this.server.getReceptors();
   }
 
-  @Override
-  public void run() {
-    JsonMessenger.super.run();
+  /**
+   * Starts listening to the messages of the client in a new thread.
+   *
+   * @throws IllegalStateException if it was already started
+   */
+  public void start() {
+    this.start(Thread::new);
+  }
+
+  /**
+   * Starts listening to the messages of the client in a thread created by a factory.
+   *
+   * @param factory the factory of the thread
+   * @throws IllegalStateException if it was already started
+   */
+  public synchronized void start(@NonNull ThreadFactory factory) {
+    if (this.thread != null) throw new IllegalStateException(this + " has already been started");
+    Thread thread = factory.newThread(this);
+    thread.start();
+    this.thread = thread;
+  }
+
+  /**
+   * Get the thread that listens to the messages of the client.
+   *
+   * @return a {@link Optional} instance containing the thread if it was started else empty
+   */
+  @NonNull
+  public Optional<Thread> getThread() {
+    return Optional.ofNullable(this.thread);
   }
 
   @Override
@@ -97,6 +139,11 @@ public class JsonClientThread extends Thread implements JsonMessenger {
     return this.server.getThrowableHandler();
   }
 
+  @Override
+  public @NonNull Executor getExecutor() {
+    return this.server.getExecutor();
+  }
+
   @Override
   public void close() {
     this.setClosed(true);
@@ -114,21 +161,20 @@ public class JsonClientThread extends Thread implements JsonMessenger {
     }
     this.server.remove(this);
     this.requests.clear();
+    this.wire.release();
   }
 
   @Override
-  public void acceptRequest(@NonNull ReceivedJsonRequest request) {
+  public @NonNull Response<?> respond(@NonNull ReceivedJsonRequest request) {
     Optional<Authenticator<JsonClientThread>> optional = this.server.getAuthenticator();
-    if (optional.isPresent()) {
-      if (optional.get().isAuthenticated(this, request)) {
-        JsonMessenger.super.acceptRequest(request);
-      } else {
-        this.printLine(
-            this.getGson()
-                .toJson(new Response<>(request.getId(), new Error("Authentication failed"))));
-      }
-    } else {
-      JsonMessenger.super.acceptRequest(request);
+    if (!optional.isPresent() || optional.get().isAuthenticated(this, request)) {
+      return BlockingJsonMessenger.super.respond(request);
     }
+    return new Response<>(request.getId(), new Error("Authentication failed"));
+  }
+
+  @Override
+  public String toString() {
+    return "JsonClientThread{" + "socket=" + this.socket + '}';
   }
 }
@@ -14,6 +14,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import lombok.Getter;
@@ -23,8 +28,15 @@ import me.googas.net.api.auth.Authenticator;
 import me.googas.net.api.exception.MessengerListenFailException;
 import me.googas.net.api.messages.Message;
 import me.googas.net.api.messages.StarboxRequest;
+import me.googas.net.sockets.json.Broadcast;
 import me.googas.net.sockets.json.JsonReceptor;
+import me.googas.net.sockets.json.ReceptorSet;
+import me.googas.net.sockets.json.RequestLimiter;
+import me.googas.net.sockets.json.VirtualThreads;
+import me.googas.net.sockets.json.Wire;
+import me.googas.net.sockets.json.Workers;
 import me.googas.net.sockets.json.adapters.MessageDeserializer;
+import me.googas.net.sockets.json.codec.MessageCodec;
 import me.googas.net.sockets.json.reflect.ReflectJsonReceptor;
 
 /** An implementation for socket servers for guido. */
@@ -47,6 +59,18 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
   @Getter private final long timeout;
   /** The authenticator for the requests. */
   private Authenticator<JsonClientThread> authenticator;
+  /** The codecs added to the wire of the clients. */
+  @NonNull private final List<MessageCodec> codecs = new CopyOnWriteArrayList<>();
+  /** The number of bytes from which the payload of the messages sent to clients is compressed. */
+  private volatile int compression = Wire.DEFAULT_COMPRESSION;
+  /** The maximum number of requests of each client that are handled at the same time. */
+  private volatile int concurrency = Integer.MAX_VALUE;
+  /** The factory of the threads that listen to clients. Null to start the clients as threads */
+  private final ThreadFactory threadFactory;
+  /** The executor in which requests from clients are handled. */
+  @NonNull @Getter private final Executor executor;
+  /** Whether the executor was created for this server and is shut down when it closes. */
+  private final boolean ownsExecutor;
 
   /**
    * Create the server.
@@ -66,12 +90,53 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
       @NonNull Gson gson,
       long timeout,
       Authenticator<JsonClientThread> authenticator) {
+    this(
+        server,
+        receptors,
+        throwableHandler,
+        gson,
+        timeout,
+        authenticator,
+        null,
+        Workers.bounded("json-server-worker"),
+        true);
+  }
+
+  /**
+   * Create the server.
+   *
+   * @param server the socket server which will send rand receive messages
+   * @param receptors the receptors to handle requests
+   * @param throwableHandler the handler for exceptions
+   * @param gson the gson to serialize and deserialize objects
+   * @param timeout the maximum timeout for messages in millis
+   * @param authenticator the authentication methods that clients must complete to connect in the
+   *     server
+   * @param threadFactory the factory of the threads that listen to clients. If null each client
+   *     listens in a new platform thread
+   * @param executor the executor in which requests from clients are handled
+   * @param ownsExecutor whether the executor is shut down when the server closes. Executors shared
+   *     with other components must not be shut down by the server
+   */
+  protected JsonSocketServer(
+      @NonNull ServerSocket server,
+      @NonNull Set<JsonReceptor> receptors,
+      @NonNull Consumer<Throwable> throwableHandler,
+      @NonNull Gson gson,
+      long timeout,
+      Authenticator<JsonClientThread> authenticator,
+      ThreadFactory threadFactory,
+      @NonNull Executor executor,
+      boolean ownsExecutor) {
     this.server = server;
     this.receptors = receptors;
     this.throwableHandler = throwableHandler;
     this.gson = gson;
     this.timeout = timeout;
     this.authenticator = authenticator;
+    this.threadFactory = threadFactory;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
   }
 
   /**
@@ -100,6 +165,9 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
     this.authenticator = authenticator;
     this.gson = gson;
     this.timeout = timeout;
+    this.threadFactory = null;
+    this.executor = Workers.bounded("json-server-worker");
+    this.ownsExecutor = true;
   }
 
   /**
@@ -120,7 +188,7 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
       @NonNull Gson gson,
       long timeout)
       throws IOException {
-    this(port, new HashSet<>(), throwableHandler, authenticator, gson, timeout);
+    this(port, new ReceptorSet(), throwableHandler, authenticator, gson, timeout);
   }
 
   /**
@@ -188,6 +256,9 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
     }
     this.server.close();
     this.receptors.clear();
+    if (this.ownsExecutor && this.executor instanceof ExecutorService) {
+      ((ExecutorService) this.executor).shutdown();
+    }
   }
 
   @Override
@@ -196,7 +267,9 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
       try {
         Socket socket = this.server.accept();
         JsonClientThread client = new JsonClientThread(socket, this, this.timeout);
-        client.start();
+        this.codecs.forEach(client.getWire()::addCodec);
+        client.getWire().setCompression(this.compression);
+        client.start(this.threadFactory == null ? Thread::new : this.threadFactory);
         this.clients.add(client);
         this.onConnection(client);
       } catch (IOException e) {
@@ -223,17 +296,44 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
   @NonNull
   public <T> Map<JsonClientThread, Optional<T>> sendRequest(@NonNull StarboxRequest<T> request) {
     Map<JsonClientThread, Optional<T>> responses = new HashMap<>();
-    this.clients.forEach(
-        client -> {
-          try {
-            responses.put(client, client.sendRequest(request));
-          } catch (MessengerListenFailException e) {
-            this.throwableHandler.accept(e);
-          }
-        });
+    this.broadcast(request)
+        .join()
+        .forEach((client, response) -> responses.put(client, Optional.ofNullable(response)));
     return responses;
   }
 
+  /**
+   * Sends a request to every client without waiting for each of them. The request is serialized
+   * once and written to the clients in parallel using the {@link #getExecutor()}, clients that do
+   * not reply in {@link #getTimeout()} are left out of the result
+   *
+   * @param request the request to send
+   * @param <T> the type of object requested
+   * @return a future which completes with the replies of the clients
+   * @see Broadcast#send(Collection, StarboxRequest, long, Executor, Consumer)
+   */
+  @NonNull
+  public <T> CompletableFuture<Map<JsonClientThread, T>> broadcast(
+      @NonNull StarboxRequest<T> request) {
+    return this.broadcast(request, this.timeout);
+  }
+
+  /**
+   * Sends a request to every client without waiting for each of them.
+   *
+   * @param request the request to send
+   * @param timeout the millis that each client has to reply
+   * @param <T> the type of object requested
+   * @return a future which completes with the replies of the clients
+   * @see #broadcast(StarboxRequest)
+   */
+  @NonNull
+  public <T> CompletableFuture<Map<JsonClientThread, T>> broadcast(
+      @NonNull StarboxRequest<T> request, long timeout) {
+    return Broadcast.send(
+        new ArrayList<>(this.clients), request, timeout, this.executor, this.throwableHandler);
+  }
+
   /**
    * Called when a client gets connected to the server.
    *
@@ -249,6 +349,51 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
     }
   }
 
+  /**
+   * Adds a codec that clients may agree on in their handshake besides {@link MessageCodec#JSON} and
+   * {@link MessageCodec#BINARY}. It is only given to the clients that connect after it is added
+   *
+   * @param codec the codec to add
+   * @see Wire#addCodec(MessageCodec)
+   */
+  public void addCodec(@NonNull MessageCodec codec) {
+    this.codecs.add(codec);
+  }
+
+  /**
+   * Set the number of bytes from which the payload of the messages sent to clients is compressed.
+   * Messages are only compressed if the client agrees to it in the handshake and the threshold is
+   * only given to the clients that connect after it is set
+   *
+   * @param compression the new threshold or a negative number to never compress messages
+   * @see Wire#setCompression(int)
+   */
+  public void setCompression(int compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Set the maximum number of requests of each client that are handled at the same time. Requests
+   * over the limit are answered with an error with the cause {@link RequestLimiter#BUSY}. The limit
+   * is only given to the clients that connect after it is set
+   *
+   * @param concurrency the maximum number of requests of each client
+   * @throws IllegalArgumentException if the maximum is lower than 1
+   */
+  public void setConcurrency(int concurrency) {
+    if (concurrency < 1) throw new IllegalArgumentException("The concurrency must be at least 1");
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Get the maximum number of requests of each client that are handled at the same time.
+   *
+   * @return the maximum number of requests of each client
+   */
+  public int getConcurrency() {
+    return this.concurrency;
+  }
+
   /** This class is used to create instances of servers in a neat way. */
   public static class ServerBuilder {
 
@@ -258,6 +403,12 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
     @NonNull private Consumer<Throwable> handler;
     private long timeout;
     private Authenticator<JsonClientThread> authenticator;
+    @NonNull private final List<MessageCodec> codecs = new ArrayList<>();
+    private int compression = Wire.DEFAULT_COMPRESSION;
+    private int concurrency = Integer.MAX_VALUE;
+    private ThreadFactory threadFactory;
+    private Executor executor;
+    private boolean ownsExecutor;
 
     /**
      * Create the builder.
@@ -266,12 +417,88 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
      */
     private ServerBuilder(int port) {
       this.port = port;
-      this.receptors = new HashSet<>();
+      this.receptors = new ReceptorSet();
       this.gson = new GsonBuilder().registerTypeAdapter(Message.class, new MessageDeserializer());
       this.handler = Throwable::printStackTrace;
       this.timeout = 1000;
     }
 
+    /**
+     * Set the factory of the threads that listen to clients. By default each client listens in a
+     * new platform thread
+     *
+     * @param threadFactory the new factory of threads
+     * @return this same builder instance
+     */
+    @NonNull
+    public ServerBuilder threads(@NonNull ThreadFactory threadFactory) {
+      this.threadFactory = threadFactory;
+      return this;
+    }
+
+    /**
+     * Set the executor in which requests from clients are handled. By default a pool with {@link
+     * Workers#DEFAULT_THREADS} threads and a queue of {@link Workers#DEFAULT_QUEUE} requests is
+     * used, see {@link #workers(int, int)}
+     *
+     * @param executor the new executor. It is not shut down when the server closes as it may be
+     *     shared
+     * @return this same builder instance
+     */
+    @NonNull
+    public ServerBuilder executor(@NonNull Executor executor) {
+      this.executor = executor;
+      this.ownsExecutor = false;
+      return this;
+    }
+
+    /**
+     * Handle the requests of clients in a pool with its own threads and a bounded queue. When the
+     * queue is full requests are answered with an error with the cause {@link
+     * RequestLimiter#OVERLOADED} instead of waiting. The pool is shut down when the server closes
+     *
+     * @param threads the number of threads of the pool
+     * @param queue the number of requests that can wait for a thread
+     * @return this same builder instance
+     * @see Workers#bounded(String, int, int)
+     */
+    @NonNull
+    public ServerBuilder workers(int threads, int queue) {
+      this.executor = Workers.bounded("json-server-worker", threads, queue);
+      this.ownsExecutor = true;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of requests of each client that are handled at the same time so a
+     * client cannot take every thread of the executor. Requests over the limit are answered with an
+     * error with the cause {@link RequestLimiter#BUSY}. By default it is only limited by the
+     * executor
+     *
+     * @param concurrency the maximum number of requests of each client
+     * @return this same builder instance
+     */
+    @NonNull
+    public ServerBuilder concurrency(int concurrency) {
+      if (concurrency < 1) throw new IllegalArgumentException("The concurrency must be at least 1");
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * Listen to clients and handle their requests in virtual threads. If the running version does
+     * not have virtual threads this does nothing and platform threads are used
+     *
+     * @return this same builder instance
+     * @see VirtualThreads
+     */
+    @NonNull
+    public ServerBuilder virtualThreads() {
+      VirtualThreads.factory().ifPresent(this::threads);
+      VirtualThreads.executor().ifPresent(this::executor);
+      return this;
+    }
+
     /**
      * Set the exception handler that the client may use.
      *
@@ -347,6 +574,34 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
       return this;
     }
 
+    /**
+     * Adds a codec that clients may agree on in their handshake besides {@link MessageCodec#JSON}
+     * and {@link MessageCodec#BINARY}.
+     *
+     * @param codec the codec to add
+     * @return this same builder instance
+     * @see Wire#addCodec(MessageCodec)
+     */
+    @NonNull
+    public ServerBuilder codec(@NonNull MessageCodec codec) {
+      this.codecs.add(codec);
+      return this;
+    }
+
+    /**
+     * Set the number of bytes from which the payload of the messages sent to clients is compressed.
+     * Messages are only compressed if the client agrees to it in the handshake. By default {@link
+     * Wire#DEFAULT_COMPRESSION} is used
+     *
+     * @param compression the new threshold or a negative number to never compress messages
+     * @return this same builder instance
+     */
+    @NonNull
+    public ServerBuilder compression(int compression) {
+      this.compression = compression;
+      return this;
+    }
+
     /**
      * Starts the server.
      *
@@ -355,14 +610,24 @@ public class JsonSocketServer extends Thread implements Server<JsonClientThread>
      */
     @NonNull
     public JsonSocketServer start() throws IOException {
+      ServerSocket socket = new ServerSocket(this.port);
+      boolean ownsExecutor = this.executor == null || this.ownsExecutor;
+      Executor executor =
+          this.executor == null ? Workers.bounded("json-server-worker") : this.executor;
       JsonSocketServer server =
           new JsonSocketServer(
-              new ServerSocket(this.port),
+              socket,
               this.receptors,
               this.handler,
               this.gson.create(),
               this.timeout,
-              this.authenticator);
+              this.authenticator,
+              this.threadFactory,
+              executor,
+              ownsExecutor);
+      this.codecs.forEach(server::addCodec);
+      server.setCompression(this.compression);
+      server.setConcurrency(this.concurrency);
       server.start();
       return server;
     }
@@ -0,0 +1,415 @@
+package me.googas.net.sockets.json.server;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.NonNull;
+import me.googas.net.api.Error;
+import me.googas.net.api.messages.AwaitingRequest;
+import me.googas.net.api.messages.Response;
+import me.googas.net.sockets.json.Frame;
+import me.googas.net.sockets.json.JsonMessenger;
+import me.googas.net.sockets.json.JsonReceptor;
+import me.googas.net.sockets.json.ReceivedJsonRequest;
+import me.googas.net.sockets.json.RequestLimiter;
+import me.googas.net.sockets.json.Wire;
+import me.googas.net.sockets.json.exception.JsonCommunicationException;
+
+/**
+ * A client connected to a {@link NioJsonSocketServer}. Unlike {@link JsonClientThread} it does not
+ * have its own thread: it is read and written by an I/O thread of the server when its channel is
+ * ready and the messages it reads are handled in the workers of the server.
+ *
+ * <p>Messages are queued until the channel can take them. A client that does not read its responses
+ * stops being read once too many bytes are queued, so it cannot make the server queue more, and it
+ * is closed if the queue still reaches its limit
+ */
+public class NioJsonConnection implements JsonMessenger {
+
+  /** The maximum number of messages waiting to be received. Further messages are refused */
+  private static final int INBOX = 1024;
+
+  /** The maximum number of messages received by a worker before it lets other clients use it. */
+  private static final int RECEIVE_BATCH = 64;
+
+  /** The number of queued bytes from which the channel stops being read. */
+  private static final long PAUSE_READS = 1024 * 1024;
+
+  /** The number of queued bytes below which the channel is read again. */
+  private static final long RESUME_READS = NioJsonConnection.PAUSE_READS / 2;
+
+  /** The minimum number of queued bytes from which the connection is closed. */
+  private static final long MAXIMUM_QUEUED = 16 * 1024 * 1024;
+
+  /** The builder to build json strings. */
+  @NonNull @Getter private final StringBuilder builder = new StringBuilder();
+
+  /** The channel that is connected to the client. */
+  @NonNull private final SocketChannel channel;
+
+  /** The server to which this client is connected to. */
+  @NonNull @Getter private final NioJsonSocketServer server;
+
+  /** The I/O thread that reads and writes the channel. */
+  @NonNull private final NioJsonSocketServer.IoLoop loop;
+
+  /** The request that are waiting for a response. */
+  @NonNull @Getter private final Map<UUID, AwaitingRequest<?>> requests = new ConcurrentHashMap<>();
+
+  /** The output which writes lines in the channel. */
+  @NonNull @Getter private final PrintWriter output = new PrintWriter(new ChannelWriter(), true);
+
+  /** The protocol used in the wire. */
+  @NonNull @Getter private final Wire wire;
+
+  /** The limiter of the messages from the client that are waiting for a worker or being handled. */
+  @NonNull @Getter private final RequestLimiter limiter;
+
+  /** The messages read that are waiting to be received in order. */
+  @NonNull private final Queue<Frame> inbox = new ArrayDeque<>();
+
+  /** Whether a worker is receiving the messages of the inbox. Guarded by the inbox */
+  private boolean receiving;
+
+  /** The buffer in which the channel is read. */
+  @NonNull private final ByteBuffer input = ByteBuffer.allocate(8192);
+
+  /** The buffers waiting to be written. */
+  @NonNull private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+
+  /** Whether the I/O thread has been asked to write the channel. */
+  @NonNull private final AtomicBoolean writing = new AtomicBoolean();
+
+  /** The number of bytes waiting to be written. */
+  @NonNull private final AtomicLong queued = new AtomicLong();
+
+  /** The number of queued bytes from which the connection is closed. */
+  private final long maximumQueued;
+
+  /** Whether the channel stopped being read because too many bytes are queued. I/O thread only */
+  private boolean paused;
+
+  /** The time to timeout requests. */
+  @Getter private final long timeout;
+
+  /** The key of the channel in the selector of the I/O thread. */
+  private SelectionKey key;
+
+  /** Whether the messenger is closed. */
+  @Getter private volatile boolean closed;
+
+  /** The millis of when the last message was sent. */
+  @Getter private volatile long lastMessage;
+
+  /**
+   * Create the connection.
+   *
+   * @param channel the channel that is connected to the client
+   * @param server the server to which the client is connected
+   * @param loop the I/O thread that reads and writes the channel
+   * @param timeout the time to timeout requests
+   * @param maximum the maximum number of bytes of a message
+   */
+  NioJsonConnection(
+      @NonNull SocketChannel channel,
+      @NonNull NioJsonSocketServer server,
+      @NonNull NioJsonSocketServer.IoLoop loop,
+      long timeout,
+      int maximum) {
+    this.channel = channel;
+    this.server = server;
+    this.loop = loop;
+    this.timeout = timeout;
+    this.wire = new Wire(maximum);
+    this.maximumQueued = Math.max(NioJsonConnection.MAXIMUM_QUEUED, 4L * maximum);
+    this.limiter = new RequestLimiter(server.getConcurrency());
+  }
+
+  /**
+   * Registers the channel in the selector of the I/O thread. Must be called in the I/O thread.
+   *
+   * @throws IOException if the channel could not be registered
+   */
+  void register() throws IOException {
+    this.channel.configureBlocking(false);
+    this.key = this.loop.register(this.channel, SelectionKey.OP_READ, this);
+  }
+
+  /**
+   * Reads the channel and gives the decoded messages to the workers of the server. Must be called
+   * in the I/O thread.
+   */
+  void read() {
+    try {
+      int read = this.channel.read(this.input);
+      if (read == -1) {
+        this.close();
+        return;
+      }
+      this.input.flip();
+      this.wire.decode(
+          this.input,
+          this::dispatch,
+          line -> this.getThrowableHandler().accept(new JsonCommunicationException(line)));
+      this.input.compact();
+    } catch (IOException e) {
+      if (!this.closed) this.getThrowableHandler().accept(e);
+      this.close();
+    }
+  }
+
+  /** Writes the queued buffers in the channel. Must be called in the I/O thread. */
+  void write() {
+    try {
+      ByteBuffer buffer;
+      while ((buffer = this.writes.peek()) != null) {
+        this.queued.addAndGet(-this.channel.write(buffer));
+        if (buffer.hasRemaining()) {
+          // The channel is full so it will be written once it is ready again
+          this.interest(true);
+          return;
+        }
+        this.writes.poll();
+      }
+      this.interest(false);
+      this.writing.set(false);
+      if (!this.writes.isEmpty() && this.writing.compareAndSet(false, true)) {
+        this.interest(true);
+      }
+    } catch (IOException e) {
+      if (!this.closed) this.getThrowableHandler().accept(e);
+      this.close();
+    }
+  }
+
+  /**
+   * Sets the operations the I/O thread waits for. The channel is not read while too many bytes are
+   * queued. Must be called in the I/O thread.
+   *
+   * @param write whether the channel must be written
+   */
+  private void interest(boolean write) {
+    long queued = this.queued.get();
+    if (queued >= NioJsonConnection.PAUSE_READS) {
+      this.paused = true;
+    } else if (queued < NioJsonConnection.RESUME_READS) {
+      this.paused = false;
+    }
+    int ops = this.paused ? 0 : SelectionKey.OP_READ;
+    this.key.interestOps(write ? ops | SelectionKey.OP_WRITE : ops);
+  }
+
+  /**
+   * Queues a buffer to be written in the channel by the I/O thread. If the queue exceeds its limit
+   * the connection is closed as the client is not reading its messages
+   *
+   * @param buffer the buffer to write
+   */
+  @Override
+  public void write(@NonNull ByteBuffer buffer) {
+    if (this.closed) return;
+    if (this.queued.addAndGet(buffer.remaining()) > this.maximumQueued) {
+      this.getThrowableHandler()
+          .accept(
+              new IOException(
+                  this
+                      + " was closed as it has more than "
+                      + this.maximumQueued
+                      + " bytes queued"));
+      this.close();
+      return;
+    }
+    this.writes.add(buffer);
+    if (this.writing.compareAndSet(false, true)) {
+      this.loop.execute(
+          () -> {
+            if (this.key != null && this.key.isValid()) this.interest(true);
+          });
+    }
+  }
+
+  /**
+   * Gives a message read from the client to the workers of the server. Messages are received one
+   * after the other in the order they were read and the requests in them are then handled
+   * concurrently in the workers by {@link JsonMessenger#acceptRequest(ReceivedJsonRequest)}. If too
+   * many messages are waiting or the workers cannot take more the message is refused
+   *
+   * @param frame the message
+   * @see #refuse(Frame, String)
+   */
+  void dispatch(@NonNull Frame frame) {
+    boolean full;
+    boolean start = false;
+    synchronized (this.inbox) {
+      full = this.inbox.size() >= NioJsonConnection.INBOX;
+      if (!full) {
+        this.inbox.add(frame);
+        start = !this.receiving;
+        this.receiving = true;
+      }
+    }
+    if (full) {
+      this.refuse(frame, RequestLimiter.BUSY);
+    } else if (start) {
+      this.schedule();
+    }
+  }
+
+  /**
+   * Asks a worker to receive the messages in the inbox. If the workers cannot take it the messages
+   * are refused.
+   */
+  private void schedule() {
+    try {
+      this.server.getWorkers().execute(this::drain);
+    } catch (RejectedExecutionException e) {
+      List<Frame> frames;
+      synchronized (this.inbox) {
+        frames = new ArrayList<>(this.inbox);
+        this.inbox.clear();
+        this.receiving = false;
+      }
+      if (this.closed || this.server.getWorkers().isShutdown()) return;
+      for (Frame frame : frames) this.refuse(frame, RequestLimiter.OVERLOADED);
+    }
+  }
+
+  /** Receives the messages in the inbox in order. Must be called in a worker. */
+  private void drain() {
+    for (int i = 0; i < NioJsonConnection.RECEIVE_BATCH; i++) {
+      Frame frame;
+      synchronized (this.inbox) {
+        frame = this.inbox.poll();
+        if (frame == null) {
+          this.receiving = false;
+          return;
+        }
+      }
+      try {
+        this.receive(frame);
+      } catch (RuntimeException e) {
+        this.getThrowableHandler().accept(e);
+      }
+    }
+    // Lets the messages of other clients take the worker before receiving the rest
+    this.schedule();
+  }
+
+  @Override
+  public @NonNull Response<?> respond(@NonNull ReceivedJsonRequest request) {
+    if (this.server.isAuthenticated(this, request)) return JsonMessenger.super.respond(request);
+    return new Response<>(request.getId(), new Error("Authentication failed"));
+  }
+
+  /**
+   * Get the workers of the server in which the requests are handled.
+   *
+   * @return the workers of the server
+   */
+  @Override
+  public @NonNull Executor getExecutor() {
+    return this.server.getWorkers();
+  }
+
+  @Override
+  public @NonNull Socket getSocket() {
+    return this.channel.socket();
+  }
+
+  @Override
+  public @NonNull Collection<JsonReceptor> getReceptors() {
+    return this.server.getReceptors();
+  }
+
+  @Override
+  public @NonNull Gson getGson() {
+    return this.server.getGson();
+  }
+
+  @Override
+  public @NonNull Consumer<Throwable> getThrowableHandler() {
+    return this.server.getThrowableHandler();
+  }
+
+  @Override
+  public void setClosed(boolean closed) {
+    this.closed = closed;
+  }
+
+  @Override
+  public void setLastMessage(long millis) {
+    this.lastMessage = millis;
+  }
+
+  @Override
+  public void close() {
+    if (this.closed) return;
+    this.setClosed(true);
+    if (this.key != null) this.key.cancel();
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      this.getThrowableHandler().accept(e);
+    }
+    this.writes.clear();
+    this.queued.set(0);
+    this.requests.clear();
+    this.wire.release();
+    this.server.remove(this);
+  }
+
+  @Override
+  public String toString() {
+    return "NioJsonConnection{" + "socket=" + this.channel.socket() + '}';
+  }
+
+  /** Queues the text written using {@link #getOutput()} when it is flushed. */
+  private class ChannelWriter extends Writer {
+
+    @NonNull private final StringBuilder pending = new StringBuilder();
+
+    @Override
+    public void write(@NonNull char[] chars, int offset, int length) {
+      synchronized (this.pending) {
+        this.pending.append(chars, offset, length);
+      }
+    }
+
+    @Override
+    public void flush() {
+      String text;
+      synchronized (this.pending) {
+        if (this.pending.length() == 0) return;
+        text = this.pending.toString();
+        this.pending.setLength(0);
+      }
+      NioJsonConnection.this.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public void close() {
+      this.flush();
+    }
+  }
+}
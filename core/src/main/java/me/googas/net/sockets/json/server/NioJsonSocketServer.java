@@ -0,0 +1,743 @@
+package me.googas.net.sockets.json.server;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.NonNull;
+import me.googas.net.api.Server;
+import me.googas.net.api.auth.Authenticator;
+import me.googas.net.api.exception.MessengerListenFailException;
+import me.googas.net.api.messages.Message;
+import me.googas.net.api.messages.Request;
+import me.googas.net.api.messages.StarboxRequest;
+import me.googas.net.sockets.json.Broadcast;
+import me.googas.net.sockets.json.JsonReceptor;
+import me.googas.net.sockets.json.ReceptorSet;
+import me.googas.net.sockets.json.RequestLimiter;
+import me.googas.net.sockets.json.Wire;
+import me.googas.net.sockets.json.Workers;
+import me.googas.net.sockets.json.adapters.MessageDeserializer;
+import me.googas.net.sockets.json.codec.MessageCodec;
+import me.googas.net.sockets.json.reflect.ReflectJsonReceptor;
+
+/**
+ * A non-blocking alternative to {@link JsonSocketServer}. Instead of a thread for each client the
+ * channels of the clients are shared by a small fixed number of I/O threads, each one waiting in
+ * its own {@link Selector}. I/O threads only read, decode and write so the messages they decode are
+ * handled in a pool of workers. The messages of a client are received in the order they were read
+ * while its requests are handled concurrently.
+ *
+ * <p>Clients are {@link NioJsonConnection} and the messages use the same format as {@link
+ * JsonSocketServer} so {@link me.googas.net.sockets.json.client.JsonClient} can connect to this
+ * server and the same {@link JsonReceptor} and {@link Authenticator} can be used
+ */
+public class NioJsonSocketServer implements Server<NioJsonConnection> {
+
+  /** The channel that accepts clients. */
+  @NonNull private final ServerSocketChannel server;
+
+  /** The set of clients that are connected to the server. */
+  @NonNull @Getter private final Set<NioJsonConnection> clients = ConcurrentHashMap.newKeySet();
+
+  /** The receptors to accept requests. */
+  @NonNull @Getter private final Set<JsonReceptor> receptors;
+
+  /** To handle exceptions thrown. */
+  @NonNull @Getter private final Consumer<Throwable> throwableHandler;
+
+  /** The gson instance for the server and clients deserialization. */
+  @NonNull @Getter private final Gson gson;
+
+  /** The time to timeout requests. */
+  @Getter private final long timeout;
+
+  /** The maximum number of bytes of a message. */
+  private final int maximum;
+
+  /** The threads that read and write the channels. */
+  @NonNull private final IoLoop[] loops;
+
+  /** The workers that handle the messages. */
+  @NonNull private final ExecutorService workers;
+
+  /** Whether the workers were created for this server and are shut down when it closes. */
+  private final boolean ownsWorkers;
+
+  /** The number of accepted clients to choose the I/O thread of the next one. */
+  @NonNull private final AtomicInteger accepted = new AtomicInteger();
+
+  /** The authenticator for the requests. */
+  private volatile Authenticator<? super NioJsonConnection> authenticator;
+
+  /** The codecs added to the wire of the clients. */
+  @NonNull private final List<MessageCodec> codecs = new CopyOnWriteArrayList<>();
+  /** The number of bytes from which the payload of the messages sent to clients is compressed. */
+  private volatile int compression = Wire.DEFAULT_COMPRESSION;
+  /** The maximum number of requests of each client that are handled at the same time. */
+  private volatile int concurrency = Integer.MAX_VALUE;
+
+  /**
+   * Create the server.
+   *
+   * @param server the channel that accepts clients
+   * @param receptors the receptors to handle requests
+   * @param throwableHandler the handler for exceptions
+   * @param gson the gson to serialize and deserialize objects
+   * @param timeout the maximum timeout for messages in millis
+   * @param maximum the maximum number of bytes of a message
+   * @param threads the number of I/O threads
+   * @param workers the workers that handle the messages
+   * @param ownsWorkers whether the workers are shut down when the server closes. Workers shared
+   *     with other components must not be shut down by the server
+   * @param authenticator the authentication methods that clients must complete to connect in the
+   *     server
+   * @throws IOException if the selectors could not be opened
+   */
+  protected NioJsonSocketServer(
+      @NonNull ServerSocketChannel server,
+      @NonNull Set<JsonReceptor> receptors,
+      @NonNull Consumer<Throwable> throwableHandler,
+      @NonNull Gson gson,
+      long timeout,
+      int maximum,
+      int threads,
+      @NonNull ExecutorService workers,
+      boolean ownsWorkers,
+      Authenticator<? super NioJsonConnection> authenticator)
+      throws IOException {
+    if (threads < 1) throw new IllegalArgumentException("There must be at least one I/O thread");
+    this.server = server;
+    this.receptors = receptors;
+    this.throwableHandler = throwableHandler;
+    this.gson = gson;
+    this.timeout = timeout;
+    this.maximum = maximum;
+    this.workers = workers;
+    this.ownsWorkers = ownsWorkers;
+    this.authenticator = authenticator;
+    this.loops = new IoLoop[threads];
+    for (int i = 0; i < threads; i++) this.loops[i] = new IoLoop(this, i);
+  }
+
+  /**
+   * Start a builder for a server.
+   *
+   * @param port the port to which the server will listen to
+   * @return the builder instance
+   */
+  @NonNull
+  public static NioServerBuilder listen(int port) {
+    return new NioServerBuilder(port);
+  }
+
+  /** Accepts a client. Called by the first I/O thread when the server channel is ready. */
+  private void accept() {
+    try {
+      SocketChannel channel;
+      while ((channel = this.server.accept()) != null) {
+        IoLoop loop = this.loops[Math.floorMod(this.accepted.getAndIncrement(), this.loops.length)];
+        NioJsonConnection client =
+            new NioJsonConnection(channel, this, loop, this.timeout, this.maximum);
+        this.codecs.forEach(client.getWire()::addCodec);
+        client.getWire().setCompression(this.compression);
+        this.clients.add(client);
+        loop.execute(
+            () -> {
+              try {
+                client.register();
+              } catch (IOException e) {
+                this.throwableHandler.accept(e);
+                client.close();
+              }
+            });
+        this.onConnection(client);
+      }
+    } catch (IOException e) {
+      if (this.server.isOpen()) this.throwableHandler.accept(e);
+    }
+  }
+
+  /**
+   * Get the workers that handle the messages of the clients.
+   *
+   * @return the workers of the server
+   */
+  @NonNull
+  ExecutorService getWorkers() {
+    return this.workers;
+  }
+
+  /**
+   * Remove a client from the set of clients.
+   *
+   * @param client the client to remove from the set
+   */
+  public void remove(@NonNull NioJsonConnection client) {
+    if (this.clients.remove(client)) this.onRemove(client);
+  }
+
+  /**
+   * Called when a client is disconnected and {@link #remove(NioJsonConnection)} was called.
+   *
+   * @param client the client that was removed
+   */
+  protected void onRemove(@NonNull NioJsonConnection client) {}
+
+  /**
+   * Called when a client gets connected to the server.
+   *
+   * @param client the client connecting to the server
+   */
+  protected void onConnection(@NonNull NioJsonConnection client) {}
+
+  /**
+   * Adds the parsed receptors from the given objects.
+   *
+   * @param objects the objects to add as receptors
+   */
+  public void addReceptors(@NonNull Object... objects) {
+    for (Object object : objects) {
+      this.receptors.addAll(ReflectJsonReceptor.getReceptors(object));
+    }
+  }
+
+  /**
+   * Adds a codec that clients may agree on in their handshake besides {@link MessageCodec#JSON} and
+   * {@link MessageCodec#BINARY}. It is only given to the clients that connect after it is added
+   *
+   * @param codec the codec to add
+   * @see Wire#addCodec(MessageCodec)
+   */
+  public void addCodec(@NonNull MessageCodec codec) {
+    this.codecs.add(codec);
+  }
+
+  /**
+   * Set the number of bytes from which the payload of the messages sent to clients is compressed.
+   * Messages are only compressed if the client agrees to it in the handshake and the threshold is
+   * only given to the clients that connect after it is set
+   *
+   * @param compression the new threshold or a negative number to never compress messages
+   * @see Wire#setCompression(int)
+   */
+  public void setCompression(int compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Set the maximum number of requests of each client that are handled at the same time. Requests
+   * over the limit are answered with an error with the cause {@link RequestLimiter#BUSY}. The limit
+   * is only given to the clients that connect after it is set
+   *
+   * @param concurrency the maximum number of requests of each client
+   * @throws IllegalArgumentException if the maximum is lower than 1
+   */
+  public void setConcurrency(int concurrency) {
+    if (concurrency < 1) throw new IllegalArgumentException("The concurrency must be at least 1");
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Get the maximum number of requests of each client that are handled at the same time.
+   *
+   * @return the maximum number of requests of each client
+   */
+  public int getConcurrency() {
+    return this.concurrency;
+  }
+
+  /**
+   * Get whether a request of a client is authenticated.
+   *
+   * @param client the client that sent the request
+   * @param request the request
+   * @return true if there's no authenticator or it allows the request
+   */
+  boolean isAuthenticated(@NonNull NioJsonConnection client, @NonNull Request request) {
+    Authenticator<? super NioJsonConnection> authenticator = this.authenticator;
+    return authenticator == null || authenticator.isAuthenticated(client, request);
+  }
+
+  @Override
+  public Optional<Authenticator<NioJsonConnection>> getAuthenticator() {
+    Authenticator<? super NioJsonConnection> authenticator = this.authenticator;
+    if (authenticator == null) return Optional.empty();
+    return Optional.of(authenticator::isAuthenticated);
+  }
+
+  @Override
+  public @NonNull NioJsonSocketServer setAuthenticator(
+      @NonNull Authenticator<NioJsonConnection> authenticator) {
+    this.authenticator = authenticator;
+    return this;
+  }
+
+  @Override
+  public void start() {
+    this.loops[0].execute(
+        () -> {
+          try {
+            this.loops[0].register(this.server, SelectionKey.OP_ACCEPT, null);
+          } catch (ClosedChannelException e) {
+            this.throwableHandler.accept(e);
+          }
+        });
+    for (IoLoop loop : this.loops) loop.start();
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (NioJsonConnection client : new ArrayList<>(this.clients)) {
+      client.close();
+    }
+    this.server.close();
+    for (IoLoop loop : this.loops) loop.shutdown();
+    if (this.ownsWorkers) this.workers.shutdown();
+    this.receptors.clear();
+  }
+
+  @Override
+  public <T> void sendRequest(
+      @NonNull StarboxRequest<T> request, BiConsumer<NioJsonConnection, Optional<T>> consumer) {
+    this.clients.forEach(
+        client ->
+            client
+                .send(request)
+                .whenComplete(
+                    (value, e) -> {
+                      if (e == null) {
+                        consumer.accept(client, Optional.ofNullable(value));
+                      } else {
+                        this.throwableHandler.accept(
+                            new MessengerListenFailException("Failed execution", e));
+                      }
+                    }));
+  }
+
+  @Override
+  public @NonNull <T> Map<NioJsonConnection, Optional<T>> sendRequest(
+      @NonNull StarboxRequest<T> request) {
+    Map<NioJsonConnection, Optional<T>> responses = new HashMap<>();
+    this.broadcast(request)
+        .join()
+        .forEach((client, response) -> responses.put(client, Optional.ofNullable(response)));
+    return responses;
+  }
+
+  /**
+   * Sends a request to every client without waiting for each of them. The request is serialized
+   * once and queued in the I/O threads of the clients, clients that do not reply in {@link
+   * #getTimeout()} are left out of the result
+   *
+   * @param request the request to send
+   * @param <T> the type of object requested
+   * @return a future which completes with the replies of the clients
+   * @see Broadcast#send(Collection, StarboxRequest, long, Executor, Consumer)
+   */
+  @NonNull
+  public <T> CompletableFuture<Map<NioJsonConnection, T>> broadcast(
+      @NonNull StarboxRequest<T> request) {
+    return this.broadcast(request, this.timeout);
+  }
+
+  /**
+   * Sends a request to every client without waiting for each of them.
+   *
+   * @param request the request to send
+   * @param timeout the millis that each client has to reply
+   * @param <T> the type of object requested
+   * @return a future which completes with the replies of the clients
+   * @see #broadcast(StarboxRequest)
+   */
+  @NonNull
+  public <T> CompletableFuture<Map<NioJsonConnection, T>> broadcast(
+      @NonNull StarboxRequest<T> request, long timeout) {
+    return Broadcast.send(
+        new ArrayList<>(this.clients), request, timeout, Runnable::run, this.throwableHandler);
+  }
+
+  /** A thread that reads and writes the channels registered in its selector. */
+  static final class IoLoop extends Thread {
+
+    @NonNull private final NioJsonSocketServer server;
+    @NonNull private final Selector selector;
+    @NonNull private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    private IoLoop(@NonNull NioJsonSocketServer server, int index) throws IOException {
+      super("starbox-nio-" + index);
+      this.server = server;
+      this.selector = Selector.open();
+      this.setDaemon(true);
+    }
+
+    /**
+     * Registers a channel in the selector. Must be called in this thread.
+     *
+     * @param channel the channel to register
+     * @param ops the operations to select
+     * @param attachment the attachment of the key
+     * @return the key of the channel
+     * @throws ClosedChannelException if the channel is closed
+     */
+    @NonNull
+    SelectionKey register(@NonNull SelectableChannel channel, int ops, Object attachment)
+        throws ClosedChannelException {
+      return channel.register(this.selector, ops, attachment);
+    }
+
+    /**
+     * Runs a task in this thread.
+     *
+     * @param task the task to run
+     */
+    void execute(@NonNull Runnable task) {
+      this.tasks.add(task);
+      this.selector.wakeup();
+    }
+
+    /** Stops the thread. */
+    void shutdown() {
+      this.running = false;
+      this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (this.running) {
+        try {
+          this.selector.select();
+          Runnable task;
+          while ((task = this.tasks.poll()) != null) task.run();
+          Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            this.select(key);
+          }
+        } catch (IOException | RuntimeException e) {
+          this.server.throwableHandler.accept(e);
+        }
+      }
+      try {
+        this.selector.close();
+      } catch (IOException e) {
+        this.server.throwableHandler.accept(e);
+      }
+    }
+
+    /**
+     * Handles a key that is ready.
+     *
+     * @param key the key that is ready
+     */
+    private void select(@NonNull SelectionKey key) {
+      if (!key.isValid()) return;
+      if (key.isAcceptable()) {
+        this.server.accept();
+        return;
+      }
+      NioJsonConnection client = (NioJsonConnection) key.attachment();
+      try {
+        if (key.isReadable()) client.read();
+        if (key.isValid() && key.isWritable()) client.write();
+      } catch (CancelledKeyException e) {
+        client.close();
+      }
+    }
+  }
+
+  /** This class is used to create instances of non-blocking servers in a neat way. */
+  public static class NioServerBuilder {
+
+    /** The number of messages that can wait for a worker in the default workers. */
+    public static final int DEFAULT_QUEUE = Workers.DEFAULT_QUEUE;
+
+    @NonNull private final Set<JsonReceptor> receptors = new ReceptorSet();
+    private final int port;
+
+    @NonNull
+    private GsonBuilder gson =
+        new GsonBuilder().registerTypeAdapter(Message.class, new MessageDeserializer());
+
+    @NonNull private Consumer<Throwable> handler = Throwable::printStackTrace;
+    private long timeout = 1000;
+    private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int maximum = 16 * 1024 * 1024;
+    private ExecutorService workers;
+    private boolean ownsWorkers;
+    private Authenticator<? super NioJsonConnection> authenticator;
+    @NonNull private final List<MessageCodec> codecs = new ArrayList<>();
+    private int compression = Wire.DEFAULT_COMPRESSION;
+    private int concurrency = Integer.MAX_VALUE;
+
+    /**
+     * Create the builder.
+     *
+     * @param port the port to which the server will listen to
+     */
+    private NioServerBuilder(int port) {
+      this.port = port;
+    }
+
+    /**
+     * Set the exception handler that the server may use.
+     *
+     * @param handler the new exception handler
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder handle(@NonNull Consumer<Throwable> handler) {
+      this.handler = handler;
+      return this;
+    }
+
+    /**
+     * Set the maximum time that the server will tolerate.
+     *
+     * @param timeout the new maximum time in millis
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder maxWait(long timeout) {
+      this.timeout = timeout;
+      return this;
+    }
+
+    /**
+     * Set the number of threads that read and write the channels of the clients.
+     *
+     * @param threads the number of I/O threads
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder ioThreads(int threads) {
+      this.threads = threads;
+      return this;
+    }
+
+    /**
+     * Set the workers that handle the messages of the clients. By default a pool with two threads
+     * per processor and a queue of {@link #DEFAULT_QUEUE} messages is used, see {@link
+     * #workers(int, int)}
+     *
+     * @param workers the workers. They are not shut down when the server closes as they may be
+     *     shared
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder workers(@NonNull ExecutorService workers) {
+      this.workers = workers;
+      this.ownsWorkers = false;
+      return this;
+    }
+
+    /**
+     * Set the workers to a pool with a fixed number of threads and a bounded queue. When the queue
+     * is full the requests of clients are answered with an error with the cause {@link
+     * RequestLimiter#OVERLOADED} instead of waiting. The pool is shut down when the server closes
+     *
+     * @param threads the number of threads of the pool
+     * @param queue the number of messages that can wait for a worker
+     * @return this same builder instance
+     * @see Workers#bounded(String, int, int)
+     */
+    @NonNull
+    public NioServerBuilder workers(int threads, int queue) {
+      this.workers = Workers.bounded("json-nio-worker", threads, queue);
+      this.ownsWorkers = true;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of requests of each client that are handled at the same time so a
+     * client cannot take every worker. Requests over the limit are answered with an error with the
+     * cause {@link RequestLimiter#BUSY}. By default it is not limited
+     *
+     * @param concurrency the maximum number of requests of each client
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder concurrency(int concurrency) {
+      if (concurrency < 1) throw new IllegalArgumentException("The concurrency must be at least 1");
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of bytes of a message. Clients that send longer messages are
+     * disconnected
+     *
+     * @param maximum the maximum number of bytes
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder maxMessage(int maximum) {
+      this.maximum = maximum;
+      return this;
+    }
+
+    /**
+     * Sets the authentication method which clients may use.
+     *
+     * @param authenticator the new authentication method
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder auth(Authenticator<? super NioJsonConnection> authenticator) {
+      this.authenticator = authenticator;
+      return this;
+    }
+
+    /**
+     * Adds the parsed receptors from the given object. This will get the receptors from the object
+     * using {@link ReflectJsonReceptor#getReceptors(Object)} and add them to the set
+     *
+     * @param objects the objects to add as receptors
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder addReceptors(@NonNull Object... objects) {
+      for (Object object : objects) {
+        this.addReceptors(ReflectJsonReceptor.getReceptors(object));
+      }
+      return this;
+    }
+
+    /**
+     * Adds all the given receptors.
+     *
+     * @param receptors the receptors to add
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder addReceptors(@NonNull JsonReceptor... receptors) {
+      this.receptors.addAll(Arrays.asList(receptors));
+      return this;
+    }
+
+    /**
+     * Adds all the given receptors.
+     *
+     * @param receptors the receptors to add
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder addReceptors(@NonNull Collection<JsonReceptor> receptors) {
+      this.receptors.addAll(receptors);
+      return this;
+    }
+
+    /**
+     * Adds a codec that clients may agree on in their handshake besides {@link MessageCodec#JSON}
+     * and {@link MessageCodec#BINARY}.
+     *
+     * @param codec the codec to add
+     * @return this same builder instance
+     * @see Wire#addCodec(MessageCodec)
+     */
+    @NonNull
+    public NioServerBuilder codec(@NonNull MessageCodec codec) {
+      this.codecs.add(codec);
+      return this;
+    }
+
+    /**
+     * Set the number of bytes from which the payload of the messages sent to clients is compressed.
+     * Messages are only compressed if the client agrees to it in the handshake. By default {@link
+     * Wire#DEFAULT_COMPRESSION} is used
+     *
+     * @param compression the new threshold or a negative number to never compress messages
+     * @return this same builder instance
+     */
+    @NonNull
+    public NioServerBuilder compression(int compression) {
+      this.compression = compression;
+      return this;
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @return the server instance
+     * @throws IOException if the server could not be created
+     */
+    @NonNull
+    public NioJsonSocketServer start() throws IOException {
+      ServerSocketChannel channel = ServerSocketChannel.open();
+      channel.bind(new InetSocketAddress(this.port));
+      channel.configureBlocking(false);
+      boolean ownsWorkers = this.workers == null || this.ownsWorkers;
+      ExecutorService workers =
+          this.workers == null ? Workers.bounded("json-nio-worker") : this.workers;
+      NioJsonSocketServer server =
+          new NioJsonSocketServer(
+              channel,
+              this.receptors,
+              this.handler,
+              this.gson.create(),
+              this.timeout,
+              this.maximum,
+              this.threads,
+              workers,
+              ownsWorkers,
+              this.authenticator);
+      this.codecs.forEach(server::addCodec);
+      server.setCompression(this.compression);
+      server.setConcurrency(this.concurrency);
+      server.start();
+      return server;
+    }
+
+    /**
+     * Set the instance of {@link GsonBuilder}.
+     *
+     * @param gson the new builder
+     * @return this same instance
+     */
+    @NonNull
+    public NioServerBuilder setGson(@NonNull GsonBuilder gson) {
+      this.gson = gson;
+      return this;
+    }
+
+    /**
+     * Get the instance of {@link GsonBuilder} that will create the {@link Gson} of the server to
+     * read messages.
+     *
+     * @return the builder
+     */
+    @NonNull
+    public GsonBuilder getGsonBuilder() {
+      return this.gson;
+    }
+  }
+}
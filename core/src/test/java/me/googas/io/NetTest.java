@@ -1,22 +1,48 @@
 package me.googas.io;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import lombok.NonNull;
 import me.googas.io.mocks.Person;
+import me.googas.io.mocks.Token;
 import me.googas.net.api.exception.MessengerListenFailException;
 import me.googas.net.api.messages.Message;
 import me.googas.net.api.messages.Request;
 import me.googas.net.api.messages.RequestBuilder;
+import me.googas.net.api.messages.StarboxRequest;
+import me.googas.net.cache.CacheStats;
+import me.googas.net.cache.InvalidationBus;
+import me.googas.net.cache.LoadingCache;
 import me.googas.net.cache.MemoryCache;
+import me.googas.net.cache.OffHeapTier;
+import me.googas.net.sockets.json.Frame;
 import me.googas.net.sockets.json.ParamName;
 import me.googas.net.sockets.json.Receptor;
+import me.googas.net.sockets.json.RequestLimiter;
+import me.googas.net.sockets.json.Wire;
+import me.googas.net.sockets.json.WireFormat;
 import me.googas.net.sockets.json.adapters.MessageDeserializer;
 import me.googas.net.sockets.json.client.JsonClient;
+import me.googas.net.sockets.json.client.JsonClientPool;
+import me.googas.net.sockets.json.codec.MessageCodec;
 import me.googas.net.sockets.json.server.JsonClientThread;
 import me.googas.net.sockets.json.server.JsonSocketServer;
+import me.googas.net.sockets.json.server.NioJsonConnection;
+import me.googas.net.sockets.json.server.NioJsonSocketServer;
 import me.googas.starbox.scheduler.TimerScheduler;
 import me.googas.starbox.time.Time;
 import me.googas.starbox.time.unit.Unit;
@@ -93,6 +119,10 @@ public class NetTest {
     // Sync request
     Person person = builder.send(NetTest.client).orElseThrow(() -> exception);
     Assertions.assertEquals(NetTest.id, person.getId());
+    Assertions.assertEquals(0, NetTest.client.getInFlight());
+    Assertions.assertEquals(WireFormat.FRAMED, NetTest.client.handshake().join());
+    Assertions.assertEquals(MessageCodec.BINARY, NetTest.client.getWire().getCodec());
+    Assertions.assertTrue(NetTest.client.getWire().isCompressed());
     NetTest.cache.add(person);
     // Async Request
     NetTest.client.sendRequest(
@@ -118,6 +148,7 @@ public class NetTest {
         NetTest.cache
             .get(Person.class, cachePerson -> cachePerson.getId() == NetTest.id)
             .orElseThrow(() -> new NullPointerException("Person was not found in cache"));
+    Assertions.assertSame(person, NetTest.cache.get(Person.class, NetTest.id).orElse(null));
     NetTest.logger.info(
         () -> person.getUsername() + " has " + NetTest.cache.getTimeLeft(person) + " time left");
     // Person gets removed in 5 seconds so lets wait 6
@@ -127,6 +158,269 @@ public class NetTest {
 
   @Test
   @Order(2)
+  void loadingCacheTests() {
+    LoadingCache<Integer, Person> loading = new LoadingCache<>(new MemoryCache(), Person.class);
+    AtomicInteger loads = new AtomicInteger();
+    Function<Integer, Person> loader =
+        id -> {
+          loads.incrementAndGet();
+          return NetTest.mocks.getPerson(id).orElse(null);
+        };
+    Person person = loading.get(1, loader).join();
+    Assertions.assertNotNull(person);
+    Assertions.assertSame(person, loading.get(1, loader).join());
+    Map<Integer, Person> persons =
+        loading
+            .getAll(
+                Arrays.asList(1, 2),
+                ids -> {
+                  Assertions.assertEquals(Collections.singleton(2), ids);
+                  Map<Integer, Person> loaded = new HashMap<>();
+                  ids.forEach(id -> loaded.put(id, loader.apply(id)));
+                  return loaded;
+                })
+            .join();
+    Assertions.assertEquals(2, persons.size());
+    Assertions.assertEquals(2, loads.get());
+    CacheStats stats = loading.getCache().getStats();
+    Assertions.assertEquals(2, stats.getHitCount());
+    Assertions.assertEquals(2, stats.getMissCount());
+    Assertions.assertEquals(2, stats.getLoadSuccessCount());
+    Assertions.assertEquals(2, stats.getSize());
+  }
+
+  @Test
+  @Order(8)
+  void expiryTests() throws InterruptedException {
+    Token.REMOVED.clear();
+    MemoryCache cache = new MemoryCache();
+    Token first = new Token(1, 100);
+    Token second = new Token(2, 400);
+    Token third = new Token(3, 10000);
+    cache.addAll(Arrays.asList(third, second, first));
+    Thread.sleep(200);
+    cache.run();
+    Assertions.assertEquals(Collections.singletonList(1), Token.REMOVED);
+    Assertions.assertFalse(cache.contains(first));
+    // Refreshing moves the removal of the second token after its first deadline
+    cache.refresh(second);
+    Thread.sleep(300);
+    cache.run();
+    Assertions.assertTrue(cache.contains(second));
+    Thread.sleep(300);
+    cache.run();
+    Assertions.assertEquals(Arrays.asList(1, 2), Token.REMOVED);
+    Assertions.assertTrue(cache.contains(third));
+    Assertions.assertEquals(1, cache.size());
+  }
+
+  @Test
+  @Order(9)
+  void boundedCacheTests() {
+    Token.REMOVED.clear();
+    MemoryCache cache = new MemoryCache().maximumSize(3);
+    cache.addAll(Arrays.asList(new Token(1, 10000), new Token(2, 10000), new Token(3, 10000)));
+    // Reading the first token protects it so the second is the least recently used in probation
+    Assertions.assertTrue(cache.get(Token.class, 1).isPresent());
+    cache.add(new Token(4, 10000));
+    Assertions.assertEquals(Collections.singletonList(2), Token.REMOVED);
+    cache.add(new Token(5, 10000));
+    Assertions.assertEquals(Arrays.asList(2, 3), Token.REMOVED);
+    Assertions.assertTrue(cache.get(Token.class, 1).isPresent());
+    Assertions.assertEquals(3, cache.size());
+    MemoryCache weighted = new MemoryCache().maximumWeight(10);
+    weighted.add(new Token(6, 10000, 4));
+    weighted.add(new Token(7, 10000, 4));
+    weighted.add(new Token(8, 10000, 5));
+    Assertions.assertEquals(Arrays.asList(2, 3, 6), Token.REMOVED);
+    Assertions.assertEquals(2, weighted.size());
+  }
+
+  @Test
+  @Order(10)
+  void snapshotTests() throws InterruptedException {
+    Token.REMOVED.clear();
+    MemoryCache cache = new MemoryCache();
+    Token first = new Token(1, 10000);
+    cache.addAll(Arrays.asList(first, new Token(2, 10000, 3), new Token(3, 50)));
+    StarboxFile file = new StarboxFile(TestingFiles.DIR, "cache-snapshot.json");
+    Assertions.assertTrue(cache.snapshot(file, TestingFiles.Contexts.JSON).provide().orElse(false));
+    long left = cache.getTimeLeft(first).toMillisRound();
+    Thread.sleep(100);
+    MemoryCache restored = new MemoryCache();
+    restored.add(new Token(2, 20000));
+    // The first token is restored, the second is already in cache and the third expired
+    Assertions.assertEquals(
+        1, restored.restore(file, TestingFiles.Contexts.JSON, Runnable::run).join());
+    Assertions.assertEquals(2, restored.size());
+    Assertions.assertFalse(restored.contains(new Token(3, 50)));
+    Assertions.assertEquals(1, restored.get(Token.class, 2).map(Token::getWeight).orElse(0));
+    // The restored token keeps the time it had left instead of starting again
+    Assertions.assertTrue(restored.getTimeLeft(first).toMillisRound() <= left);
+    Assertions.assertTrue(file.delete());
+    Assertions.assertEquals(
+        0, restored.restore(file, TestingFiles.Contexts.JSON, Runnable::run).join());
+    Assertions.assertTrue(Token.REMOVED.isEmpty());
+  }
+
+  @Test
+  @Order(11)
+  void offHeapTests() throws InterruptedException {
+    Token.REMOVED.clear();
+    Gson gson = new Gson();
+    OffHeapTier tier = new OffHeapTier(gson, 4096, 64);
+    MemoryCache cache = new MemoryCache().maximumSize(2).offHeap(tier);
+    cache.addAll(Arrays.asList(new Token(1, 10000), new Token(2, 10000), new Token(3, 50)));
+    // The evicted token is moved to the tier instead of being removed
+    Assertions.assertEquals(1, tier.size());
+    Assertions.assertEquals(64, tier.getUsedBytes());
+    Assertions.assertFalse(cache.contains(new Token(1, 10000)));
+    Assertions.assertTrue(Token.REMOVED.isEmpty());
+    // A hit moves it back and demotes the least recently used token
+    Assertions.assertTrue(cache.get(Token.class, 1).isPresent());
+    Assertions.assertTrue(cache.contains(new Token(1, 10000)));
+    Assertions.assertEquals(1, tier.size());
+    Assertions.assertTrue(Token.REMOVED.isEmpty());
+    // Tokens expire while they are in the tier
+    cache.add(new Token(4, 10000));
+    Assertions.assertEquals(2, tier.size());
+    Thread.sleep(100);
+    cache.run();
+    Assertions.assertEquals(Collections.singletonList(3), Token.REMOVED);
+    Assertions.assertEquals(1, tier.size());
+    // A full tier drops the least recently stored token
+    OffHeapTier small = new OffHeapTier(gson, 64, 64);
+    MemoryCache bounded = new MemoryCache().maximumSize(1).offHeap(small);
+    bounded.addAll(Arrays.asList(new Token(5, 10000), new Token(6, 10000), new Token(7, 10000)));
+    Assertions.assertEquals(Arrays.asList(3, 5), Token.REMOVED);
+    Assertions.assertEquals(1, small.size());
+    Assertions.assertTrue(bounded.get(Token.class, 6).isPresent());
+  }
+
+  @Test
+  @Order(12)
+  void timeoutTests() throws IOException, InterruptedException {
+    JsonClient client = JsonClient.join("localhost", 3000).maxWait(100).start();
+    try {
+      CompletableFuture<Throwable> failure = new CompletableFuture<>();
+      client.sendRequest(
+          Request.builder(Boolean.class, "sleep").put("millis", 1000).build(),
+          optional -> failure.complete(null),
+          failure::complete);
+      // The deprecated callbacks time out like the futures
+      Assertions.assertTrue(failure.join() instanceof MessengerListenFailException);
+      long wait = 0;
+      while (client.getInFlight() > 0 && wait++ < client.getTimeout()) Thread.sleep(1);
+      Assertions.assertEquals(0, client.getInFlight());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  @Order(13)
+  void compressionTests() throws IOException {
+    Gson gson = new Gson();
+    Wire sender = new Wire();
+    Wire receiver = new Wire();
+    Map<String, JsonElement> offer = new HashMap<>();
+    gson.toJsonTree(sender.offer())
+        .getAsJsonObject()
+        .entrySet()
+        .forEach(entry -> offer.put(entry.getKey(), entry.getValue()));
+    JsonObject answer = receiver.answer(offer);
+    sender.apply(answer);
+    receiver.apply(answer);
+    Assertions.assertTrue(sender.isCompressed());
+    String text = new String(new char[2 * Wire.DEFAULT_COMPRESSION]).replace('\0', 'a');
+    Map<String, String> large = Collections.singletonMap("text", text);
+    Map<String, String> small =
+        Collections.singletonMap("text", text.substring(0, Wire.DEFAULT_COMPRESSION / 16));
+    Frame frame = NetTest.roundTrip(gson, sender, receiver, large);
+    Assertions.assertTrue(frame.is(Frame.COMPRESSED));
+    Assertions.assertEquals(gson.toJsonTree(large), receiver.parse(gson, frame));
+    Assertions.assertFalse(NetTest.roundTrip(gson, sender, receiver, small).is(Frame.COMPRESSED));
+    // A lower threshold compresses small payloads too
+    sender.setCompression(Wire.DEFAULT_COMPRESSION / 32);
+    frame = NetTest.roundTrip(gson, sender, receiver, small);
+    Assertions.assertTrue(frame.is(Frame.COMPRESSED));
+    Assertions.assertEquals(gson.toJsonTree(small), receiver.parse(gson, frame));
+    sender.setCompression(-1);
+    Assertions.assertFalse(NetTest.roundTrip(gson, sender, receiver, large).is(Frame.COMPRESSED));
+    // The payload goes through the client and back compressed both ways
+    Assertions.assertEquals(
+        text,
+        Request.builder(String.class, "echo").put("text", text).future(NetTest.client).join());
+  }
+
+  /**
+   * Encodes a message with a wire and decodes it with another.
+   *
+   * @param gson the gson to serialize the message
+   * @param sender the wire that encodes the message
+   * @param receiver the wire that decodes the message
+   * @param message the message to encode
+   * @return the decoded frame
+   * @throws IOException if the frame exceeds the maximum of the receiver
+   */
+  @NonNull
+  private static Frame roundTrip(
+      @NonNull Gson gson, @NonNull Wire sender, @NonNull Wire receiver, @NonNull Object message)
+      throws IOException {
+    List<Frame> frames = new ArrayList<>();
+    receiver.decode(sender.encode(gson, message), frames::add, Assertions::fail);
+    Assertions.assertEquals(1, frames.size());
+    return frames.get(0);
+  }
+
+  @Test
+  @Order(14)
+  void limiterTests() throws IOException {
+    JsonSocketServer limited =
+        JsonSocketServer.listen(3004).addReceptors(new TestingReceptors()).concurrency(1).start();
+    JsonSocketServer overloaded =
+        JsonSocketServer.listen(3005).addReceptors(new TestingReceptors()).workers(1, 1).start();
+    JsonClient first = JsonClient.join("localhost", 3004).maxWait(5000).start();
+    JsonClient second = JsonClient.join("localhost", 3005).maxWait(5000).start();
+    try {
+      RequestBuilder<Boolean> sleep = Request.builder(Boolean.class, "sleep").put("millis", 500);
+      // A single request is handled at a time so the second one is answered as busy
+      CompletableFuture<Boolean> running = first.send(sleep.build());
+      Assertions.assertEquals(RequestLimiter.BUSY, NetTest.failure(first.send(sleep.build())));
+      Assertions.assertTrue(running.join());
+      // The worker and its queue are taken so the third request is answered as overloaded
+      Assertions.assertEquals(WireFormat.FRAMED, second.handshake().join());
+      List<CompletableFuture<?>> futures =
+          second.sendAll(Arrays.asList(sleep.build(), sleep.build(), sleep.build()));
+      Assertions.assertNull(NetTest.failure(futures.get(0)));
+      Assertions.assertNull(NetTest.failure(futures.get(1)));
+      Assertions.assertEquals(RequestLimiter.OVERLOADED, NetTest.failure(futures.get(2)));
+      Assertions.assertEquals(0, second.getInFlight());
+    } finally {
+      first.close();
+      second.close();
+      limited.close();
+      overloaded.close();
+    }
+  }
+
+  /**
+   * Get the cause of the error with which a request was answered.
+   *
+   * @param future the future of the request
+   * @return the cause of the error or null if the request did not fail
+   */
+  private static String failure(@NonNull CompletableFuture<?> future) {
+    try {
+      future.join();
+      return null;
+    } catch (CompletionException e) {
+      return e.getCause().getMessage();
+    }
+  }
+
+  @Test
+  @Order(3)
   void serverRequests() {
     // Sync request
     Map<JsonClientThread, Optional<Integer>> pings =
@@ -152,6 +446,136 @@ public class NetTest {
                                 "Async: Ping from server to %s is: %dms", client, ping))));
   }
 
+  @Test
+  @Order(4)
+  void invalidationTests() throws IOException, InterruptedException {
+    MemoryCache serverCache = new MemoryCache();
+    MemoryCache clientCache = new MemoryCache();
+    MemoryCache otherCache = new MemoryCache();
+    InvalidationBus serverBus =
+        new InvalidationBus(serverCache).track(Person.class, Integer.class).peers(NetTest.server);
+    InvalidationBus clientBus =
+        new InvalidationBus(clientCache, 1).track(Person.class, Integer.class).peer(NetTest.client);
+    JsonClient other = JsonClient.join("localhost", 3000).start();
+    InvalidationBus otherBus =
+        new InvalidationBus(otherCache).track(Person.class, Integer.class).peer(other);
+    NetTest.server.getReceptors().add(serverBus);
+    NetTest.client.getReceptors().add(clientBus);
+    other.getReceptors().add(otherBus);
+    try {
+      long wait = 0;
+      while (NetTest.server.getClients().size() < 2 && wait++ < other.getTimeout()) {
+        Thread.sleep(1);
+      }
+      Person person = NetTest.mocks.getPerson(NetTest.id).orElseThrow(NullPointerException::new);
+      serverCache.add(person);
+      clientCache.add(person);
+      otherCache.add(person);
+      Assertions.assertTrue(clientBus.remove(person));
+      Assertions.assertEquals(0, clientBus.getPending());
+      wait = 0;
+      while (serverCache.contains(person) && wait++ < NetTest.client.getTimeout()) Thread.sleep(1);
+      Assertions.assertFalse(serverCache.contains(person));
+      // The server relays the keys to the clients that did not send them
+      wait = 0;
+      while (otherCache.contains(person) && wait++ < other.getTimeout()) Thread.sleep(1);
+      Assertions.assertFalse(otherCache.contains(person));
+    } finally {
+      other.close();
+    }
+  }
+
+  @Test
+  @Order(5)
+  void nioServerRequests() throws IOException, InterruptedException {
+    NioJsonSocketServer server =
+        NioJsonSocketServer.listen(3001).ioThreads(1).addReceptors(new TestingReceptors()).start();
+    JsonClient client =
+        JsonClient.join("localhost", 3001)
+            .addReceptors(new TestingReceptors())
+            .threads(runnable -> new Thread(runnable, "nio-test-client"))
+            .start();
+    try {
+      // The client listens in the thread created by the factory
+      Assertions.assertEquals(
+          "nio-test-client", client.getThread().map(Thread::getName).orElse(null));
+      long wait = 0;
+      while (server.getClients().isEmpty() && wait++ < client.getTimeout()) Thread.sleep(1);
+      Person person =
+          Request.builder(Person.class, "person").put("id", NetTest.id).future(client).join();
+      Assertions.assertEquals(NetTest.id, person.getId());
+      Map<NioJsonConnection, Optional<Integer>> pings =
+          server.sendRequest(
+              Request.builder(int.class, "ping").put("init", System.currentTimeMillis()).build());
+      Assertions.assertEquals(1, pings.size());
+      Assertions.assertTrue(pings.values().iterator().next().isPresent());
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+
+  @Test
+  @Order(6)
+  void batchRequests() {
+    Assertions.assertTrue(NetTest.client.getWire().isBatched());
+    List<StarboxRequest<?>> requests = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      requests.add(Request.builder(Person.class, "person").put("id", NetTest.id).build());
+    }
+    List<CompletableFuture<?>> futures = NetTest.client.sendAll(requests);
+    Assertions.assertEquals(requests.size(), futures.size());
+    for (CompletableFuture<?> future : futures) {
+      Assertions.assertEquals(NetTest.id, ((Person) future.join()).getId());
+    }
+    Assertions.assertEquals(0, NetTest.client.getInFlight());
+  }
+
+  @Test
+  @Order(7)
+  void poolRequests() throws IOException, InterruptedException {
+    JsonSocketServer first =
+        JsonSocketServer.listen(3002).addReceptors(new TestingReceptors()).start();
+    JsonSocketServer second =
+        JsonSocketServer.listen(3003).addReceptors(new TestingReceptors()).start();
+    JsonClientPool pool =
+        JsonClientPool.builder()
+            .endpoint("localhost", 3002)
+            .endpoint("localhost", 3003)
+            .endpoint("localhost", 3006)
+            .connections(2)
+            .check(10)
+            .retry(100)
+            .connectTimeout(500)
+            .start();
+    try {
+      Assertions.assertEquals(4, pool.getHealthy());
+      for (JsonClientPool.Connection connection : pool.getConnections()) {
+        Assertions.assertEquals(
+            connection.getEndpoint().getPort() != 3006,
+            connection.isHealthy(),
+            connection::toString);
+      }
+      for (int i = 0; i < 10; i++) {
+        Person person =
+            Request.builder(Person.class, "person").put("id", NetTest.id).future(pool).join();
+        Assertions.assertEquals(NetTest.id, person.getId());
+      }
+      Assertions.assertEquals(0, pool.getInFlight());
+      second.close();
+      long wait = 0;
+      while (pool.getHealthy() > 2 && wait++ < 5000) Thread.sleep(1);
+      Assertions.assertEquals(2, pool.getHealthy());
+      Person person =
+          Request.builder(Person.class, "person").put("id", NetTest.id).future(pool).join();
+      Assertions.assertEquals(NetTest.id, person.getId());
+    } finally {
+      pool.close();
+      first.close();
+      second.close();
+    }
+  }
+
   /** Testing mock receptors. */
   public static class TestingReceptors {
 
@@ -176,5 +600,32 @@ public class NetTest {
     public int ping(@ParamName("init") long init) {
       return (int) (System.currentTimeMillis() - init);
     }
+
+    /**
+     * Answer with the same text.
+     *
+     * @param text the text to answer
+     * @return the same text
+     */
+    @Receptor("echo")
+    public String echo(@ParamName("text") String text) {
+      return text;
+    }
+
+    /**
+     * Takes some time to answer.
+     *
+     * @param millis the millis to wait before answering
+     * @return true once the time has passed
+     */
+    @Receptor("sleep")
+    public boolean sleep(@ParamName("millis") long millis) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return true;
+    }
   }
 }
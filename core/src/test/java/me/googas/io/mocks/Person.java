@@ -40,6 +40,11 @@ public class Person implements Catchable {
     return Time.of(5, Unit.SECONDS);
   }
 
+  @Override
+  public Object getKey() {
+    return id;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -0,0 +1,80 @@
+package me.googas.io.mocks;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import lombok.Getter;
+import lombok.NonNull;
+import me.googas.net.cache.Catchable;
+import me.googas.starbox.time.Time;
+import me.googas.starbox.time.unit.Unit;
+
+/** Mock class with its own time to remove and weight. */
+public class Token implements Catchable {
+
+  /** The ids of the tokens in the order their {@link #onRemove()} was called. */
+  @NonNull public static final List<Integer> REMOVED = new CopyOnWriteArrayList<>();
+
+  @Getter private final int id;
+  private final long millis;
+  private final int weight;
+
+  /**
+   * Create a token.
+   *
+   * @param id the id of the token which is also its key
+   * @param millis the millis that the token stays in cache
+   * @param weight the weight of the token
+   */
+  public Token(int id, long millis, int weight) {
+    this.id = id;
+    this.millis = millis;
+    this.weight = weight;
+  }
+
+  /**
+   * Create a token with a weight of one.
+   *
+   * @param id the id of the token which is also its key
+   * @param millis the millis that the token stays in cache
+   */
+  public Token(int id, long millis) {
+    this(id, millis, 1);
+  }
+
+  @Override
+  public @NonNull Time getToRemove() {
+    return Time.of(this.millis, Unit.MILLIS);
+  }
+
+  @Override
+  public Object getKey() {
+    return this.id;
+  }
+
+  @Override
+  public int getWeight() {
+    return this.weight;
+  }
+
+  @Override
+  public void onRemove() {
+    Token.REMOVED.add(this.id);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || this.getClass() != o.getClass()) return false;
+    return this.id == ((Token) o).id;
+  }
+
+  @Override
+  public int hashCode() {
+    return Integer.hashCode(this.id);
+  }
+
+  @Override
+  public String toString() {
+    return "Token{" + "id=" + this.id + ", millis=" + this.millis + '}';
+  }
+}